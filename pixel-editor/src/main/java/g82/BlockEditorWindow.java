@@ -10,6 +10,8 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.zip.*;
 
+import g82.models.PixelBuffer;
+
 public class BlockEditorWindow {
     private MainWindow mainWindow;
     private CanvasPanel canvasPanel;
@@ -20,7 +22,7 @@ public class BlockEditorWindow {
     private File currentTextureDir;
     private File texturesRootDir;
     private JComboBox<String> categoryCombo;
-    private Map<String, Color[][]> editedTextures = new HashMap<>(); // stores all edited textures in this session
+    private Map<String, PixelBuffer> editedTextures = new HashMap<>(); // stores all edited textures in this session
 
     public BlockEditorWindow(MainWindow mainWindow, CanvasPanel canvas) {
         this.mainWindow = mainWindow;
@@ -6,9 +6,15 @@ import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.TexturePaint;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 import javax.swing.BorderFactory;
 import javax.swing.JFileChooser;
@@ -16,13 +22,18 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 
 import g82.controllers.ImageController;
+import g82.controllers.ParallelController;
+import g82.managers.CompositeManager;
 import g82.managers.CropManager;
 import g82.managers.LayerManager;
 import g82.managers.StateManager;
+import g82.managers.StrokeManager;
 import g82.models.GlobalStateModel;
 import g82.models.LayerModel;
-import g82.models.LayerStateModel;
+import g82.models.LocalStateModel;
+import g82.models.PixelBuffer;
 import g82.models.StateResult;
+import g82.models.SummedAreaTable;
 
 public class CanvasPanel extends JPanel {
     private static final int MAX_ZOOM = 200; // maximum zoom factor
@@ -31,23 +42,26 @@ public class CanvasPanel extends JPanel {
     private static int ROWS;
     private static int COLS;
     private int GRID_SIZE;
-    private Color[][] pixelGrid;
+    private PixelBuffer pixelGrid;
     private LayerManager layerManager;
     private LayerModel currentLayer;
-    private Color[][] displayGrid;
+    private PixelBuffer displayGrid;
+    private CompositeManager compositeManager; // caches displayGrid so only edited areas get recomposited
     private Color currentColour = Color.BLACK; // default drawing colour is black
     private int hoverRow = -1, hoverCol = -1; // rouge values for the variables used in previewing the colour selected
                                               // on the selected pixel
     public String currentTool = "Brush"; // used for checking what tool is selected so the it knows what to do when
                                          // clicking, ie it stops it drawing if you selected the colour picker
     private StateManager stateManager;
-    private Color[][] strokeStartState; // stores the state at the start of a stroke
-    private LayerManager layerStartState;
+    private StrokeManager strokeManager = new StrokeManager(); // records the pixels a stroke changes for undo
     private int lastX = -1;
     private int lastY = -1;
     private String currentBlockName;
     private int baselineGridSize;
     private double scale = 1.0; // for the scroll to zoom functionality
+    private TexturePaint checkerPaint; // transparency background, made on first paint
+    private OperationExecutor operations = new OperationExecutor(this); // slow operations run off the EDT
+    private SummedAreaTable cropTable; // the composite's sums while cropping, for the selection's average colour
 
     public CanvasPanel(int x, int y, int gridSize) {
         ROWS = x; // set dimensions
@@ -56,12 +70,12 @@ public class CanvasPanel extends JPanel {
         this.baselineGridSize = gridSize;
         
         
-        this.pixelGrid = new Color[ROWS][COLS];
-        this.displayGrid = new Color[ROWS][COLS];
+        this.pixelGrid = new PixelBuffer(COLS, ROWS, PixelBuffer.TRANSPARENT); // initalises the grids pixels to be all white
         
         this.layerManager = new LayerManager(pixelGrid);
         this.currentLayer = layerManager.FindLayer(0);
-        stateManager = new StateManager(currentLayer);
+        this.compositeManager = new CompositeManager(layerManager);
+        stateManager = new StateManager();
 
         int width = (int) (COLS * GRID_SIZE * scale);
         int height = (int) (ROWS * GRID_SIZE * scale);
@@ -70,14 +84,8 @@ public class CanvasPanel extends JPanel {
         setBackground(Color.WHITE);
         setBorder(BorderFactory.createLineBorder(Color.BLACK));
 
-        for (int i = 0; i < ROWS; i++) {
-            for (int j = 0; j < COLS; j++) {
-                pixelGrid[i][j] = new Color(255, 255, 255, 0); // initalises the grids pixels to be all white
-            }
-        }
-
         currentLayer.setPixelGrid(pixelGrid);
-        displayGrid = layerManager.CondenseLayersAC();
+        displayGrid = compositeManager.GetComposite();
 
         // save initial blank state
         // saveLayerState(layerManager, layerManager);
@@ -85,6 +93,8 @@ public class CanvasPanel extends JPanel {
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
+                if (operations.IsBusy())
+                    return; // the document is about to be replaced by the operation's result
                 int col = (int) (e.getX() / (GRID_SIZE * scale));
                 int row = (int) (e.getY() / (GRID_SIZE * scale));
 
@@ -95,55 +105,36 @@ public class CanvasPanel extends JPanel {
                     return;
                     
                 if (currentTool.equals("Brush") || currentTool.equals("Erase")) {
-                    // store initial state when starting a new stroke
-                    strokeStartState = new Color[ROWS][COLS];
-                    for (int i = 0; i < ROWS; i++) {
-                        for (int j = 0; j < COLS; j++) {
-                            strokeStartState[i][j] = new Color(
-                                    pixelGrid[i][j].getRed(),
-                                    pixelGrid[i][j].getGreen(),
-                                    pixelGrid[i][j].getBlue(),
-                                    pixelGrid[i][j].getAlpha());
-                        }
-                    }
-                    try {
-                        layerStartState = layerManager.clone();
-                        
-                    } catch (Exception err) {
-                        System.out.println(err);
-                    }
+                    // start recording the pixels the new stroke changes
+                    strokeManager.Begin(pixelGrid);
                     drawPixel(e, false);
                 } 
                 else if (currentTool.equals("Fill")) {
-                    Color targetColor = pixelGrid[row][col];
-                    Color replacementColor = currentColour;
+                    int targetColor = pixelGrid.getPixel(row, col);
+                    int replacementColor = currentColour.getRGB();
                     // Only fill if target and replacement differ.
-                    if (!targetColor.equals(replacementColor)) {
+                    if (targetColor != replacementColor) {
                         fillArea(row, col, targetColor, replacementColor);
                     }
                 }
                 else if (currentTool.equals("Picker")) {
                     getPixelColour(e);
                 }
+                else if (currentTool.equals("Crop")) {
+                    // built once per drag, then the average of any selection is a few lookups
+                    cropTable = new SummedAreaTable(compositeManager.GetComposite());
+                }
             }
 
             @Override
             public void mouseReleased(MouseEvent e) {
                 // save state when completing a stroke
-                if ((currentTool.equals("Brush") || currentTool.equals("Erase")) && strokeStartState != null) {
-                    // check if any pixels changed
-                    boolean changed = false;
-                    for (int i = 0; i < ROWS && !changed; i++) {
-                        for (int j = 0; j < COLS && !changed; j++) {
-                            if (!pixelGrid[i][j].equals(strokeStartState[i][j])) {
-                                changed = true;
-                            }
-                        }
-                    }
-                    if (changed) {
-                        saveLocalState(strokeStartState, pixelGrid);
+                if (strokeManager.IsRecording()) {
+                    // null if no pixels changed
+                    LocalStateModel lsm = strokeManager.End(layerManager.GetLayerPos(currentLayer));
+                    if (lsm != null) {
+                        stateManager.SaveLocalState(lsm);
                     }
-                    strokeStartState = null;
                 }
             }
         });
@@ -151,11 +142,19 @@ public class CanvasPanel extends JPanel {
         addMouseMotionListener(new MouseAdapter() {
             @Override
             public void mouseDragged(MouseEvent e) {
+                if (operations.IsBusy())
+                    return;
                 if (currentTool.equals("Brush") || currentTool.equals("Erase"))
                     drawPixel(e, true); // when moved whilst holding down the LMB
                 if (currentTool.equals("Crop")) {
+                    Rectangle before = getCropCells();
                     updateCrop(e);
-                    repaint();
+                    // only the cells the crop rectangle covered or now covers change
+                    Rectangle after = getCropCells();
+                    Rectangle changed = before == null ? after : after == null ? before : before.union(after);
+                    if (changed != null)
+                        repaintCells(changed.y, changed.x, changed.height, changed.width);
+                    showCropAverage(after);
                 }
             }
 
@@ -164,18 +163,13 @@ public class CanvasPanel extends JPanel {
                 // when the mouse moves without the LMB being held
                 int col = (int) (e.getX() / (GRID_SIZE * scale));
                 int row = (int) (e.getY() / (GRID_SIZE * scale));
-                if (row >= 0 && row < ROWS && col >= 0 && col < COLS) {
-                    int prevRow = hoverRow;
-                    int prevCol = hoverCol;
+                if (row >= 0 && row < ROWS && col >= 0 && col < COLS && (row != hoverRow || col != hoverCol)) {
+                    // just the old and new preview squares, nothing is marked dirty so this never recomposites,
+                    // the repaint only blits the cached composite under them and draws the overlay
+                    repaintBrushPreview(hoverRow, hoverCol);
                     hoverRow = row;
                     hoverCol = col;
-                    int repaintCol = (int)(col * GRID_SIZE * scale)- brushSize/2;
-                    int repaintRow = (int)(row * GRID_SIZE * scale)- brushSize/2;
-                    int repaintSize = (int)(GRID_SIZE * scale * brushSize) + 1;
-                    repaint(repaintCol, repaintRow, repaintSize * brushSize, repaintSize);
-                    int repaintPrevCol = (int)(prevCol * GRID_SIZE * scale) - brushSize/2;
-                    int repaintPrevRow = (int)(prevRow * GRID_SIZE * scale) - brushSize/2;
-                    repaint(repaintPrevCol, repaintPrevRow, repaintSize, repaintSize);
+                    repaintBrushPreview(hoverRow, hoverCol);
                 }
             }
         });
@@ -189,37 +183,44 @@ public class CanvasPanel extends JPanel {
 
         drawCheckeredBackground(g2d);
         drawGrid(g2d);
+        drawOverlay(g2d);
 
         g2d.setColor(Color.BLACK);
-        int borderRows = displayGrid.length;
-        int borderCols = (borderRows > 0 ? displayGrid[0].length : 0);
+        int borderRows = displayGrid.getHeight();
+        int borderCols = displayGrid.getWidth();
         g2d.drawRect(0, 0, borderCols * GRID_SIZE - 1, borderRows * GRID_SIZE - 1);
 
         g2d.dispose();
     }
 
     private void drawGrid(Graphics g) {
-        currentLayer.setPixelGrid(pixelGrid);
-        // Recompute displayGrid by compacting all semi transparent pixels
-        displayGrid = layerManager.CondenseLayersAC();
-        //use displayGrid dimensions for safe indexing
-        int displayRows = displayGrid.length;
-        int displayCols = (displayRows > 0 ? displayGrid[0].length : 0);
-        for (int row = 0; row < displayRows; row++) {
-            int col = 0;
-            while (col < displayCols) {
-                Color startColor = displayGrid[row][col];
-                int runStart = col;
-                while (col < displayCols && displayGrid[row][col].equals(startColor)) {
-                    col++;
-                }
-                int runWidth = col - runStart;
-        
-                g.setColor(startColor);
-                g.fillRect(runStart * GRID_SIZE, row * GRID_SIZE, runWidth * GRID_SIZE, GRID_SIZE);
-            }
+        // Recomposites only the areas that were marked dirty since the last paint
+        layerManager.SetActiveLayer(currentLayer);
+        int displayRows = layerManager.GetHeight();
+        int displayCols = layerManager.GetWidth();
+
+        // only the pixels inside the clip (the part visible in the scroll pane, or the area being repainted)
+        // are composited and drawn, g is already scaled so the clip is in GRID_SIZE units
+        Rectangle visible = getVisiblePixels(g, displayCols, displayRows);
+        displayGrid = compositeManager.GetComposite(visible.x, visible.y, visible.width, visible.height);
+        BufferedImage compositeImage = compositeManager.GetImage();
+
+        // one blit scaled up to GRID_SIZE (and by scale from paintComponent), nearest neighbour keeps pixels sharp
+        if (!visible.isEmpty()) {
+            Graphics2D imageG = (Graphics2D) g.create();
+            imageG.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            imageG.drawImage(compositeImage,
+                visible.x * GRID_SIZE, visible.y * GRID_SIZE, (visible.x + visible.width) * GRID_SIZE, (visible.y + visible.height) * GRID_SIZE,
+                visible.x, visible.y, visible.x + visible.width, visible.y + visible.height, null);
+            imageG.dispose();
         }
+    }
 
+    // Things drawn on top of the image that aren't part of it (brush preview and crop rectangle).
+    // Moving them only repaints the cells they cover, see repaintCells
+    private void drawOverlay(Graphics g) {
+        int displayRows = layerManager.GetHeight();
+        int displayCols = layerManager.GetWidth();
         if (hoverRow >= 0 && hoverCol >= 0) {
             g.setColor(new Color(currentColour.getRed(), currentColour.getGreen(), currentColour.getBlue(), 100));
             // clamp brush preview to displayGrid bounds
@@ -229,45 +230,121 @@ public class CanvasPanel extends JPanel {
             int endRow = Math.min(hoverRow + halfBrushSize - (brushSize % 2 == 0 ? 1 : 0), displayRows - 1);
             int endCol = Math.min(hoverCol + halfBrushSize - (brushSize % 2 == 0 ? 1 : 0), displayCols - 1);
 
-            for (int r = startRow; r <= endRow; r++) {
-                for (int c = startCol; c <= endCol; c++) {
-                    g.fillRect(c * GRID_SIZE, r * GRID_SIZE, GRID_SIZE, GRID_SIZE);
-                }
+            if (endRow >= startRow && endCol >= startCol) {
+                g.fillRect(startCol * GRID_SIZE, startRow * GRID_SIZE, (endCol - startCol + 1) * GRID_SIZE, (endRow - startRow + 1) * GRID_SIZE);
             }
         }
 
-        if (currentTool.equals("Crop") && CropManager.getFirstX() != -1 && CropManager.getFirstY() != -1) {
+        Rectangle crop = getCropCells();
+        if (crop != null) {
             Graphics2D g2d = (Graphics2D) g.create();
             g2d.setColor(new Color(255, 0, 0, 100));
             g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.4f));
-            int x = Math.min(CropManager.getFirstX(), CropManager.getLastX()) * GRID_SIZE;
-            int y = Math.min(CropManager.getFirstY(), CropManager.getLastY()) * GRID_SIZE;
-            int width = (Math.abs(CropManager.getLastX() - CropManager.getFirstX()) + 1) * GRID_SIZE;
-            int height = (Math.abs(CropManager.getLastY() - CropManager.getFirstY()) + 1) * GRID_SIZE;
-            g2d.fillRect(x, y, width, height);
+            g2d.fillRect(crop.x * GRID_SIZE, crop.y * GRID_SIZE, crop.width * GRID_SIZE, crop.height * GRID_SIZE);
             g2d.dispose();
         }
     }
 
+    // the crop selection in cells, null if there isn't one showing
+    private Rectangle getCropCells() {
+        if (!currentTool.equals("Crop") || CropManager.getFirstX() == -1 || CropManager.getFirstY() == -1)
+            return null;
+
+        return new Rectangle(Math.min(CropManager.getFirstX(), CropManager.getLastX()),
+                             Math.min(CropManager.getFirstY(), CropManager.getLastY()),
+                             Math.abs(CropManager.getLastX() - CropManager.getFirstX()) + 1,
+                             Math.abs(CropManager.getLastY() - CropManager.getFirstY()) + 1);
+    }
+
+    // average colour of the crop selection as the canvas' tooltip
+    private void showCropAverage(Rectangle crop) {
+        if (crop == null || cropTable == null) {
+            setToolTipText(null);
+            return;
+        }
+
+        Rectangle cells = crop.intersection(new Rectangle(0, 0, cropTable.getWidth(), cropTable.getHeight()));
+        if (cells.isEmpty()) {
+            setToolTipText(null);
+            return;
+        }
+
+        Color average = new Color(cropTable.getMean(cells.y, cells.x, cells.y + cells.height - 1, cells.x + cells.width - 1), true);
+        setToolTipText(String.format("Average colour: R %d, G %d, B %d, A %d",
+                                     average.getRed(), average.getGreen(), average.getBlue(), average.getAlpha()));
+    }
+
+    // average colour of what's showing in the crop selection, or the whole canvas if there isn't one
+    public Color getAverageColour() {
+        Rectangle cells = new Rectangle(0, 0, COLS, ROWS);
+        Rectangle crop = getCropCells();
+        if (crop != null && !crop.intersection(cells).isEmpty())
+            cells = crop.intersection(cells);
+
+        return new Color(ImageController.AverageColour(compositeManager.GetComposite(),
+                                                       cells.x, cells.y, cells.x + cells.width - 1, cells.y + cells.height - 1), true);
+    }
+
+    // repaints the brush preview square around a cell, same cells drawOverlay fills
+    private void repaintBrushPreview(int row, int col) {
+        if (row < 0 || col < 0) return;
+
+        int half = brushSize / 2;
+        repaintCells(row - half, col - half, brushSize, brushSize);
+    }
+
+    // repaints a block of cells, converted to component pixels at the current zoom
+    private void repaintCells(int row, int col, int rows, int cols) {
+        double cellSize = GRID_SIZE * scale;
+        int x = (int) Math.floor(col * cellSize);
+        int y = (int) Math.floor(row * cellSize);
+        repaint(x, y, (int) Math.ceil((col + cols) * cellSize) - x + 1, (int) Math.ceil((row + rows) * cellSize) - y + 1);
+    }
+
+    // The rectangle of grid pixels that overlap g's clip, clamped to the grid
+    private Rectangle getVisiblePixels(Graphics g, int cols, int rows) {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            return new Rectangle(0, 0, cols, rows);
+        }
+
+        int col0 = Math.max(0, clip.x / GRID_SIZE);
+        int row0 = Math.max(0, clip.y / GRID_SIZE);
+        int col1 = Math.min(cols, (clip.x + clip.width + GRID_SIZE - 1) / GRID_SIZE);
+        int row1 = Math.min(rows, (clip.y + clip.height + GRID_SIZE - 1) / GRID_SIZE);
+        return new Rectangle(col0, row0, Math.max(0, col1 - col0), Math.max(0, row1 - row0));
+    }
+
     private void drawCheckeredBackground(Graphics2D g2d) {
         int checkerSize = 20; // unscaled checker size
         int canvasWidth = COLS * GRID_SIZE;
         int canvasHeight = ROWS * GRID_SIZE;
-    
-        g2d.setClip(0, 0, canvasWidth, canvasHeight);
-    
-        for (int y = 0; y < canvasHeight; y += checkerSize) {
-            for (int x = 0; x < canvasWidth; x += checkerSize) {
-                if (((x / checkerSize) + (y / checkerSize)) % 2 == 0)
-                    g2d.setColor(new Color(240, 240, 240));
-                else
-                    g2d.setColor(new Color(210, 210, 210));
-    
-                g2d.fillRect(x, y, checkerSize, checkerSize);
-            }
+
+        // one 2x2 checker tile is drawn once and repeated by a TexturePaint, it's in canvas units so zooming
+        // (the scale on g2d) doesn't need a new one
+        if (checkerPaint == null) {
+            BufferedImage tile = new BufferedImage(checkerSize * 2, checkerSize * 2, BufferedImage.TYPE_INT_RGB);
+            Graphics2D tileG = tile.createGraphics();
+            tileG.setColor(new Color(240, 240, 240));
+            tileG.fillRect(0, 0, checkerSize * 2, checkerSize * 2);
+            tileG.setColor(new Color(210, 210, 210));
+            tileG.fillRect(checkerSize, 0, checkerSize, checkerSize);
+            tileG.fillRect(0, checkerSize, checkerSize, checkerSize);
+            tileG.dispose();
+            checkerPaint = new TexturePaint(tile, new Rectangle(0, 0, checkerSize * 2, checkerSize * 2));
         }
-    
-        g2d.setClip(null);
+
+        // only the part inside the clip, clipRect keeps the clip Swing gave us
+        Graphics2D bg = (Graphics2D) g2d.create();
+        bg.clipRect(0, 0, canvasWidth, canvasHeight);
+        Rectangle area = bg.getClipBounds();
+        if (area == null) {
+            area = new Rectangle(0, 0, canvasWidth, canvasHeight);
+        }
+
+        bg.setPaint(checkerPaint);
+        bg.fillRect(area.x, area.y, area.width, area.height);
+        bg.dispose();
     }
     
     private void drawPixel(MouseEvent e, boolean isStroke) {
@@ -275,26 +352,41 @@ public class CanvasPanel extends JPanel {
         int row = (int) (e.getY() / (GRID_SIZE * scale));
         // Calculate half size to center the brush stroke.
         int half = brushSize / 2;
+        int colour = currentColour.getRGB();
         if (isStroke) { 
-            drawLine(lastX, col, lastY, row, half);
+            drawLine(lastX, col, lastY, row, half, colour);
         }
 
         for (int r = row - half; r < row - half + brushSize; r++) {
             for (int c = col - half; c < col - half + brushSize; c++) {
                 if (r >= 0 && r < ROWS && c >= 0 && c < COLS) {
-                    pixelGrid[r][c] = currentColour;
+                    setStrokePixel(r, c, colour);
                 }
             }
         }
 
-        repaint();
+        // only the area between the last and the current point has changed
+        int fromCol = isStroke ? Math.min(lastX, col) : col;
+        int fromRow = isStroke ? Math.min(lastY, row) : row;
+        int toCol = isStroke ? Math.max(lastX, col) : col;
+        int toRow = isStroke ? Math.max(lastY, row) : row;
+        markDirty(fromCol - half, fromRow - half, toCol - fromCol + brushSize, toRow - fromRow + brushSize);
         lastX = col;
         lastY = row;
     }
 
+    // goes through the stroke recorder so the stroke can be undone, unless the stroke started off the canvas
+    private void setStrokePixel(int r, int c, int colour) {
+        if (strokeManager.IsRecording()) {
+            strokeManager.SetPixel(r, c, colour);
+        } else {
+            pixelGrid.setPixel(r, c, colour);
+        }
+    }
+
     // Bresenham's Line Algorithm: avoids floating point calculations
     // https://www.geeksforgeeks.org/bresenhams-line-generation-algorithm/
-    private void drawLine(int x0, int x1, int y0, int y1, int half) {
+    private void drawLine(int x0, int x1, int y0, int y1, int half, int colour) {
         int dx = Math.abs(x1 - x0);
         int dy = Math.abs(y1 - y0);
         int xStep = (x1 > x0) ? 1 : -1;
@@ -308,7 +400,7 @@ public class CanvasPanel extends JPanel {
                 for (int r = y - half; r < y - half + brushSize; r++) {
                     for (int c = x - half; c < x - half + brushSize; c++) {
                         if (r >= 0 && r < ROWS && c >= 0 && c < COLS) {
-                            pixelGrid[r][c] = currentColour;
+                            setStrokePixel(r, c, colour);
                         }
                     }
                 }
@@ -327,7 +419,7 @@ public class CanvasPanel extends JPanel {
                 for (int r = y - half; r < y - half + brushSize; r++) {
                     for (int c = x - half; c < x - half + brushSize; c++) {
                         if (r >= 0 && r < ROWS && c >= 0 && c < COLS) {
-                            pixelGrid[r][c] = currentColour;
+                            setStrokePixel(r, c, colour);
                         }
                     }
                 }
@@ -350,12 +442,12 @@ public class CanvasPanel extends JPanel {
         CropManager.Update(col, row);
     }
 
-    private void fillArea(int row, int col, Color targetColor, Color replacementColor) {
+    private void fillArea(int row, int col, int targetColor, int replacementColor) {
         try {
-            LayerManager prev = layerManager.clone();
-            if (targetColor.equals(replacementColor))
+            if (targetColor == replacementColor)
                 return;
-            Color[][] pg = ImageController.ClonePixelGrid(pixelGrid);
+            PixelBuffer pg = ImageController.ClonePixelGrid(pixelGrid);
+            int minRow = row, maxRow = row, minCol = col, maxCol = col; // bounds of the filled area
             java.util.Stack<Point> stack = new java.util.Stack<>();
             stack.push(new Point(col, row)); // Point(x, y) x is column and y is row
     
@@ -369,11 +461,15 @@ public class CanvasPanel extends JPanel {
                     continue;
     
                 // only fill if the current cell matches the target color.
-                if (!pixelGrid[r][c].equals(targetColor))
+                if (pixelGrid.getPixel(r, c) != targetColor)
                     continue;
     
                 // replace the color
-                pixelGrid[r][c] = replacementColor;
+                pixelGrid.setPixel(r, c, replacementColor);
+                minRow = Math.min(minRow, r);
+                maxRow = Math.max(maxRow, r);
+                minCol = Math.min(minCol, c);
+                maxCol = Math.max(maxCol, c);
     
                 // add neighbouring cells to stack
                 stack.push(new Point(c + 1, r));
@@ -382,7 +478,7 @@ public class CanvasPanel extends JPanel {
                 stack.push(new Point(c, r - 1));
             }
             saveLocalState(pg, pixelGrid);
-            repaint();
+            markDirty(minCol, minRow, maxCol - minCol + 1, maxRow - minRow + 1);
             
         } catch (Exception e) {
             System.out.println(e);
@@ -393,7 +489,7 @@ public class CanvasPanel extends JPanel {
         int col = (int) (e.getX() / (GRID_SIZE * scale));
         int row = (int) (e.getY() / (GRID_SIZE * scale));
         if (row >= 0 && row < ROWS && col >= 0 && col < COLS)
-            setCurrentColour(pixelGrid[row][col]);
+            setCurrentColour(new Color(pixelGrid.getPixel(row, col), true));
     }
 
     public void setCurrentColour(Color colour) {
@@ -410,6 +506,10 @@ public class CanvasPanel extends JPanel {
 
     public void setCurrentTool(String tool) {
         this.currentTool = tool;
+        if (!tool.equals("Crop")) {
+            cropTable = null;
+            setToolTipText(null);
+        }
     }
 
     private int brushSize = 1;
@@ -457,18 +557,17 @@ public class CanvasPanel extends JPanel {
         int result = fileChooser.showOpenDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) { // if the user selects a file
             File file = fileChooser.getSelectedFile();
-            try {
-                Color[][] importedGrid = ImageController.ImportImage(file.getAbsolutePath());
+            // read (and shrunk if it's too big) in the background
+            operations.Execute("Opening image", progress -> ImageController.ReadImage(file.getAbsolutePath()), importedGrid -> {
                 pixelGrid = importedGrid;
+                ROWS = pixelGrid.getHeight();
+                COLS = pixelGrid.getWidth();
                 stateManager.ResetStates();
                 layerManager = new LayerManager(pixelGrid);
-                // saveLocalState(layerManager, layerManager);
                 currentLayer = layerManager.FindLayer(0);
+                compositeManager.SetLayerManager(layerManager);
                 fitToWindow();
-                stateManager = new StateManager(currentLayer);
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, "Failed to open image: " + ex.getMessage());
-            }
+            });
         }
     }
 
@@ -484,8 +583,8 @@ public class CanvasPanel extends JPanel {
             }
             try {
                 currentLayer.setPixelGrid(pixelGrid);
-                displayGrid = layerManager.CondenseLayersAC();
-                ImageController.ExportImage2PNG(displayGrid, path);
+                layerManager.SetActiveLayer(currentLayer);
+                ImageController.ExportImage2PNG(compositeManager.GetComposite(), path);
             } catch (Exception ex) {
                 javax.swing.JOptionPane.showMessageDialog(this, "Failed to save image: " + ex.getMessage());
             }
@@ -501,19 +600,12 @@ public class CanvasPanel extends JPanel {
                 null,
                 JOptionPane.PLAIN_MESSAGE);
         } else {
-            LayerManager prev = layerManager.clone();
-            layerManager.NNIResizeLayers(currentLayer, newWidth, newHeight);
-            pixelGrid = currentLayer.getPixelGrid();
-            if (this.pixelGrid.length < 1 || this.pixelGrid[0].length < 1)
-                throw new Exception("Invalid PixelGrid");
-            int pos = layerManager.GetLayerPos(currentLayer);
-            LayerStateModel lsm = new LayerStateModel(prev, prev, pos, pos);
-            saveGlobalState(lsm, GlobalStateModel.Op.RESIZE, pixelGrid[0].length, pixelGrid.length, COLS, ROWS); 
-            ROWS = pixelGrid.length;
-            COLS = pixelGrid[0].length;
-            layerManager.SetHeight(ROWS);
-            layerManager.SetWidth(COLS);
-            repaint();
+            int oldWidth = COLS;
+            int oldHeight = ROWS;
+            // the old grids are only kept if they can't be worked out from the resized ones
+            PixelBuffer[] oldGrids = ImageController.IsNNIResizeLossless(oldWidth, oldHeight, newWidth, newHeight) ? null : layerManager.GetLayerGrids();
+            transformLayers("Resizing", (k, grid) -> ImageController.NNIResize(grid, newWidth, newHeight),
+                () -> stateManager.SaveResizeState(oldGrids, COLS, ROWS, oldWidth, oldHeight));
         }
         
     }
@@ -524,91 +616,157 @@ public class CanvasPanel extends JPanel {
             return;
         }
 
-        LayerManager prev = layerManager.clone();
-        layerManager.CropLayers(currentLayer);
-        pixelGrid = currentLayer.getPixelGrid();
+        int x1 = Math.min(CropManager.getFirstX(), CropManager.getLastX());
+        int y1 = Math.min(CropManager.getFirstY(), CropManager.getLastY());
+        int x2 = Math.max(CropManager.getFirstX(), CropManager.getLastX());
+        int y2 = Math.max(CropManager.getFirstY(), CropManager.getLastY());
         CropManager.Reset();
-        if (this.pixelGrid.length < 1 || this.pixelGrid[0].length < 1)
-            throw new Exception("Invalid PixelGrid");
-        LayerStateModel lsm = new LayerStateModel(prev, prev, prev.GetLayersSize(), layerManager.GetLayersSize());
-        saveGlobalState(lsm, GlobalStateModel.Op.CROP, pixelGrid[0].length, pixelGrid.length, COLS, ROWS); 
-        ROWS = pixelGrid.length;
-        COLS = pixelGrid[0].length;
-        layerManager.SetHeight(ROWS);
-        layerManager.SetWidth(COLS);
-        repaint();
+        cropTable = null;
+        setToolTipText(null);
+        int oldWidth = COLS;
+        int oldHeight = ROWS;
+        // only the pixels cut off are kept for undo, worked out in the background with the crop
+        int[][] margins = new int[layerManager.GetLayersSize()][];
+        transformLayers("Cropping", (k, grid) -> {
+            margins[k] = ImageController.CropMargins(grid, x1, y1, x2, y2);
+            return ImageController.CropGrid(grid, x1, y1, x2, y2);
+        }, () -> stateManager.SaveCropState(x1, y1, x2, y2, margins, COLS, ROWS, oldWidth, oldHeight));
     }
 
-    // Blur current layer
-    public void blurImage() {
-        try {
-            LayerManager prev = layerManager.clone();
-            Color[][] pg = ImageController.ClonePixelGrid(currentLayer.getPixelGrid());
-            currentLayer.setPixelGrid(ImageController.Blur(pg));
-            pixelGrid = currentLayer.getPixelGrid();
-            saveLocalState(pg, pixelGrid);
-            repaint();
-            
-        } catch (Exception e) {
-            System.out.println(e);
-        }
+    // Gaussian blur of the current layer over 2 * radius + 1 pixels
+    public void blurImage(int radius) {
+        filterCurrentLayer("Blurring", (grid, progress) -> ImageController.Blur(grid, radius, progress));
+    }
+
+    // Box blur of the current layer, every pixel in the (2 * radius + 1) square weighted the same
+    public void boxBlurImage(int radius) {
+        filterCurrentLayer("Blurring", (grid, progress) -> ImageController.BoxBlur(grid, radius, progress));
     }
 
     // Sharpen current layer
     public void sharpenImage() {
-        try {
-            LayerManager prev = layerManager.clone();
-            Color[][] pg = ImageController.ClonePixelGrid(currentLayer.getPixelGrid());
-            currentLayer.setPixelGrid(ImageController.Sharpen(pg));
-            pixelGrid = currentLayer.getPixelGrid();
-            saveLocalState(pg, pixelGrid);
-            repaint();
-            
-        } catch (Exception e) {
-            System.out.println(e);
-        }
+        filterCurrentLayer("Sharpening", ImageController::Sharpen);
     }
 
     // Rotate all layers right
     public void rotateRight() {
-        layerManager.RotateLayersRight(currentLayer);
-        pixelGrid = currentLayer.getPixelGrid();
-        saveGlobalState(GlobalStateModel.Op.ROTATE_RIGHT, ROWS, COLS, COLS, ROWS); 
-        ROWS = pixelGrid.length;
-        COLS = pixelGrid[0].length;
-        layerManager.SetHeight(ROWS);
-        layerManager.SetWidth(COLS);
-        repaint();
+        orientLayers(layerManager::RotateLayersRight, GlobalStateModel.Op.ROTATE_RIGHT, true);
     }
 
     // Rotate all layers left
     public void rotateLeft() {
-        layerManager.RotateLayersLeft(currentLayer);
-        pixelGrid = currentLayer.getPixelGrid();
-        saveGlobalState(GlobalStateModel.Op.ROTATE_LEFT, ROWS, COLS, COLS, ROWS); 
-        ROWS = pixelGrid.length;
-        COLS = pixelGrid[0].length;
-        layerManager.SetHeight(ROWS);
-        layerManager.SetWidth(COLS);
-        repaint();
+        orientLayers(layerManager::RotateLayersLeft, GlobalStateModel.Op.ROTATE_LEFT, true);
     }
 
     // Flip all layers y-axis
     public void flipH() {
-        layerManager.FlipLayersH(currentLayer);
-        pixelGrid = currentLayer.getPixelGrid();
-        saveGlobalState(GlobalStateModel.Op.FLIPH, ROWS, COLS, ROWS, COLS); 
-        repaint();
+        orientLayers(layerManager::FlipLayersH, GlobalStateModel.Op.FLIPH, false);
     }
 
     // Flip all layers x-axis
     public void flipV() {
-        layerManager.FlipLayersV(currentLayer);
+        orientLayers(layerManager::FlipLayersV, GlobalStateModel.Op.FLIPV, false);
+    }
+
+    // Rotations and flips only change the layers' orientation so they're quick enough to do straight away,
+    // the pixels get moved when a layer's next edited
+    private void orientLayers(Consumer<LayerModel> orient, GlobalStateModel.Op op, boolean swapsSides) {
+        if (operations.IsBusy())
+            return;
+
+        int oldWidth = COLS;
+        int oldHeight = ROWS;
+        currentLayer.setPixelGrid(pixelGrid);
+        orient.accept(currentLayer);
         pixelGrid = currentLayer.getPixelGrid();
-        saveGlobalState(GlobalStateModel.Op.FLIPV, ROWS, COLS, ROWS, COLS); 
+        if (swapsSides) {
+            ROWS = oldWidth;
+            COLS = oldHeight;
+        }
+        layerManager.SetHeight(ROWS);
+        layerManager.SetWidth(COLS);
+        saveGlobalState(op, COLS, ROWS, oldWidth, oldHeight);
+        compositeManager.MarkAllDirty();
         repaint();
     }
 
+    private interface GridTransform {
+        PixelBuffer apply(PixelBuffer grid, ParallelController.Progress progress) throws Exception;
+    }
+
+    private interface LayerTransform {
+        PixelBuffer apply(int layer, PixelBuffer grid) throws Exception; // layer is its position, for keeping data per layer
+    }
+
+    // Runs transform on a snapshot of the current layer in the background, then swaps the result in and saves it.
+    // The change saved for undo is worked out in the background too, it goes over every pixel of the layer
+    private void filterCurrentLayer(String name, GridTransform filter) {
+        LayerModel layer = currentLayer;
+        if (!layer.isVisible())
+            return; // nothing to filter
+        int layerNum = layerManager.GetLayerPos(layer);
+        PixelBuffer before = layer.getPixelGrid();
+        PixelBuffer snapshot = before.clone(); // just shares its tiles
+        PixelBuffer[] filtered = new PixelBuffer[1];
+        operations.Execute(name, progress -> {
+            filtered[0] = filter.apply(snapshot, progress::Step);
+            return new LocalStateModel(layerNum, snapshot, filtered[0]);
+        }, change -> {
+            if (layer.getPixelGrid() != before) {
+                throw new Exception("the layer was changed while it was running");
+            }
+
+            layer.setPixelGrid(filtered[0]);
+            if (layer == currentLayer)
+                pixelGrid = layer.getPixelGrid();
+            stateManager.SaveLocalState(change);
+            compositeManager.MarkAllDirty();
+            repaint();
+        });
+    }
+
+    // Runs transform on a snapshot of every visible layer in the background, one layer at a time so it can show
+    // progress, then swaps all the results in at once and calls save to record it in the history
+    private void transformLayers(String name, LayerTransform transform, Runnable save) {
+        LayerModel[] layers = layerManager.GetLayerArray();
+        PixelBuffer[] snapshot = layerManager.GetLayerGrids();
+        for (int k = 0; k < snapshot.length; k++) {
+            if (snapshot[k] != null)
+                snapshot[k] = snapshot[k].clone(); // just shares its tiles
+        }
+
+        operations.Execute(name, progress -> {
+            PixelBuffer[] grids = new PixelBuffer[snapshot.length];
+            for (int k = 0; k < snapshot.length; k++) {
+                if (snapshot[k] != null)
+                    grids[k] = transform.apply(k, snapshot[k]);
+                progress.Step(k + 1, snapshot.length);
+            }
+            return grids;
+        }, grids -> {
+            if (!Arrays.equals(layers, layerManager.GetLayerArray())) {
+                throw new Exception("the layers were changed while it was running");
+            }
+
+            // hidden layers are left as they are, like the other layer operations
+            PixelBuffer sized = Arrays.stream(grids).filter(g -> g != null).findFirst().orElse(null);
+            if (sized == null)
+                return;
+            if (sized.isEmpty())
+                throw new Exception("Invalid PixelGrid");
+
+            layerManager.SetLayerGrids(grids);
+            pixelGrid = currentLayer.getPixelGrid();
+            ROWS = sized.getHeight();
+            COLS = sized.getWidth();
+            layerManager.SetHeight(ROWS);
+            layerManager.SetWidth(COLS);
+            save.run();
+            compositeManager.MarkAllDirty();
+            repaint();
+        });
+    }
+
     /**
      * Returns array of LayerModel objects in order
      */
@@ -629,9 +787,10 @@ public class CanvasPanel extends JPanel {
      * @param m - LayerModel object to be set as current layer
      */
     public void setCurrentLayer(LayerModel m) {
-        // Saves current pixel grid to the layer and updates display
+        if (operations.IsBusy())
+            return; // the layers are being worked on in the background
+        // Saves current pixel grid to the layer
         currentLayer.setPixelGrid(pixelGrid);
-        displayGrid = layerManager.CondenseLayersAC();
 
         currentLayer = m;
         // Updates pixelGrid to pull from new layer
@@ -643,24 +802,21 @@ public class CanvasPanel extends JPanel {
      * Set as current layer
      */
     public void addNewLayer() {
+        if (operations.IsBusy())
+            return;
         try {
             int pos = layerManager.GetLayerPos(currentLayer);
             currentLayer.setPixelGrid(pixelGrid);
-            displayGrid = layerManager.CondenseLayersAC();
             LayerManager prev = layerManager.clone();
-            Color[][] newGrid = new Color[ROWS][COLS];
             // Set all cells to transparent
-            for (int i = 0; i < ROWS; i++) {
-                for (int j = 0; j < COLS; j++) {
-                    newGrid[i][j] = new Color(255, 255, 255, 0);
-                }
-            }
+            PixelBuffer newGrid = new PixelBuffer(COLS, ROWS, PixelBuffer.TRANSPARENT);
 
             layerManager.AddLayer(newGrid);
             int index = layerManager.GetLayersSize() - 1;
             currentLayer = layerManager.FindLayer(index);
             pixelGrid = currentLayer.getPixelGrid();
             saveLayerState(prev, layerManager, pos, index);
+            compositeManager.MarkAllDirty();
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Failed to add new layer due to: " + e.getMessage());
         }
@@ -672,6 +828,8 @@ public class CanvasPanel extends JPanel {
      * (bottom)
      */
     public void deleteCurrentLayer() {
+        if (operations.IsBusy())
+            return;
         int pos = layerManager.GetLayerPos(currentLayer);
         try {
             LayerManager prev = layerManager.clone();
@@ -681,6 +839,7 @@ public class CanvasPanel extends JPanel {
                 pixelGrid = currentLayer.getPixelGrid();
             }
             saveLayerState(prev, layerManager, pos, 0);
+            compositeManager.MarkAllDirty();
             repaint();
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Failed to delete layer due to: " + e.getMessage());
@@ -692,18 +851,16 @@ public class CanvasPanel extends JPanel {
      * if it is not already on top
      */
     public void moveCurrentLayerUp() {
+        if (operations.IsBusy())
+            return;
         int size = layerManager.GetLayersSize();
         int pos = layerManager.GetLayerPos(currentLayer);
         // If layer is NOT at the top then
         if (!(pos == (size - 1))) {
-            try {
-            LayerManager prev = layerManager.clone();
             layerManager.ChangeLayerPos(pos, pos + 1);
-            saveLayerState(prev, layerManager, pos, pos+1);
+            stateManager.SaveLayerPosState(pos, pos + 1);
+            compositeManager.MarkAllDirty();
             repaint();
-            } catch (Exception e) {
-                System.out.println(e);
-            }
         } 
     }
 
@@ -712,17 +869,15 @@ public class CanvasPanel extends JPanel {
      * if it is not already at the bottom
      */
     public void moveCurrentLayerDown() {
+        if (operations.IsBusy())
+            return;
         int pos = layerManager.GetLayerPos(currentLayer);
         // If layer is NOT at the bottom then
         if (!(pos == 0)) {
-            try {
-                LayerManager prev = layerManager.clone();
-                layerManager.ChangeLayerPos(pos, pos - 1);
-                saveLayerState(prev, layerManager, pos, pos-1);
-                repaint();
-                } catch (Exception e) {
-                    System.out.println(e);
-                }
+            layerManager.ChangeLayerPos(pos, pos - 1);
+            stateManager.SaveLayerPosState(pos, pos - 1);
+            compositeManager.MarkAllDirty();
+            repaint();
         } // Otherwise do nothing
     }
 
@@ -733,11 +888,14 @@ public class CanvasPanel extends JPanel {
      * @param alpha - opacity value between 0 and 1
      */
     public void setCurrentLayerOpacity(float alpha) {
+        if (operations.IsBusy())
+            return;
         try {
             int pos = layerManager.GetLayerPos(currentLayer);
-            LayerManager prev = layerManager.clone();
+            float prev = currentLayer.getOpacity();
             currentLayer.setOpacity(alpha);
-            saveLayerState(prev, layerManager, pos, pos);
+            stateManager.SaveOpacityState(pos, prev, alpha);
+            compositeManager.MarkAllDirty();
             repaint();
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Failed to change layer opacity due to: " + e.getMessage());
@@ -749,36 +907,38 @@ public class CanvasPanel extends JPanel {
      * If the layer is visible, set to not visible, and vice versa
      */
     public void toggleCurrentLayerVisibility() {
-        try {
-            int pos = layerManager.GetLayerPos(currentLayer);
-            LayerManager prev = layerManager.clone();
-            currentLayer.toggleVisibility();
-            pixelGrid = currentLayer.getPixelGrid();
-            saveLayerState(prev, layerManager, pos, pos);
-            repaint();
-            
-        } catch (Exception e) {
-            System.out.println(e);
-        }
+        if (operations.IsBusy())
+            return;
+        int pos = layerManager.GetLayerPos(currentLayer);
+        currentLayer.toggleVisibility();
+        pixelGrid = currentLayer.getPixelGrid();
+        stateManager.SaveVisibilityState(pos);
+        compositeManager.MarkAllDirty();
+        repaint();
     }
 
     // just used for loading an image from the main menu
-    public void setImageGrid(Color[][] grid) {
+    public void setImageGrid(PixelBuffer grid) {
         this.pixelGrid = grid;
-        ROWS = grid.length;
-        COLS = grid[0].length;
+        ROWS = grid.getHeight();
+        COLS = grid.getWidth();
+        currentLayer.setPixelGrid(grid);
+        compositeManager.MarkAllDirty();
         //fit the imported texture in the viewport
         fitToWindow();
     }
 
     public void undo() {
+        if (operations.IsBusy()) {
+            return;
+        }
         if (stateManager.canUndo()) { 
             try {
                 StateResult sr = stateManager.UndoState(layerManager, currentLayer);
                 layerManager = sr.layerManager;
                 currentLayer = sr.curLayer;
                 pixelGrid = currentLayer.getPixelGrid();
-                displayGrid = layerManager.CondenseLayersAC();
+                compositeManager.SetLayerManager(layerManager);
                 repaint();
             } catch (Exception e) {
                 e.printStackTrace();
@@ -794,13 +954,16 @@ public class CanvasPanel extends JPanel {
     }
     
     public void redo() {
+        if (operations.IsBusy()) {
+            return;
+        }
         if (stateManager.canRedo()) { 
             try {
                 StateResult sr = stateManager.RedoState(layerManager, currentLayer);
                 layerManager = sr.layerManager;
                 currentLayer = sr.curLayer;
                 pixelGrid = currentLayer.getPixelGrid();
-                displayGrid = layerManager.CondenseLayersAC();
+                compositeManager.SetLayerManager(layerManager);
                 repaint();
             } catch (Exception e) {
                 System.err.println("Unexpected redo error: " + e.getMessage());
@@ -817,16 +980,18 @@ public class CanvasPanel extends JPanel {
     // function that saves the current state of the pixel grid to the state manager
     // (for undo/redo)
     // called after every action that changes the pixel grid (drawing, filling...)
-    private void saveLocalState(Color[][] oldPixelGrid, Color[][] newPixelGrid) {
-        stateManager.SaveLocalState(currentLayer, oldPixelGrid, newPixelGrid);
+    // marks a w x h block of pixels at (x, y) as changed and repaints just that part of the canvas
+    private void markDirty(int x, int y, int w, int h) {
+        compositeManager.MarkDirty(x, y, w, h);
+        repaintCells(y, x, h, w);
     }
 
-    private void saveGlobalState(GlobalStateModel.Op op, int newWidth, int newHeight, int oldWidth, int oldHeight) {
-        stateManager.SaveGlobalState(op, newWidth, newHeight, oldWidth, oldHeight);
+    private void saveLocalState(PixelBuffer oldPixelGrid, PixelBuffer newPixelGrid) {
+        stateManager.SaveLocalState(layerManager.GetLayerPos(currentLayer), oldPixelGrid, newPixelGrid);
     }
 
-    private void saveGlobalState(LayerStateModel lsm, GlobalStateModel.Op op, int newWidth, int newHeight, int oldWidth, int oldHeight) {
-        stateManager.SaveGlobalState(lsm, op, newWidth, newHeight, oldWidth, oldHeight);
+    private void saveGlobalState(GlobalStateModel.Op op, int newWidth, int newHeight, int oldWidth, int oldHeight) {
+        stateManager.SaveGlobalState(op, newWidth, newHeight, oldWidth, oldHeight);
     }
 
     private void saveLayerState(LayerManager prevLayerManager, LayerManager newLayerManager, int oldLayerNum, int newLayerNum) {        
@@ -834,29 +999,23 @@ public class CanvasPanel extends JPanel {
     }
 
     // Copy pixel grid - canvas version of ImageController.ClonePixelGrid
-    public Color[][] getPixelGridCopy() {
-        Color[][] copy = new Color[ROWS][COLS];
-        for (int i = 0; i < ROWS; i++) {
-            for (int j = 0; j < COLS; j++) {
-                Color c = pixelGrid[i][j];
-                copy[i][j] = new Color(c.getRed(), c.getGreen(), c.getBlue(), c.getAlpha());
-            }
-        }
-        return copy;
+    public PixelBuffer getPixelGridCopy() {
+        return pixelGrid.clone();
     }
 
     //Loads a block texture from a PNG file, resets history, and tracks its name.
     public void loadBlockTexture(File file) {
         try {
             //import pixel grid from PNG
-            Color[][] importedGrid = ImageController.ImportImage(file.getAbsolutePath());
+            PixelBuffer importedGrid = ImageController.ImportImage(file.getAbsolutePath());
             // Update canvas dimensions and grid
             setImageGrid(importedGrid);
             //reinitialise layer manager to match new grid
             this.layerManager = new LayerManager(importedGrid);
             this.currentLayer = layerManager.FindLayer(0);
+            compositeManager.SetLayerManager(layerManager);
             //reset undo/redo history for the new grid size
-            stateManager = new StateManager(currentLayer);
+            stateManager.ResetStates();
             //save initial loaded state
             // saveLayerState(layerManager, layerManager);
             //record block name (without .png)
@@ -124,6 +124,8 @@ public class MainMenu {
             }
         });
 
+        // the image is read in the background so the menu doesn't freeze on big files
+        OperationExecutor operations = new OperationExecutor(frame);
         loadButton.addActionListener(e -> {
             System.out.println("LOAD button clicked!");
             JFileChooser fileChooser = new JFileChooser();
@@ -131,11 +133,10 @@ public class MainMenu {
             
             if (result == JFileChooser.APPROVE_OPTION) {
                 java.io.File file = fileChooser.getSelectedFile();
-                try {
-                    // Import the image into a Color[][] grid
-                    Color[][] grid = g82.controllers.ImageController.ImportImage(file.getAbsolutePath());
-                    int rows = grid.length;
-                    int cols = grid[0].length;
+                // Import the image into a PixelBuffer grid
+                operations.Execute("Loading image", progress -> g82.controllers.ImageController.ReadImage(file.getAbsolutePath()), grid -> {
+                    int rows = grid.getHeight();
+                    int cols = grid.getWidth();
         
                     // Estimate grid size (you can adjust this logic if needed)
                     int gridSize = (int) (1024.0 / (rows * 2));
@@ -150,9 +151,7 @@ public class MainMenu {
                     mainWindow.getCanvasPanel().setImageGrid(grid); // see next step
         
                     frame.dispose(); // close main menu
-                } catch (Exception ex) {
-                    JOptionPane.showMessageDialog(frame, "Failed to load image: " + ex.getMessage());
-                }
+                });
             }
         });
 
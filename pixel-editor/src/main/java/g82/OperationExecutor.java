@@ -0,0 +1,137 @@
+package g82;
+
+import java.awt.Component;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+// Runs slow operations (blur, resize, rotate, crop, opening images...) on a SwingWorker so the UI doesn't freeze.
+// The operation should work on a snapshot of the document, cheap since PixelBuffers share tiles until written to,
+// and its result is swapped in on the event dispatch thread once it's finished, so the document is never half changed.
+// A ProgressMonitor pops up if it's taking a while and can cancel it, the result is then just dropped.
+// Only one operation runs at a time, CanvasPanel ignores edits while one is running.
+public class OperationExecutor {
+    private static final int POLL_MILLIS = 100;
+    private final Component parent;
+    private Worker<?> running;
+
+    // the work done in the background
+    public interface Operation<T> {
+        T Run(Progress progress) throws Exception;
+    }
+
+    // what's done with the result, on the event dispatch thread
+    public interface Result<T> {
+        void Apply(T result) throws Exception;
+    }
+
+    // lets the operation say how far it's got, and stops it once it's been cancelled
+    public static class Progress {
+        private final Worker<?> worker;
+
+        private Progress(Worker<?> worker) {
+            this.worker = worker;
+        }
+
+        /**
+         * @param done - steps finished so far, out of total
+         * @throws CancellationException - if the user cancelled, the operation should just let it through
+         */
+        public void Step(int done, int total) {
+            if (this.worker.isCancelled()) {
+                throw new CancellationException();
+            }
+            this.worker.Report(total <= 0 ? 0 : Math.min(100, done * 100 / total));
+        }
+    }
+
+    public OperationExecutor(Component parent) {
+        this.parent = parent;
+    }
+
+    public boolean IsBusy() {
+        return this.running != null;
+    }
+
+    /**
+     * Starts an operation, must be called on the event dispatch thread
+     * @param name - shown in the progress dialog and any error message
+     * @param operation - run in the background, must not change the document
+     * @param result - applies what the operation returned to the document and saves the history state
+     * @return - false if another operation is still running, nothing is started
+     */
+    public <T> boolean Execute(String name, Operation<T> operation, Result<T> result) {
+        if (IsBusy()) {
+            return false;
+        }
+
+        Worker<T> worker = new Worker<>(name, operation, result);
+        this.running = worker;
+        worker.execute();
+        return true;
+    }
+
+    public void Cancel() {
+        if (this.running != null) {
+            this.running.cancel(false);
+        }
+    }
+
+    private class Worker<T> extends SwingWorker<T, Void> {
+        private final String name;
+        private final Operation<T> operation;
+        private final Result<T> result;
+        private final ProgressMonitor monitor;
+        private final Timer poll;
+
+        Worker(String name, Operation<T> operation, Result<T> result) {
+            this.name = name;
+            this.operation = operation;
+            this.result = result;
+            this.monitor = new ProgressMonitor(parent, name, null, 0, 100);
+            this.monitor.setMillisToDecideToPopup(POLL_MILLIS);
+            // the monitor only pops up (and only notices cancel) when its progress is set, so keep setting it
+            this.poll = new Timer(POLL_MILLIS, e -> {
+                if (this.monitor.isCanceled()) {
+                    cancel(false);
+                } else {
+                    this.monitor.setProgress(Math.min(getProgress(), 99));
+                }
+            });
+            this.poll.start();
+        }
+
+        void Report(int percent) {
+            setProgress(percent);
+        }
+
+        @Override
+        protected T doInBackground() throws Exception {
+            return this.operation.Run(new Progress(this));
+        }
+
+        @Override
+        protected void done() {
+            this.poll.stop();
+            this.monitor.close();
+            running = null;
+            if (isCancelled()) {
+                return;
+            }
+
+            try {
+                this.result.Apply(get());
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof CancellationException)) {
+                    JOptionPane.showMessageDialog(parent, this.name + " failed due to: " + e.getCause().getMessage());
+                }
+            } catch (Exception e) {
+                JOptionPane.showMessageDialog(parent, this.name + " failed due to: " + e.getMessage());
+            }
+        }
+    }
+}
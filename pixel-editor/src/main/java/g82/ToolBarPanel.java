@@ -10,6 +10,7 @@ import java.net.URL;
 import javax.swing.BoxLayout;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
@@ -176,10 +177,20 @@ public class ToolBarPanel extends JToolBar {
             highlightSelectedButton(pickerButton);
         });
 
+        // picks the average colour of the crop selection, or of the whole canvas if nothing's selected
+        JButton averageButton = createToolButton("/editor-icons/picker.png", "Average Colour");
+        averageButton.addActionListener(e -> {
+            Color average = canvas.getAverageColour();
+            canvas.setCurrentColour(average);
+            averageButton.setToolTipText(String.format("Average Colour: R %d, G %d, B %d, A %d",
+                                         average.getRed(), average.getGreen(), average.getBlue(), average.getAlpha()));
+        });
+
         panel.add(brushButton);
         panel.add(fillButton);
         panel.add(eraseButton);
         panel.add(pickerButton);
+        panel.add(averageButton);
         return panel;
     }
 
@@ -210,10 +221,32 @@ public class ToolBarPanel extends JToolBar {
         
         JButton blurButton = createToolButton("/editor-icons/blur.png", "Blur");
         JButton sharpenButton = createToolButton("/editor-icons/sharpen.png", "Sharpen");
+
+        // how far the blur spreads each way, 1 is the old 3x3 blur
+        JLabel radiusLabel = new JLabel("Blur Radius:");
+        radiusLabel.setForeground(Color.BLACK);
+
+        JSlider radiusSlider = new JSlider(1, 8, 1);
+        radiusSlider.setOpaque(false);
+        radiusSlider.setPreferredSize(new Dimension(120, 30));
+        radiusSlider.setPaintTicks(true);
+        radiusSlider.setPaintLabels(true);
+        radiusSlider.setMinorTickSpacing(1);
+
+        // a box blur costs the same at any radius, the Gaussian is smoother
+        JComboBox<String> blurType = new JComboBox<>(new String[] { "Gaussian", "Box" });
         
-        blurButton.addActionListener(e -> canvas.blurImage());
+        blurButton.addActionListener(e -> {
+            if (blurType.getSelectedItem().equals("Box"))
+                canvas.boxBlurImage(radiusSlider.getValue());
+            else
+                canvas.blurImage(radiusSlider.getValue());
+        });
         sharpenButton.addActionListener(e -> canvas.sharpenImage());
         
+        panel.add(radiusLabel);
+        panel.add(radiusSlider);
+        panel.add(blurType);
         panel.add(blurButton);
         panel.add(sharpenButton);
         return panel;
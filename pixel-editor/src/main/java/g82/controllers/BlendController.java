@@ -0,0 +1,112 @@
+package g82.controllers;
+
+import java.util.Arrays;
+
+// Integer Porter-Duff "over" compositing on rows of packed ARGB pixels, used by LayerManager.
+// While blending, colours are kept premultiplied by alpha so stacking a layer is a multiply and a shift
+// rather than a divide: alpha is 16.16 fixed point (ONE = 1 << 16) and a premultiplied channel is colour * alpha,
+// so it keeps 16 fractional bits too and low alpha pixels don't lose their colour.
+// A row being composited is held in an accumulator of 4 planes {r, g, b, a}, each stride ints apart,
+// so pixel p's red is acc[off + p] and its alpha acc[3 * stride + off + p]. Keeping each channel contiguous
+// lets VectorController work on a whole vector of pixels at once, when it is enabled it does the bulk of
+// each row and the loops below only finish the remainder.
+public class BlendController {
+    public static final int ONE = 1 << 16;
+    private static final int HALF = ONE >> 1;
+
+    // Layer opacity as 1.15 fixed point, what BlendRowOver takes
+    public static int OpacityToFixed(float opacity) {
+        return Math.round(opacity * (1 << 15));
+    }
+
+    // A pixel's 8 bit alpha as fixed point alpha with the layer's opacity applied.
+    // a * 257 + (a >> 7) maps 0-255 onto 0-ONE without dividing by 255, the product is at most 2^31
+    // so it is shifted unsigned
+    static int SourceAlpha(int a, int opacity) {
+        return ((a * 257 + (a >> 7)) * opacity + (1 << 14)) >>> 15;
+    }
+
+    // (acc * f) >> 16 rounded, for acc up to 255 << 16 and f up to ONE, without needing a long:
+    // the low half of acc times f can reach 2^32 - 2^16 which still fits an int read as unsigned
+    static int MulFixed(int acc, int f) {
+        return (acc >>> 16) * f + (((acc & 0xFFFF) * f + HALF) >>> 16);
+    }
+
+    // empties n pixels of the accumulator starting at pixel accOff
+    public static void ClearRow(int[] acc, int stride, int accOff, int n) {
+        for (int c = 0; c < 4; c++) {
+            Arrays.fill(acc, c * stride + accOff, c * stride + accOff + n, 0);
+        }
+    }
+
+    // copies n pixels of one accumulator into another
+    public static void CopyRow(int[] src, int srcStride, int srcOff, int[] acc, int stride, int accOff, int n) {
+        for (int c = 0; c < 4; c++) {
+            System.arraycopy(src, c * srcStride + srcOff, acc, c * stride + accOff, n);
+        }
+    }
+
+    // Layers n packed ARGB pixels from src on top of the accumulator
+    // RRGB = SRGB * SA + DRGB * (1 - SA), RA = SA + DA * (1 - SA) with RGB premultiplied
+    // opacity - from OpacityToFixed
+    public static void BlendRowOver(int[] acc, int stride, int accOff, int[] src, int srcOff, int n, int opacity) {
+        int p = VectorController.IsEnabled() ? VectorController.BlendRowOver(acc, stride, accOff, src, srcOff, n, opacity) : 0;
+        for (; p < n; p++) {
+            int px = src[srcOff + p];
+            int sa = SourceAlpha(px >>> 24, opacity);
+            if (sa == 0) continue;
+
+            int k = accOff + p;
+            if (sa == ONE) { // opaque pixels just replace what's underneath
+                acc[k] = ((px >> 16) & 0xFF) << 16;
+                acc[stride + k] = ((px >> 8) & 0xFF) << 16;
+                acc[2 * stride + k] = (px & 0xFF) << 16;
+                acc[3 * stride + k] = ONE;
+                continue;
+            }
+
+            int inv = ONE - sa;
+            acc[k] = ((px >> 16) & 0xFF) * sa + MulFixed(acc[k], inv);
+            acc[stride + k] = ((px >> 8) & 0xFF) * sa + MulFixed(acc[stride + k], inv);
+            acc[2 * stride + k] = (px & 0xFF) * sa + MulFixed(acc[2 * stride + k], inv);
+            acc[3 * stride + k] = sa + MulFixed(acc[3 * stride + k], inv);
+        }
+    }
+
+    // Layers n pixels of another accumulator (e.g. a cached group of already flattened layers) on top of acc
+    public static void BlendPremultipliedRowOver(int[] acc, int stride, int accOff, int[] src, int srcStride, int srcOff, int n) {
+        int p = VectorController.IsEnabled() ? VectorController.BlendPremultipliedRowOver(acc, stride, accOff, src, srcStride, srcOff, n) : 0;
+        for (; p < n; p++) {
+            int s = srcOff + p;
+            int sa = src[3 * srcStride + s];
+            if (sa == 0) continue;
+
+            int k = accOff + p;
+            int inv = ONE - sa;
+            acc[k] = src[s] + MulFixed(acc[k], inv);
+            acc[stride + k] = src[srcStride + s] + MulFixed(acc[stride + k], inv);
+            acc[2 * stride + k] = src[2 * srcStride + s] + MulFixed(acc[2 * stride + k], inv);
+            acc[3 * stride + k] = sa + MulFixed(acc[3 * stride + k], inv);
+        }
+    }
+
+    // Converts n pixels of the accumulator back to packed, non premultiplied ARGB.
+    // Opaque pixels only need a shift, the divide is left for partly transparent results.
+    public static void ResolveRow(int[] acc, int stride, int accOff, int[] dst, int dstOff, int n) {
+        int p = VectorController.IsEnabled() ? VectorController.ResolveRow(acc, stride, accOff, dst, dstOff, n) : 0;
+        for (; p < n; p++) {
+            int k = accOff + p;
+            int a = acc[3 * stride + k];
+            if (a == 0) {
+                dst[dstOff + p] = 0;
+            } else if (a == ONE) {
+                dst[dstOff + p] = 0xFF000000 | (acc[k] >> 16) << 16 | (acc[stride + k] >> 16) << 8 | (acc[2 * stride + k] >> 16);
+            } else {
+                int r = Math.min(255, acc[k] / a);
+                int g = Math.min(255, acc[stride + k] / a);
+                int b = Math.min(255, acc[2 * stride + k] / a);
+                dst[dstOff + p] = ((a * 255) >> 16) << 24 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package g82.controllers;
+
+import java.util.Arrays;
+
+import g82.models.PixelBuffer;
+import g82.models.SummedAreaTable;
+
+// Convolution engine behind ImageController.Blur and Sharpen, kernels can be any odd size.
+// Separable kernels (Gaussian, box...) are split into a vertical and a horizontal 1-D kernel and run as two passes,
+// O(r) per pixel instead of O(r^2), anything else is convolved directly, or through FFTController if the kernel is big.
+// Big box kernels (every tap the same) are averaged out of a SummedAreaTable instead, O(1) per pixel.
+// Taps that fall outside the image are left out and the rest are scaled up so they still add up to the kernel's total,
+// so the edges don't fade. The channels of each band of rows are unpacked into double planes once rather than per tap.
+public class ConvolutionController {
+    private static final double EPSILON = 1e-9;
+    // Kernels that can't be separated go through FFTController from this many taps (13x13), below it the direct
+    // path was quicker on 800x800, smaller images pad out proportionally more so break even a little later
+    private static final int FFT_MIN_AREA = 13 * 13;
+    // box kernels from this many taps go through a SummedAreaTable, below it two passes were as quick on 800x800
+    private static final int BOX_MIN_AREA = 5 * 5;
+    private static final int[] SHIFTS = {24, 16, 8, 0}; // a, r, g, b
+
+    /**
+     * @param kernel - odd number of rows and columns, centred on the pixel
+     */
+    public static PixelBuffer Convolve(PixelBuffer src, double[][] kernel) {
+        return Convolve(src, kernel, null);
+    }
+
+    /**
+     * @param kernel - odd number of rows and columns, centred on the pixel
+     * @param progress - may be null, told how far it's got and can stop it by throwing
+     */
+    public static PixelBuffer Convolve(PixelBuffer src, double[][] kernel, ParallelController.Progress progress) {
+        CheckKernel(kernel);
+        if (kernel.length * kernel[0].length >= BOX_MIN_AREA && IsBox(kernel)) {
+            return ConvolveBox(src, kernel.length / 2, kernel[0].length / 2, kernel.length * kernel[0].length * kernel[0][0], progress);
+        }
+
+        double[][] parts = Separate(kernel);
+        if (parts != null) {
+            return ConvolveSeparable(src, parts[0], parts[1], progress);
+        }
+        if (kernel.length * kernel[0].length >= FFT_MIN_AREA) {
+            return FFTController.Convolve(src, kernel, progress);
+        }
+        return ConvolveDirect(src, kernel, progress);
+    }
+
+    /**
+     * Splits a kernel into a column and a row whose product is the kernel, if there are any
+     * @return - {vertical, horizontal}, or null if the kernel isn't separable
+     */
+    public static double[][] Separate(double[][] kernel) {
+        // the biggest tap as the pivot keeps the division accurate
+        int p = 0;
+        int q = 0;
+        for (int i = 0; i < kernel.length; i++) {
+            for (int j = 0; j < kernel[i].length; j++) {
+                if (Math.abs(kernel[i][j]) > Math.abs(kernel[p][q])) {
+                    p = i;
+                    q = j;
+                }
+            }
+        }
+
+        double pivot = kernel[p][q];
+        double[] vertical = new double[kernel.length];
+        double[] horizontal = new double[kernel[0].length];
+        if (pivot == 0) {
+            return new double[][] {vertical, horizontal}; // all zeros
+        }
+
+        for (int i = 0; i < vertical.length; i++) {
+            vertical[i] = kernel[i][q];
+        }
+        for (int j = 0; j < horizontal.length; j++) {
+            horizontal[j] = kernel[p][j] / pivot;
+        }
+
+        double tolerance = EPSILON * Math.max(1, Math.abs(pivot));
+        for (int i = 0; i < vertical.length; i++) {
+            for (int j = 0; j < horizontal.length; j++) {
+                if (Math.abs(kernel[i][j] - vertical[i] * horizontal[j]) > tolerance) {
+                    return null;
+                }
+            }
+        }
+        return new double[][] {vertical, horizontal};
+    }
+
+    // Binomial approximation of a Gaussian with 2 * radius + 1 taps adding up to 1, radius 1 is {1/4, 1/2, 1/4}
+    public static double[] GaussianKernel(int radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("Invalid blur radius " + radius);
+        }
+
+        // rows of Pascal's triangle, halved each time so they always add up to 1
+        double[] kernel = new double[2 * radius + 1];
+        kernel[0] = 1;
+        for (int n = 1; n <= 2 * radius; n++) {
+            for (int k = n; k > 0; k--) {
+                kernel[k] = (kernel[k] + kernel[k - 1]) / 2;
+            }
+            kernel[0] /= 2;
+        }
+        return kernel;
+    }
+
+    /**
+     * Two 1-D passes, horizontal then vertical
+     * @param vertical - odd length, applied down the columns
+     * @param horizontal - odd length, applied along the rows
+     */
+    public static PixelBuffer ConvolveSeparable(PixelBuffer src, double[] vertical, double[] horizontal) {
+        return ConvolveSeparable(src, vertical, horizontal, null);
+    }
+
+    // progress may be null
+    public static PixelBuffer ConvolveSeparable(PixelBuffer src, double[] vertical, double[] horizontal,
+                                                ParallelController.Progress progress) {
+        if (vertical.length % 2 == 0 || horizontal.length % 2 == 0) {
+            throw new IllegalArgumentException("Kernels must have an odd number of taps");
+        }
+
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int rv = vertical.length / 2;
+        int rh = horizontal.length / 2;
+        double[] colScales = EdgeScales(horizontal, width);
+        double[] rowScales = EdgeScales(vertical, height);
+        PixelBuffer dst = new PixelBuffer(width, height);
+
+        ParallelController.ForRows(height, width, (from, to) -> {
+            // the horizontal pass is done for the rows the band's vertical pass reads
+            int top = Math.max(0, from - rv);
+            int bottom = Math.min(height, to + rv);
+            double[][] planes = new double[4][(bottom - top) * width];
+            double[][] unpacked = new double[4][width];
+            int[] row = new int[width];
+            for (int i = top; i < bottom; i++) {
+                src.getRow(i, row, 0);
+                Unpack(row, unpacked, 0, width);
+                int o = (i - top) * width;
+                for (int c = 0; c < 4; c++) {
+                    double[] in = unpacked[c];
+                    double[] out = planes[c];
+                    for (int l = -rh; l <= rh; l++) {
+                        double w = horizontal[l + rh];
+                        if (w == 0) continue;
+                        // only the columns whose tap l is inside the row
+                        int jFrom = Math.max(0, -l);
+                        int jTo = Math.min(width, width - l);
+                        for (int j = jFrom; j < jTo; j++) {
+                            out[o + j] += w * in[j + l];
+                        }
+                    }
+                    for (int j = 0; j < width; j++) {
+                        out[o + j] *= colScales[j];
+                    }
+                }
+            }
+
+            double[] sum = new double[width];
+            for (int i = from; i < to; i++) {
+                int kFrom = Math.max(-rv, -i);
+                int kTo = Math.min(rv, height - 1 - i);
+                for (int c = 0; c < 4; c++) {
+                    Arrays.fill(sum, 0);
+                    for (int k = kFrom; k <= kTo; k++) {
+                        double w = vertical[k + rv];
+                        if (w == 0) continue;
+                        int o = (i + k - top) * width;
+                        double[] in = planes[c];
+                        for (int j = 0; j < width; j++) {
+                            sum[j] += w * in[o + j];
+                        }
+                    }
+                    for (int j = 0; j < width; j++) {
+                        int v = (int) Math.round(Clamp(sum[j] * rowScales[i]));
+                        row[j] = c == 0 ? v << SHIFTS[c] : row[j] | (v << SHIFTS[c]);
+                    }
+                }
+                dst.setRow(i, row, 0);
+            }
+        }, progress);
+
+        return dst;
+    }
+
+    /**
+     * Box filter through a summed-area table, O(1) per pixel whatever the size
+     * @param rowRadius, colRadius - the box is 2 * radius + 1 pixels high and wide
+     * @param total - what the box's taps add up to, 1 for an average
+     */
+    public static PixelBuffer ConvolveBox(PixelBuffer src, int rowRadius, int colRadius, double total) {
+        return ConvolveBox(src, rowRadius, colRadius, total, null);
+    }
+
+    // progress may be null
+    public static PixelBuffer ConvolveBox(PixelBuffer src, int rowRadius, int colRadius, double total,
+                                          ParallelController.Progress progress) {
+        if (rowRadius < 0 || colRadius < 0) {
+            throw new IllegalArgumentException("Invalid box radius " + rowRadius + "x" + colRadius);
+        }
+
+        int width = src.getWidth();
+        int height = src.getHeight();
+        SummedAreaTable table = new SummedAreaTable(src);
+        PixelBuffer dst = new PixelBuffer(width, height);
+
+        ParallelController.ForRows(height, width, (from, to) -> {
+            int[] row = new int[width];
+            for (int i = from; i < to; i++) {
+                int row1 = Math.max(0, i - rowRadius);
+                int row2 = Math.min(height - 1, i + rowRadius);
+                for (int j = 0; j < width; j++) {
+                    int col1 = Math.max(0, j - colRadius);
+                    int col2 = Math.min(width - 1, j + colRadius);
+                    // the box clipped to the image, which is the same as scaling the in-bounds taps up
+                    double scale = total / ((double) (row2 - row1 + 1) * (col2 - col1 + 1));
+                    int px = 0;
+                    for (int c = 0; c < 4; c++) {
+                        px |= (int) Math.round(Clamp(table.getSum(c, row1, col1, row2, col2) * scale)) << SHIFTS[c];
+                    }
+                    row[j] = px;
+                }
+                dst.setRow(i, row, 0);
+            }
+        }, progress);
+
+        return dst;
+    }
+
+    // Every tap of every pixel, for kernels that can't be separated. 3x3 kernels go through VectorController
+    // for the pixels away from the edges if it's enabled.
+    private static PixelBuffer ConvolveDirect(PixelBuffer src, double[][] kernel, ParallelController.Progress progress) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int rk = kernel.length / 2;
+        int rl = kernel[0].length / 2;
+        double total = 0;
+        for (double[] kernelRow : kernel) {
+            for (double w : kernelRow) {
+                total += w;
+            }
+        }
+        double kernelTotal = total;
+        PixelBuffer dst = new PixelBuffer(width, height);
+
+        ParallelController.ForRows(height, width, (from, to) -> {
+            // pixels with their whole neighbourhood in bounds can go through the SIMD kernel
+            int vectorCols = 1;
+            int innerFrom = Math.max(from, 1);
+            int innerTo = Math.min(to, height - 1);
+            if (rk == 1 && rl == 1 && VectorController.IsEnabled() && innerFrom < innerTo) {
+                vectorCols = VectorController.Convolve3x3(src, kernel, dst, innerFrom, innerTo, 1, width - 1);
+            }
+
+            int top = Math.max(0, from - rk);
+            int bottom = Math.min(height, to + rk);
+            double[][] planes = new double[4][(bottom - top) * width];
+            int[] row = new int[width];
+            for (int i = top; i < bottom; i++) {
+                src.getRow(i, row, 0);
+                Unpack(row, planes, (i - top) * width, width);
+            }
+
+            for (int i = from; i < to; i++) {
+                if (i > 0 && i < height - 1 && vectorCols > 1) {
+                    // columns 1 to vectorCols are already done
+                    row[0] = ConvolvePixel(planes, top, width, height, kernel, kernelTotal, i, 0);
+                    dst.setRow(i, 0, 1, row, 0);
+                    for (int j = vectorCols; j < width; j++) {
+                        row[j] = ConvolvePixel(planes, top, width, height, kernel, kernelTotal, i, j);
+                    }
+                    dst.setRow(i, vectorCols, width - vectorCols, row, vectorCols);
+                    continue;
+                }
+
+                for (int j = 0; j < width; j++) {
+                    row[j] = ConvolvePixel(planes, top, width, height, kernel, kernelTotal, i, j);
+                }
+                dst.setRow(i, row, 0);
+            }
+        }, progress);
+
+        return dst;
+    }
+
+    private static int ConvolvePixel(double[][] planes, int top, int width, int height, double[][] kernel, double total, int i, int j) {
+        int rk = kernel.length / 2;
+        int rl = kernel[0].length / 2;
+        double[] sums = new double[4];
+        // track the weight of taps outside the image so the rest can be scaled up to make up for it
+        double outOfBounds = 0;
+        for (int k = -rk; k <= rk; k++) {
+            if (i + k < 0 || i + k >= height) {
+                for (double w : kernel[k + rk]) {
+                    outOfBounds += w;
+                }
+                continue;
+            }
+
+            int o = (i + k - top) * width;
+            for (int l = -rl; l <= rl; l++) {
+                double w = kernel[k + rk][l + rl];
+                if (j + l < 0 || j + l >= width) {
+                    outOfBounds += w;
+                    continue;
+                }
+
+                for (int c = 0; c < 4; c++) {
+                    sums[c] += planes[c][o + j + l] * w;
+                }
+            }
+        }
+
+        double inBounds = total - outOfBounds;
+        double scale = Math.abs(inBounds) > EPSILON && Math.abs(total) > EPSILON ? total / inBounds : 1;
+        int px = 0;
+        for (int c = 0; c < 4; c++) {
+            px |= (int) Math.round(Clamp(sums[c] * scale)) << SHIFTS[c];
+        }
+        return px;
+    }
+
+    // for each position along a row or column, what the in-bounds taps are scaled by to add up to the kernel's total
+    private static double[] EdgeScales(double[] kernel, int size) {
+        int r = kernel.length / 2;
+        double total = 0;
+        for (double w : kernel) {
+            total += w;
+        }
+
+        double[] scales = new double[size];
+        for (int p = 0; p < size; p++) {
+            double inBounds = 0;
+            for (int l = Math.max(-r, -p); l <= Math.min(r, size - 1 - p); l++) {
+                inBounds += kernel[l + r];
+            }
+            scales[p] = Math.abs(inBounds) > EPSILON && Math.abs(total) > EPSILON ? total / inBounds : 1;
+        }
+        return scales;
+    }
+
+    private static void Unpack(int[] row, double[][] planes, int off, int width) {
+        for (int j = 0; j < width; j++) {
+            int px = row[j];
+            for (int c = 0; c < 4; c++) {
+                planes[c][off + j] = (px >>> SHIFTS[c]) & 0xFF;
+            }
+        }
+    }
+
+    private static double Clamp(double c) {
+        return Math.max(0, Math.min(255, c));
+    }
+
+    // every tap the same and not zero
+    private static boolean IsBox(double[][] kernel) {
+        double w = kernel[0][0];
+        if (w == 0) return false;
+        for (double[] row : kernel) {
+            for (double tap : row) {
+                if (tap != w) return false;
+            }
+        }
+        return true;
+    }
+
+    private static void CheckKernel(double[][] kernel) {
+        if (kernel.length % 2 == 0 || kernel[0].length % 2 == 0) {
+            throw new IllegalArgumentException("Kernels must have an odd number of rows and columns");
+        }
+        for (double[] row : kernel) {
+            if (row.length != kernel[0].length) {
+                throw new IllegalArgumentException("Kernel rows must all be the same length");
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package g82.controllers;
+
+import java.util.Arrays;
+
+import g82.models.PixelBuffer;
+
+// Convolution through the frequency domain for big kernels that can't be separated, where doing every tap
+// directly costs kernel area per pixel. The image and kernel are zero padded to powers of two, transformed with
+// a radix-2 FFT, multiplied and transformed back, so the cost no longer depends on the kernel size.
+// Two channels go through each complex transform, one as the real part and one as the imaginary part, which works
+// since the kernel is real. Zero padding leaves out the taps outside the image like the direct path, and the kernel's
+// summed-area table gives the in-bounds weight to scale each pixel back up by.
+// ConvolutionController decides when it's worth it.
+public class FFTController {
+    private static final double EPSILON = 1e-9;
+    private static final int[] SHIFTS = {24, 16, 8, 0}; // a, r, g, b
+    private static final int COLUMN_BLOCK = 16;
+    private static final int STAGES = 4;
+
+    /**
+     * Same result as ConvolutionController's direct path, within rounding
+     * @param kernel - odd number of rows and columns, centred on the pixel
+     */
+    public static PixelBuffer Convolve(PixelBuffer src, double[][] kernel) {
+        return Convolve(src, kernel, null);
+    }
+
+    /**
+     * @param progress - may be null, told as each transform finishes and for each band of the output
+     */
+    public static PixelBuffer Convolve(PixelBuffer src, double[][] kernel, ParallelController.Progress progress) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int rk = kernel.length / 2;
+        int rl = kernel[0].length / 2;
+        // enough padding that the kernel never wraps round onto the other side of the image
+        int n = PowerOfTwo(width + kernel[0].length - 1);
+        int m = PowerOfTwo(height + kernel.length - 1);
+        Plan rowPlan = new Plan(n);
+        Plan colPlan = m == n ? rowPlan : new Plan(m);
+
+        // flipped, since the kernel is applied as a correlation, and centred on (0, 0) with wrap round
+        double[] kernelRe = new double[m * n];
+        double[] kernelIm = new double[m * n];
+        for (int k = -rk; k <= rk; k++) {
+            for (int l = -rl; l <= rl; l++) {
+                kernelRe[Math.floorMod(-k, m) * n + Math.floorMod(-l, n)] = kernel[k + rk][l + rl];
+            }
+        }
+        Transform2D(kernelRe, kernelIm, m, n, rowPlan, colPlan, false);
+        Step(progress, 1);
+
+        double[][] channels = new double[4][];
+        double[] re = new double[m * n];
+        double[] im = new double[m * n];
+        int[] row = new int[width];
+        for (int c = 0; c < 4; c += 2) {
+            Arrays.fill(re, 0);
+            Arrays.fill(im, 0);
+            for (int i = 0; i < height; i++) {
+                src.getRow(i, row, 0);
+                int o = i * n;
+                for (int j = 0; j < width; j++) {
+                    re[o + j] = (row[j] >>> SHIFTS[c]) & 0xFF;
+                    im[o + j] = (row[j] >>> SHIFTS[c + 1]) & 0xFF;
+                }
+            }
+
+            Transform2D(re, im, m, n, rowPlan, colPlan, false);
+            for (int p = 0; p < m * n; p++) {
+                double r = re[p] * kernelRe[p] - im[p] * kernelIm[p];
+                im[p] = re[p] * kernelIm[p] + im[p] * kernelRe[p];
+                re[p] = r;
+            }
+            Transform2D(re, im, m, n, rowPlan, colPlan, true);
+            channels[c] = re.clone();
+            channels[c + 1] = im.clone();
+            Step(progress, 2 + c / 2);
+        }
+
+        // the kernel's summed-area table, so the in-bounds part of it can be added up in O(1)
+        int kh = kernel.length;
+        int kw = kernel[0].length;
+        double[] table = new double[(kh + 1) * (kw + 1)];
+        for (int k = 0; k < kh; k++) {
+            for (int l = 0; l < kw; l++) {
+                table[(k + 1) * (kw + 1) + l + 1] = kernel[k][l] + table[k * (kw + 1) + l + 1]
+                                                    + table[(k + 1) * (kw + 1) + l] - table[k * (kw + 1) + l];
+            }
+        }
+        double total = table[table.length - 1];
+
+        PixelBuffer dst = new PixelBuffer(width, height);
+        double scale = 1.0 / ((double) m * n);
+        ParallelController.ForRows(height, width, (from, to) -> {
+            int[] out = new int[width];
+            for (int i = from; i < to; i++) {
+                int kFrom = Math.max(0, rk - i);
+                int kTo = Math.min(kh, rk + height - i);
+                for (int j = 0; j < width; j++) {
+                    int lFrom = Math.max(0, rl - j);
+                    int lTo = Math.min(kw, rl + width - j);
+                    double inBounds = table[kTo * (kw + 1) + lTo] - table[kFrom * (kw + 1) + lTo]
+                                      - table[kTo * (kw + 1) + lFrom] + table[kFrom * (kw + 1) + lFrom];
+                    double edge = Math.abs(inBounds) > EPSILON && Math.abs(total) > EPSILON ? total / inBounds : 1;
+                    int px = 0;
+                    for (int c = 0; c < 4; c++) {
+                        double v = channels[c][i * n + j] * scale * edge;
+                        px |= (int) Math.round(Math.max(0, Math.min(255, v))) << SHIFTS[c];
+                    }
+                    out[j] = px;
+                }
+                dst.setRow(i, out, 0);
+            }
+        }, progress == null ? null : (done, rows) -> Step(progress, STAGES - 1 + (double) done / rows));
+
+        return dst;
+    }
+
+    // stage out of STAGES: the kernel's transform, then each pair of channels forward and back, then the output
+    private static void Step(ParallelController.Progress progress, double stage) {
+        if (progress != null) {
+            progress.Step((int) (stage * 100), STAGES * 100);
+        }
+    }
+
+    // smallest power of two >= size
+    static int PowerOfTwo(int size) {
+        return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
+
+    // rows then columns, the inverse isn't divided by the size
+    private static void Transform2D(double[] re, double[] im, int m, int n, Plan rowPlan, Plan colPlan, boolean inverse) {
+        ParallelController.ForRows(m, n, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                Transform(re, im, i * n, 1, rowPlan, inverse);
+            }
+        });
+        // columns are copied out a block at a time so they can be transformed contiguously
+        ParallelController.ForRows(n, m, (from, to) -> {
+            double[] blockRe = new double[COLUMN_BLOCK * m];
+            double[] blockIm = new double[COLUMN_BLOCK * m];
+            for (int j0 = from; j0 < to; j0 += COLUMN_BLOCK) {
+                int cols = Math.min(COLUMN_BLOCK, to - j0);
+                for (int i = 0; i < m; i++) {
+                    for (int b = 0; b < cols; b++) {
+                        blockRe[b * m + i] = re[i * n + j0 + b];
+                        blockIm[b * m + i] = im[i * n + j0 + b];
+                    }
+                }
+                for (int b = 0; b < cols; b++) {
+                    Transform(blockRe, blockIm, b * m, 1, colPlan, inverse);
+                }
+                for (int i = 0; i < m; i++) {
+                    for (int b = 0; b < cols; b++) {
+                        re[i * n + j0 + b] = blockRe[b * m + i];
+                        im[i * n + j0 + b] = blockIm[b * m + i];
+                    }
+                }
+            }
+        });
+    }
+
+    // In place iterative radix-2 FFT over plan.size values starting at off, stride apart
+    private static void Transform(double[] re, double[] im, int off, int stride, Plan plan, boolean inverse) {
+        int size = plan.size;
+        for (int i = 0; i < size; i++) {
+            int r = plan.reversed[i];
+            if (r > i) {
+                int a = off + i * stride;
+                int b = off + r * stride;
+                double t = re[a];
+                re[a] = re[b];
+                re[b] = t;
+                t = im[a];
+                im[a] = im[b];
+                im[b] = t;
+            }
+        }
+
+        double sign = inverse ? 1 : -1;
+        for (int len = 2; len <= size; len <<= 1) {
+            int half = len >> 1;
+            int step = size / len;
+            for (int start = 0; start < size; start += len) {
+                for (int k = 0; k < half; k++) {
+                    double wr = plan.cos[k * step];
+                    double wi = sign * plan.sin[k * step];
+                    int a = off + (start + k) * stride;
+                    int b = a + half * stride;
+                    double xr = re[b] * wr - im[b] * wi;
+                    double xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+
+    // twiddle factors and bit reversal for one transform size, shared by every row or column
+    private static class Plan {
+        final int size;
+        final double[] cos;
+        final double[] sin;
+        final int[] reversed;
+
+        Plan(int size) {
+            this.size = size;
+            this.cos = new double[Math.max(1, size / 2)];
+            this.sin = new double[Math.max(1, size / 2)];
+            for (int k = 0; k < size / 2; k++) {
+                this.cos[k] = Math.cos(2 * Math.PI * k / size);
+                this.sin[k] = Math.sin(2 * Math.PI * k / size);
+            }
+
+            this.reversed = new int[size];
+            int bits = Integer.numberOfTrailingZeros(size);
+            for (int i = 0; i < size; i++) {
+                this.reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            }
+        }
+    }
+}
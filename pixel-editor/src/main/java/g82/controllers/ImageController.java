@@ -1,16 +1,32 @@
 package g82.controllers;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.File;
 
 import javax.imageio.ImageIO;
 
 import g82.CanvasPanel;
+import g82.models.PixelBuffer;
+import g82.models.SummedAreaTable;
 
 public class ImageController {
+
     // gets image from location and stores as a buffered image
-    public static Color[][] ImportImage(String fileLoc) throws Exception {
+    public static PixelBuffer ImportImage(String fileLoc) throws Exception {
+        PixelBuffer newGrid = ReadImage(fileLoc);
+        if (newGrid.getWidth() == 800 && newGrid.getHeight() == 800) {
+            CanvasPanel.setCols(800);
+            CanvasPanel.setRows(800);
+        } else {
+            CanvasPanel.setCols(newGrid.getHeight());
+            CanvasPanel.setRows(newGrid.getWidth());
+        }
+
+        return newGrid;
+    }
+
+    // Same as ImportImage without touching the canvas, so it can be run off the event dispatch thread
+    public static PixelBuffer ReadImage(String fileLoc) throws Exception {
         if (!fileLoc.endsWith(".png")) {
             throw new Exception("Filename did not include .png suffix");
         }
@@ -21,28 +37,23 @@ public class ImageController {
         }
         BufferedImage img = ImageIO.read(input);
         
-        Color[][] newGrid = new Color[img.getHeight()][img.getWidth()];
-        for (int i = 0; i < img.getWidth(); i++) {
-            for (int j = 0; j < img.getHeight(); j++) {
-                newGrid[j][i] = new Color(img.getRGB(i, j), true);
-            }
+        PixelBuffer newGrid = new PixelBuffer(img.getWidth(), img.getHeight());
+        int[] row = new int[img.getWidth()];
+        for (int j = 0; j < img.getHeight(); j++) {
+            img.getRGB(0, j, img.getWidth(), 1, row, 0, img.getWidth());
+            newGrid.setRow(j, row, 0);
         }
         
         if (img.getHeight() > 800 || img.getWidth() > 800) {
             newGrid = NNIResize(newGrid, 800, 800);
-            CanvasPanel.setCols(800);
-            CanvasPanel.setRows(800);
-        } else {
-            CanvasPanel.setCols(img.getHeight());
-            CanvasPanel.setRows(img.getWidth());
         }
 
         return newGrid;
     }
 
     // stores image at location given, this can be a relative or full path also include .png at end of file name
-    public static void ExportImage2PNG(Color[][] pixelGrid, String fileLoc) throws Exception {
-        if (pixelGrid.length == 0 || pixelGrid[0].length == 0) {
+    public static void ExportImage2PNG(PixelBuffer pixelGrid, String fileLoc) throws Exception {
+        if (pixelGrid.isEmpty()) {
             throw new Exception("Empty pixelGrid");
         }
 
@@ -50,16 +61,14 @@ public class ImageController {
             throw new Exception("Filename did not include .png suffix");
         }
 
-        int width = pixelGrid[0].length;
-        int height = pixelGrid.length;   
+        int width = pixelGrid.getWidth();
+        int height = pixelGrid.getHeight();   
         BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
 
+        int[] row = new int[width];
         for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Color color = pixelGrid[y][x]; 
-                int rgb = color.getRGB();    
-                image.setRGB(x, y, rgb);     
-            }
+            pixelGrid.getRow(y, row, 0);
+            image.setRGB(0, y, width, 1, row, 0, width);
         }
 
         File outputFile = new File(fileLoc);
@@ -68,25 +77,25 @@ public class ImageController {
 
     // Nearest Neighbour Interpolation is now used.
     @Deprecated
-    public static Color[][] IncreaseImageSize(Color[][] pixelGrid, int factor) throws Exception {
-        if (pixelGrid.length == 0 || pixelGrid[0].length == 0) {
-            return new Color[0][0];
+    public static PixelBuffer IncreaseImageSize(PixelBuffer pixelGrid, int factor) throws Exception {
+        if (pixelGrid.isEmpty()) {
+            return new PixelBuffer(0, 0);
         }
     
         if (factor < 1) {
             throw new Exception("Factor out of range");
         }
 
-        int prevHeight = pixelGrid.length;     
-        int prevWidth = pixelGrid[0].length;    
+        int prevHeight = pixelGrid.getHeight();     
+        int prevWidth = pixelGrid.getWidth();    
         int newHeight = prevHeight*factor;
         int newWidth = prevWidth*factor;
-        Color[][] newGrid = new Color[newHeight][newWidth]; 
+        PixelBuffer newGrid = new PixelBuffer(newWidth, newHeight); 
         for (int i = 0; i < prevHeight; i++) {
             for (int j = 0; j < prevWidth; j++) {
                 for (int x = i*factor; x < (i*factor)+factor; x++) {
                     for (int y = j*factor; y < (j*factor)+factor; y++) {
-                        newGrid[x][y] = pixelGrid[i][j];
+                        newGrid.setPixel(x, y, pixelGrid.getPixel(i, j));
                     }
                 }
             }
@@ -96,23 +105,23 @@ public class ImageController {
 
     // Nearest Neighbour Interpolation is now used.
     @Deprecated
-    public static Color[][] DecreaseImageSize(Color[][] pixelGrid, int factor) throws Exception {
-        if (pixelGrid.length == 0 || pixelGrid[0].length == 0) {
-            return new Color[0][0];
+    public static PixelBuffer DecreaseImageSize(PixelBuffer pixelGrid, int factor) throws Exception {
+        if (pixelGrid.isEmpty()) {
+            return new PixelBuffer(0, 0);
         }
     
-        int prevHeight = pixelGrid.length;     
-        int prevWidth = pixelGrid[0].length;    
+        int prevHeight = pixelGrid.getHeight();     
+        int prevWidth = pixelGrid.getWidth();    
         if (factor < 1 || factor > prevHeight || factor > prevWidth || prevWidth % factor != 0 || prevHeight % factor != 0) {
             throw new Exception("Factor out of range or not divisible");
         }
 
         int newHeight = prevHeight/factor;
         int newWidth = prevWidth/factor;
-        Color[][] newGrid = new Color[newHeight][newWidth]; 
+        PixelBuffer newGrid = new PixelBuffer(newWidth, newHeight); 
         for (int i = 0; i < newHeight; i++) {
             for (int j = 0; j < newWidth; j++) {
-                newGrid[i][j] = pixelGrid[i*factor][j*factor];
+                newGrid.setPixel(i, j, pixelGrid.getPixel(i*factor, j*factor));
             }
         }
 
@@ -121,88 +130,89 @@ public class ImageController {
 
     // [0 , 1] -> [0,
     //             1] 
-    public static Color[][] RotateImageRight(Color[][] pixelGrid) {
-        if (pixelGrid.length == 0 || pixelGrid[0].length == 0) {
-            return new Color[0][0];
+    public static PixelBuffer RotateImageRight(PixelBuffer pixelGrid) {
+        if (pixelGrid.isEmpty()) {
+            return new PixelBuffer(0, 0);
         }
-    
-        int prevHeight = pixelGrid.length;     
-        int prevWidth = pixelGrid[0].length;    
-        Color[][] newGrid = new Color[prevWidth][prevHeight]; 
-    
-        for (int i = 0; i < prevHeight; i++) {
-            for (int j = 0; j < prevWidth; j++) {
-                newGrid[j][prevHeight - 1 - i] = pixelGrid[i][j]; 
-            }
-        }
-    
-        return newGrid;
+
+        return Materialised(pixelGrid.rotatedRight());
     }
 
     // [0 , 1] -> [1,
     //             0] 
-    public static Color[][] RotateImageLeft(Color[][] pixelGrid) {
-        if (pixelGrid.length == 0 || pixelGrid[0].length == 0) {
-            return new Color[0][0];
+    public static PixelBuffer RotateImageLeft(PixelBuffer pixelGrid) {
+        if (pixelGrid.isEmpty()) {
+            return new PixelBuffer(0, 0);
         }
-    
-        int prevHeight = pixelGrid.length;     
-        int prevWidth = pixelGrid[0].length;   
-        Color[][] newGrid = new Color[prevWidth][prevHeight]; 
-    
-        for (int i = 0; i < prevHeight; i++) {
-            for (int j = 0; j < prevWidth; j++) {
-                newGrid[prevWidth - 1 - j][i] = pixelGrid[i][j]; 
-            }
+
+        return Materialised(pixelGrid.rotatedLeft());
+    }
+
+    // Mirrors along the diagonal, row i becomes column i
+    public static PixelBuffer Transpose(PixelBuffer pixelGrid) {
+        if (pixelGrid.isEmpty()) {
+            return new PixelBuffer(0, 0);
         }
-    
-        return newGrid;
+
+        return Materialised(pixelGrid.rotatedRight().flippedHorizontal());
+    }
+
+    // The layers are only rotated as views (see Orientation), these lay the pixels out straight away with the same
+    // blocked copy PixelBuffer.materialise does on a view's first edit
+    private static PixelBuffer Materialised(PixelBuffer view) {
+        view.materialise();
+        return view;
     }
 
     // [0, 1] -> [1, 0]
-    public static Color[][] FlipImageHorizontal(Color[][] pixelGrid) {
-        if (pixelGrid.length == 0 || pixelGrid[0].length == 0) {
-            return new Color[0][0];
+    public static PixelBuffer FlipImageHorizontal(PixelBuffer pixelGrid) {
+        if (pixelGrid.isEmpty()) {
+            return new PixelBuffer(0, 0);
         }
     
-        int prevHeight = pixelGrid.length;     
-        int prevWidth = pixelGrid[0].length;   
-        Color[][] newGrid = new Color[prevHeight][prevWidth]; 
+        int prevHeight = pixelGrid.getHeight();     
+        int prevWidth = pixelGrid.getWidth();   
+        PixelBuffer newGrid = new PixelBuffer(prevWidth, prevHeight); 
     
-        for (int i = 0; i < prevHeight; i++) {
-            for (int j = prevWidth - 1; j >= 0; j--) {
-                newGrid[i][prevWidth-1-j] = pixelGrid[i][j]; 
+        ParallelController.ForRows(prevHeight, prevWidth, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                for (int j = prevWidth - 1; j >= 0; j--) {
+                    newGrid.setPixel(i, prevWidth-1-j, pixelGrid.getPixel(i, j)); 
+                }
             }
-        }
+        });
     
         return newGrid;
     }
 
     // [0, -> [1,
     // 1]     0]
-    public static Color[][] FlipImageVertical(Color[][] pixelGrid) {
-        if (pixelGrid.length == 0 || pixelGrid[0].length == 0) {
-            return new Color[0][0];
+    public static PixelBuffer FlipImageVertical(PixelBuffer pixelGrid) {
+        if (pixelGrid.isEmpty()) {
+            return new PixelBuffer(0, 0);
         }
     
-        int prevHeight = pixelGrid.length;     
-        int prevWidth = pixelGrid[0].length;   
-        Color[][] newGrid = new Color[prevHeight][prevWidth]; 
+        int prevHeight = pixelGrid.getHeight();     
+        int prevWidth = pixelGrid.getWidth();   
+        PixelBuffer newGrid = new PixelBuffer(prevWidth, prevHeight); 
     
-        for (int i = prevHeight - 1; i >= 0; i--) {
-            for (int j = 0; j < prevWidth; j++) {
-                newGrid[prevHeight-1-i][j] = pixelGrid[i][j]; 
+        // rows move whole so they can be copied in one go
+        ParallelController.ForRows(prevHeight, prevWidth, (from, to) -> {
+            int[] row = new int[prevWidth];
+            for (int i = from; i < to; i++) {
+                pixelGrid.getRow(i, row, 0);
+                newGrid.setRow(prevHeight-1-i, row, 0); 
             }
-        }
+        });
     
         return newGrid;
     }
 
     // expects coordinates of where the user first sets the crop and where they drag it to.
-    public static Color[][] CropGrid(Color[][] grid, int x1, int y1, int x2, int y2) {
+    public static PixelBuffer CropGrid(PixelBuffer grid, int x1, int y1, int x2, int y2) {
         int newWidth = Math.abs(x1 - x2) + 1;
         int newHeight = Math.abs(y1 - y2) + 1;
-        Color[][] newGrid = new Color[newHeight][newWidth];
+        PixelBuffer newGrid = new PixelBuffer(newWidth, newHeight);
         if (x2 < x1) {
             int tmp = x1;
             x1 = x2;
@@ -215,15 +225,70 @@ public class ImageController {
             y2 = tmp;
         }
 
-        for (int i = x1; i <= x2; i++) {
-            for (int j = y1; j <= y2; j++) {
-                newGrid[j-y1][i-x1] = grid[j][i];
+        int[] row = new int[newWidth];
+        for (int j = y1; j <= y2; j++) {
+            grid.getRow(j, x1, newWidth, row, 0);
+            newGrid.setRow(j-y1, row, 0);
+        }
+
+        return newGrid;
+    }
+
+    /**
+     * The pixels CropGrid throws away, so the crop can be undone without keeping the whole grid
+     * @param x1, y1, x2, y2 - the crop, with x1 <= x2 and y1 <= y2
+     * @return - every pixel outside the crop in row order
+     */
+    public static int[] CropMargins(PixelBuffer grid, int x1, int y1, int x2, int y2) {
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        int right = width - x2 - 1;
+        int[] margins = new int[width * height - (x2 - x1 + 1) * (y2 - y1 + 1)];
+        int[] row = new int[width];
+        int off = 0;
+        for (int i = 0; i < height; i++) {
+            grid.getRow(i, row, 0);
+            if (i < y1 || i > y2) {
+                System.arraycopy(row, 0, margins, off, width);
+                off += width;
+            } else {
+                System.arraycopy(row, 0, margins, off, x1);
+                System.arraycopy(row, x2 + 1, margins, off + x1, right);
+                off += x1 + right;
             }
         }
+        return margins;
+    }
 
+    // Puts a cropped grid back inside the margins CropMargins saved, undoing the crop
+    public static PixelBuffer Uncrop(PixelBuffer cropped, int[] margins, int x1, int y1, int oldWidth, int oldHeight) {
+        int cropWidth = cropped.getWidth();
+        int y2 = y1 + cropped.getHeight() - 1;
+        int right = oldWidth - x1 - cropWidth;
+        PixelBuffer newGrid = new PixelBuffer(oldWidth, oldHeight);
+        int[] row = new int[oldWidth];
+        int off = 0;
+        for (int i = 0; i < oldHeight; i++) {
+            if (i < y1 || i > y2) {
+                System.arraycopy(margins, off, row, 0, oldWidth);
+                off += oldWidth;
+            } else {
+                System.arraycopy(margins, off, row, 0, x1);
+                cropped.getRow(i - y1, row, x1);
+                System.arraycopy(margins, off + x1, row, x1 + cropWidth, right);
+                off += x1 + right;
+            }
+            newGrid.setRow(i, row, 0);
+        }
         return newGrid;
     }
 
+    // Average colour of the pixels between two corners, in the same coordinates as CropGrid.
+    // For lots of queries on the same grid build a SummedAreaTable once and use that
+    public static int AverageColour(PixelBuffer grid, int x1, int y1, int x2, int y2) {
+        return new SummedAreaTable(grid).getMean(Math.min(y1, y2), Math.min(x1, x2), Math.max(y1, y2), Math.max(x1, x2));
+    }
+
     // Gaussian Convolution Kernel
     static public double[][] gConvolution = {
         {1.0 / 16, 1.0 / 8, 1.0 / 16},
@@ -238,93 +303,120 @@ public class ImageController {
     {  -1, -1,  -1 }
     };
 
-    public static Color[][] Blur(Color[][] pixelGrid) { 
-        return KernalOperation(pixelGrid, gConvolution);
-    }
-
-    public static Color[][] Sharpen(Color[][] pixelGrid) { 
-        return KernalOperation(pixelGrid, sConvolution);
-    }
-
-    // Naive implementation of Kernal Convolutions, could be improved by using Fast Fourier Transform (FFT)
-    private static Color[][] KernalOperation(Color[][] pixelGrid, double[][] kernel) { 
-        Color[][] newGrid = new Color[pixelGrid.length][pixelGrid[0].length];
-        for (int i = 0; i < pixelGrid.length; i++) {
-            for (int j = 0; j < pixelGrid[0].length; j++) {
-                double redSum = 0, greenSum = 0, blueSum = 0, alphaSum = 0;
-                 // track out of bound access in order to proportionally apply the kernal convolution so it always totals 1
-                double outOfBounds = 0;
-                for (int k = -1; k <= 1; k++) {
-                    if ((i + k) < 0 || (i + k) >= pixelGrid.length) {
-                        outOfBounds += kernel[k+1][0] + kernel[k+1][1] + kernel[k+1][2];
-                        continue;
-                    } 
-
-                    for (int l = -1; l <= 1; l++) {
-                        if ((j + l) < 0 || (j + l) >= pixelGrid.length) {
-                            outOfBounds += kernel[k+1][l+1];
-                            continue;
-                        } 
-
-                        alphaSum += pixelGrid[i+k][j+l].getAlpha() * kernel[k+1][l+1];
-                        redSum += pixelGrid[i+k][j+l].getRed() * kernel[k+1][l+1];
-                        greenSum += pixelGrid[i+k][j+l].getGreen() * kernel[k+1][l+1];
-                        blueSum += pixelGrid[i+k][j+l].getBlue() * kernel[k+1][l+1];
-                    }
-                }
+    public static PixelBuffer Blur(PixelBuffer pixelGrid) { 
+        return Blur(pixelGrid, (ParallelController.Progress) null);
+    }
 
-                // normalise
-                alphaSum = alphaSum * (1/(1-outOfBounds));
-                redSum = redSum * (1/(1-outOfBounds));  
-                greenSum = greenSum * (1/(1-outOfBounds));
-                blueSum = blueSum * (1/(1-outOfBounds));
-                
-                // bound
-                alphaSum = boundColour(alphaSum);
-                redSum = boundColour(redSum);
-                greenSum = boundColour(greenSum);
-                blueSum = boundColour(blueSum);
-                newGrid[i][j] = new Color(Math.round(Math.round(redSum)), Math.round(Math.round(greenSum)), Math.round(Math.round(blueSum)), Math.round(Math.round(alphaSum)));
-            } 
-        }
+    // progress may be null, it's told how many rows are done and can stop the blur by throwing
+    public static PixelBuffer Blur(PixelBuffer pixelGrid, ParallelController.Progress progress) { 
+        return ConvolutionController.Convolve(pixelGrid, gConvolution, progress);
+    }
 
-        return newGrid;
+    // Gaussian blur over 2 * radius + 1 pixels each way, radius 1 is the same as Blur
+    public static PixelBuffer Blur(PixelBuffer pixelGrid, int radius) { 
+        return Blur(pixelGrid, radius, null);
+    }
+
+    public static PixelBuffer Blur(PixelBuffer pixelGrid, int radius, ParallelController.Progress progress) { 
+        double[] kernel = ConvolutionController.GaussianKernel(radius);
+        return ConvolutionController.ConvolveSeparable(pixelGrid, kernel, kernel, progress);
     }
 
-    private static double boundColour(double c) {
-        if (c > 255)
-            c = 255;
+    // Average over a (2 * radius + 1)^2 box, costs the same whatever the radius
+    public static PixelBuffer BoxBlur(PixelBuffer pixelGrid, int radius) { 
+        return BoxBlur(pixelGrid, radius, null);
+    }
+
+    public static PixelBuffer BoxBlur(PixelBuffer pixelGrid, int radius, ParallelController.Progress progress) { 
+        return ConvolutionController.ConvolveBox(pixelGrid, radius, radius, 1, progress);
+    }
+
+    public static PixelBuffer Sharpen(PixelBuffer pixelGrid) { 
+        return Sharpen(pixelGrid, null);
+    }
 
-        if (c < 0)
-            c = 0;
+    public static PixelBuffer Sharpen(PixelBuffer pixelGrid, ParallelController.Progress progress) { 
+        return ConvolutionController.Convolve(pixelGrid, sConvolution, progress);
+    }
 
-        return c;
+    // packs channel values (0 - 255) into a single ARGB int
+    public static int PackARGB(int a, int r, int g, int b) {
+        return (a << 24) | (r << 16) | (g << 8) | b;
     }
 
     // Nearest Neighbour Interpolation
-    public static Color[][] NNIResize(Color[][] pixelGrid, int newWidth, int newHeight) throws Exception {
+    public static PixelBuffer NNIResize(PixelBuffer pixelGrid, int newWidth, int newHeight) throws Exception {
         if (newWidth > 800 || newHeight > 800) throw new Exception("Resize too large");
-        int oldHeight = pixelGrid.length;
-        int oldWidth = pixelGrid[0].length;
-        double xRatio = (double) oldWidth / newWidth;
-        double yRatio = (double) oldHeight / newHeight;
-        Color[][] newGrid = new Color[newHeight][newWidth];
+        int oldHeight = pixelGrid.getHeight();
+        int oldWidth = pixelGrid.getWidth();
+        int[] srcX = NNISource(oldWidth, newWidth);
+        int[] srcY = NNISource(oldHeight, newHeight);
+        PixelBuffer newGrid = new PixelBuffer(newWidth, newHeight);
+
+        ParallelController.ForRows(newHeight, newWidth, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                for (int j = 0; j < newWidth; j++) {
+                    newGrid.setPixel(i, j, pixelGrid.getPixel(srcY[i], srcX[j]));
+                }
+            }
+        });
 
-        for (int i = 0; i < newHeight; i++) {
-            for (int j = 0; j < newWidth; j++) {
-                int srcX = Math.min(Math.round(Math.round(j * xRatio)), oldWidth - 1);
-                int srcY = Math.min(Math.round(Math.round(i * yRatio)), oldHeight - 1);
-                newGrid[i][j] = pixelGrid[srcY][srcX];
+        return newGrid;
+    }
+
+    // the old row/column NNIResize takes each new one from
+    private static int[] NNISource(int oldSize, int newSize) {
+        double ratio = (double) oldSize / newSize;
+        int[] src = new int[newSize];
+        for (int i = 0; i < newSize; i++) {
+            src[i] = Math.min(Math.round(Math.round(i * ratio)), oldSize - 1);
+        }
+        return src;
+    }
+
+    // A resize loses nothing if every old row and column ends up somewhere in the new grid,
+    // e.g. when it's scaled up, then NNIUnresize can undo it without keeping the old pixels
+    public static boolean IsNNIResizeLossless(int oldWidth, int oldHeight, int newWidth, int newHeight) {
+        return CoversAll(NNISource(oldWidth, newWidth), oldWidth) && CoversAll(NNISource(oldHeight, newHeight), oldHeight);
+    }
+
+    private static boolean CoversAll(int[] src, int oldSize) {
+        boolean[] used = new boolean[oldSize];
+        int count = 0;
+        for (int s : src) {
+            if (!used[s]) {
+                used[s] = true;
+                count++;
             }
         }
+        return count == oldSize;
+    }
 
+    // Undoes a lossless NNIResize, each old pixel is taken back from one of the new pixels it was copied to
+    public static PixelBuffer NNIUnresize(PixelBuffer resized, int oldWidth, int oldHeight) {
+        int[] fromX = NNIInverse(NNISource(oldWidth, resized.getWidth()), oldWidth);
+        int[] fromY = NNIInverse(NNISource(oldHeight, resized.getHeight()), oldHeight);
+        PixelBuffer newGrid = new PixelBuffer(oldWidth, oldHeight);
+        for (int i = 0; i < oldHeight; i++) {
+            for (int j = 0; j < oldWidth; j++) {
+                newGrid.setPixel(i, j, resized.getPixel(fromY[i], fromX[j]));
+            }
+        }
         return newGrid;
     }
 
-    public static void printGrid(Color[][] grid) { // for testing imageController please ignore
-        for (Color[] row : grid) {
-            for (Color pixel : row) {
-                System.out.print((pixel == null ? "NULL" : pixel.getRGB()) + "  ");
+    private static int[] NNIInverse(int[] src, int oldSize) {
+        int[] inverse = new int[oldSize];
+        for (int i = src.length - 1; i >= 0; i--) {
+            inverse[src[i]] = i;
+        }
+        return inverse;
+    }
+
+    public static void printGrid(PixelBuffer grid) { // for testing imageController please ignore
+        for (int i = 0; i < grid.getHeight(); i++) {
+            for (int j = 0; j < grid.getWidth(); j++) {
+                System.out.print(grid.getPixel(i, j) + "  ");
             }
             System.out.println();
         }
@@ -332,12 +424,8 @@ public class ImageController {
     }
 
     // To prevent overlapping memory references
-    public static Color[][] ClonePixelGrid(Color[][] grid) {
+    public static PixelBuffer ClonePixelGrid(PixelBuffer grid) {
         if (grid == null) return null;
-        Color[][] newGrid = new Color[grid.length][];
-        for (int i = 0; i < grid.length; i++) {
-            newGrid[i] = grid[i].clone(); 
-        }
-        return newGrid;
+        return grid.clone();
     }
 }
@@ -0,0 +1,115 @@
+package g82.controllers;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import g82.models.PixelBuffer;
+
+// Splits per pixel work on an image into bands of rows and runs them on the common ForkJoinPool.
+// Every band must only write to its own rows (or, for rotations, to pixels no other band writes),
+// reading shared input is fine. Bands are whole rows of PixelBuffer tiles so two bands never copy the same
+// shared tile when writing. Small images, e.g. 16x16 block textures, are run on the calling thread
+// since splitting them costs more than it saves.
+public class ParallelController {
+    private static final int MIN_PARALLEL_PIXELS = 128 * 128; // smaller images stay sequential
+    private static final int MIN_BAND_PIXELS = 64 * 64;       // and each band has at least this many pixels
+    private static final int BANDS_PER_THREAD = 4;             // a few bands each so threads that finish early can steal
+    private static final int PROGRESS_BANDS = 16;              // bands to split into on one thread when reporting progress
+
+    public interface RowBand {
+        void run(int rowFrom, int rowTo);
+    }
+
+    // told how many rows are done after each band, can throw (e.g. CancellationException) to stop the rest
+    public interface Progress {
+        void Step(int done, int total);
+    }
+
+    /**
+     * Runs band over rows [0, rows), split into bands of rows that run in parallel if the image is big enough
+     * @param rows - number of rows
+     * @param rowPixels - pixels in each row, used to decide how finely to split
+     * @param band - the work for rows [rowFrom, rowTo)
+     */
+    public static void ForRows(int rows, int rowPixels, RowBand band) {
+        ForRows(rows, rowPixels, band, null);
+    }
+
+    /**
+     * Same as above, reporting progress as each band finishes
+     * @param progress - may be null, a band that hasn't started yet is skipped once it throws
+     */
+    public static void ForRows(int rows, int rowPixels, RowBand band, Progress progress) {
+        if (progress != null) {
+            AtomicInteger done = new AtomicInteger();
+            RowBand work = band;
+            band = (from, to) -> {
+                progress.Step(done.get(), rows);
+                work.run(from, to);
+                progress.Step(done.addAndGet(to - from), rows);
+            };
+        }
+
+        int threads = ForkJoinPool.getCommonPoolParallelism();
+        long pixels = (long) rows * rowPixels;
+        if (threads < 2 || pixels < MIN_PARALLEL_PIXELS) {
+            if (progress == null) {
+                band.run(0, rows);
+                return;
+            }
+
+            // still split up so there's something to report and cancelling doesn't have to wait for the whole image
+            int bandRows = RoundToTiles((rows + PROGRESS_BANDS - 1) / PROGRESS_BANDS);
+            for (int from = 0; from < rows; from += bandRows) {
+                band.run(from, Math.min(rows, from + bandRows));
+            }
+            return;
+        }
+
+        int bandRows = Math.max((rows + threads * BANDS_PER_THREAD - 1) / (threads * BANDS_PER_THREAD),
+                                (MIN_BAND_PIXELS + rowPixels - 1) / Math.max(rowPixels, 1));
+        bandRows = RoundToTiles(bandRows);
+        if (bandRows >= rows) {
+            band.run(0, rows);
+            return;
+        }
+
+        int bands = (rows + bandRows - 1) / bandRows;
+        ForkJoinPool.commonPool().invoke(new BandTask(band, rows, bandRows, 0, bands));
+    }
+
+    // up to a whole number of tile rows
+    private static int RoundToTiles(int rows) {
+        return Math.max(1, (rows + PixelBuffer.TILE_SIZE - 1) / PixelBuffer.TILE_SIZE) * PixelBuffer.TILE_SIZE;
+    }
+
+    // splits the range of bands in half until it's down to one
+    private static class BandTask extends RecursiveAction {
+        private final RowBand band;
+        private final int rows;
+        private final int bandRows;
+        private final int from;
+        private final int to;
+
+        BandTask(RowBand band, int rows, int bandRows, int from, int to) {
+            this.band = band;
+            this.rows = rows;
+            this.bandRows = bandRows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from == 1) {
+                this.band.run(this.from * this.bandRows, Math.min(this.rows, (this.from + 1) * this.bandRows));
+                return;
+            }
+
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new BandTask(this.band, this.rows, this.bandRows, this.from, mid),
+                      new BandTask(this.band, this.rows, this.bandRows, mid, this.to));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package g82.controllers;
+
+import g82.models.PixelBuffer;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// SIMD versions of the layer blend in BlendController and the 3x3 convolution in ImageController,
+// using the JDK Vector API to work on 8 (AVX2) or 16 (AVX-512) pixels per instruction.
+// The Vector API is an incubator module so it is only used when the JVM is started with
+// --add-modules jdk.incubator.vector, otherwise everything falls back to the scalar loops.
+// It can also be switched off with -Dg82.simd=false or SetEnabled(false) to compare the two.
+// Everything that touches jdk.incubator.vector is in Kernels, so this class loads fine without the module.
+public class VectorController {
+    private static final boolean AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    private static volatile boolean enabled = AVAILABLE && !"false".equalsIgnoreCase(System.getProperty("g82.simd"));
+
+    // true if the JVM was started with the Vector API module
+    public static boolean IsAvailable() {
+        return AVAILABLE;
+    }
+
+    public static boolean IsEnabled() {
+        return enabled;
+    }
+
+    // does nothing if the module isn't available, the scalar code is always used then
+    public static void SetEnabled(boolean enable) {
+        enabled = enable && AVAILABLE;
+    }
+
+    // The methods below do as many whole vectors as fit and return how many pixels (or, for Convolve3x3,
+    // up to which column) they did, the caller finishes the rest with its scalar loop.
+    // The blends are identical to the scalar code. Convolve3x3 sums in float where the scalar code uses double,
+    // which is only exactly the same for kernels with whole number weights (sharpen), others can be 1 out in a channel.
+
+    static int BlendRowOver(int[] acc, int stride, int accOff, int[] src, int srcOff, int n, int opacity) {
+        return Kernels.BlendRowOver(acc, stride, accOff, src, srcOff, n, opacity);
+    }
+
+    static int BlendPremultipliedRowOver(int[] acc, int stride, int accOff, int[] src, int srcStride, int srcOff, int n) {
+        return Kernels.BlendPremultipliedRowOver(acc, stride, accOff, src, srcStride, srcOff, n);
+    }
+
+    static int ResolveRow(int[] acc, int stride, int accOff, int[] dst, int dstOff, int n) {
+        return Kernels.ResolveRow(acc, stride, accOff, dst, dstOff, n);
+    }
+
+    /**
+     * Convolves the pixels in rows [rowFrom, rowTo) and columns [colFrom, colTo) of src into dst.
+     * Every pixel in that area must have its whole 3x3 neighbourhood inside src.
+     * @return - the column the vector loop stopped at, columns from there to colTo are left for the caller
+     */
+    static int Convolve3x3(PixelBuffer src, double[][] kernel, PixelBuffer dst, int rowFrom, int rowTo, int colFrom, int colTo) {
+        return Kernels.Convolve3x3(src, kernel, dst, rowFrom, rowTo, colFrom, colTo);
+    }
+
+    private static final class Kernels {
+        private static final VectorSpecies<Integer> I = IntVector.SPECIES_PREFERRED;
+        private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+        private static final int ONE = BlendController.ONE;
+        private static final int HALF = ONE >> 1;
+        private static final int[] SHIFTS = {24, 16, 8, 0}; // a, r, g, b
+
+        // see BlendController.BlendRowOver, transparent and opaque pixels aren't special cased here
+        // since the general formula already gives the same result for them
+        static int BlendRowOver(int[] acc, int stride, int accOff, int[] src, int srcOff, int n, int opacity) {
+            int end = I.loopBound(n);
+            for (int p = 0; p < end; p += I.length()) {
+                IntVector px = IntVector.fromArray(I, src, srcOff + p);
+                IntVector a = px.lanewise(VectorOperators.LSHR, 24);
+                IntVector sa = a.mul(257).add(a.lanewise(VectorOperators.LSHR, 7))
+                    .mul(opacity).add(1 << 14).lanewise(VectorOperators.LSHR, 15);
+                IntVector inv = sa.neg().add(ONE);
+
+                int k = accOff + p;
+                BlendChannel(acc, k, px.lanewise(VectorOperators.LSHR, 16).and(0xFF).mul(sa), inv);
+                BlendChannel(acc, stride + k, px.lanewise(VectorOperators.LSHR, 8).and(0xFF).mul(sa), inv);
+                BlendChannel(acc, 2 * stride + k, px.and(0xFF).mul(sa), inv);
+                BlendChannel(acc, 3 * stride + k, sa, inv);
+            }
+            return end;
+        }
+
+        static int BlendPremultipliedRowOver(int[] acc, int stride, int accOff, int[] src, int srcStride, int srcOff, int n) {
+            int end = I.loopBound(n);
+            for (int p = 0; p < end; p += I.length()) {
+                int s = srcOff + p;
+                int k = accOff + p;
+                IntVector sa = IntVector.fromArray(I, src, 3 * srcStride + s);
+                IntVector inv = sa.neg().add(ONE);
+                for (int c = 0; c < 3; c++) {
+                    BlendChannel(acc, c * stride + k, IntVector.fromArray(I, src, c * srcStride + s), inv);
+                }
+                BlendChannel(acc, 3 * stride + k, sa, inv);
+            }
+            return end;
+        }
+
+        // acc = top + acc * inv for one channel of I.length() pixels, BlendController.MulFixed lane-wise
+        private static void BlendChannel(int[] acc, int k, IntVector top, IntVector inv) {
+            IntVector d = IntVector.fromArray(I, acc, k);
+            IntVector hi = d.lanewise(VectorOperators.LSHR, 16).mul(inv);
+            IntVector lo = d.and(0xFFFF).mul(inv).add(HALF).lanewise(VectorOperators.LSHR, 16);
+            top.add(hi).add(lo).intoArray(acc, k);
+        }
+
+        // There's no integer divide instruction so this divides in float. Premultiplied channels are below 2^24
+        // so convert exactly, and a quotient that isn't a whole number is at least 1/a = 2^-16 away from one,
+        // more than float rounding can move it, so truncating gives the same answer as the integer divide.
+        static int ResolveRow(int[] acc, int stride, int accOff, int[] dst, int dstOff, int n) {
+            int end = I.loopBound(n);
+            for (int p = 0; p < end; p += I.length()) {
+                int k = accOff + p;
+                IntVector a = IntVector.fromArray(I, acc, 3 * stride + k);
+                VectorMask<Integer> empty = a.eq(0);
+                FloatVector af = (FloatVector) a.blend(1, empty).convert(VectorOperators.I2F, 0);
+
+                IntVector out = a.mul(255).lanewise(VectorOperators.LSHR, 16).lanewise(VectorOperators.LSHL, 24)
+                    .or(Unpremultiply(acc, k, af).lanewise(VectorOperators.LSHL, 16))
+                    .or(Unpremultiply(acc, stride + k, af).lanewise(VectorOperators.LSHL, 8))
+                    .or(Unpremultiply(acc, 2 * stride + k, af));
+                out.blend(0, empty).intoArray(dst, dstOff + p);
+            }
+            return end;
+        }
+
+        private static IntVector Unpremultiply(int[] acc, int k, FloatVector a) {
+            FloatVector c = (FloatVector) IntVector.fromArray(I, acc, k).convert(VectorOperators.I2F, 0);
+            return ((IntVector) c.div(a).convert(VectorOperators.F2I, 0)).min(255);
+        }
+
+        // Unpacks the rows needed into a float plane per channel then does 9 multiply-adds per channel
+        // for a whole vector of output pixels at a time
+        static int Convolve3x3(PixelBuffer src, double[][] kernel, PixelBuffer dst, int rowFrom, int rowTo, int colFrom, int colTo) {
+            int end = colFrom + F.loopBound(Math.max(0, colTo - colFrom));
+            if (end == colFrom || rowTo <= rowFrom) return colFrom;
+
+            int width = src.getWidth();
+            int rows = rowTo - rowFrom + 2;
+            float[][] planes = new float[4][rows * width];
+            int[] row = new int[width];
+            for (int i = 0; i < rows; i++) {
+                src.getRow(rowFrom - 1 + i, row, 0);
+                int o = i * width;
+                int j = 0;
+                for (; j < I.loopBound(width); j += I.length()) {
+                    IntVector px = IntVector.fromArray(I, row, j);
+                    for (int c = 0; c < 4; c++) {
+                        ((FloatVector) px.lanewise(VectorOperators.LSHR, SHIFTS[c]).and(0xFF)
+                            .convert(VectorOperators.I2F, 0)).intoArray(planes[c], o + j);
+                    }
+                }
+                for (; j < width; j++) {
+                    for (int c = 0; c < 4; c++) {
+                        planes[c][o + j] = (row[j] >>> SHIFTS[c]) & 0xFF;
+                    }
+                }
+            }
+
+            FloatVector[] weights = new FloatVector[9];
+            for (int k = 0; k < 3; k++) {
+                for (int l = 0; l < 3; l++) {
+                    weights[k * 3 + l] = FloatVector.broadcast(F, (float) kernel[k][l]);
+                }
+            }
+
+            for (int i = rowFrom; i < rowTo; i++) {
+                int o = (i - rowFrom) * width; // start of row i - 1 in the planes
+                for (int j = colFrom; j < end; j += F.length()) {
+                    IntVector px = IntVector.zero(I);
+                    for (int c = 0; c < 4; c++) {
+                        FloatVector sum = FloatVector.zero(F);
+                        for (int k = 0; k < 3; k++) {
+                            for (int l = 0; l < 3; l++) {
+                                sum = sum.add(FloatVector.fromArray(F, planes[c], o + k * width + j + l - 1).mul(weights[k * 3 + l]));
+                            }
+                        }
+                        // clamped first so truncating after adding 0.5 rounds the same as Math.round
+                        IntVector v = (IntVector) sum.max(0f).min(255f).add(0.5f).convert(VectorOperators.F2I, 0);
+                        px = px.or(v.lanewise(VectorOperators.LSHL, SHIFTS[c]));
+                    }
+                    px.intoArray(row, j);
+                }
+                dst.setRow(i, colFrom, end - colFrom, row, colFrom);
+            }
+            return end;
+        }
+    }
+}
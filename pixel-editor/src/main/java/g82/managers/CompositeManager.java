@@ -0,0 +1,168 @@
+package g82.managers;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import g82.models.PixelBuffer;
+
+// Keeps a cached composite of all layers so the canvas doesn't have to recomposite every pixel on every paint.
+// Edits mark the rectangle they touched as dirty, the canvas is split into the same tiles as a PixelBuffer and
+// only the dirty tiles are recomposited the next time the composite is asked for.
+// The composite is mirrored into a TYPE_INT_ARGB BufferedImage so the canvas can draw it with one drawImage.
+public class CompositeManager {
+    private static final int TILE_SIZE = PixelBuffer.TILE_SIZE;
+    private LayerManager layerManager;
+    private PixelBuffer composite;
+    private BufferedImage image; // same pixels as composite
+    private boolean[] dirtyTiles;
+    private int tilesX;
+    private int tilesY;
+    private boolean anyDirty;
+    private boolean allDirty; // composited in one go so LayerManager can split it across threads
+
+    public CompositeManager(LayerManager layerManager) {
+        this.layerManager = layerManager;
+    }
+
+    // Undo/redo and opening images swap the whole LayerManager out, so nothing cached can be trusted
+    public void SetLayerManager(LayerManager layerManager) {
+        this.layerManager = layerManager;
+        MarkAllDirty();
+    }
+
+    /**
+     * Marks a rectangle of pixels as changed, can be partly or fully outside the canvas
+     * @param x - left column
+     * @param y - top row
+     * @param w - width in pixels
+     * @param h - height in pixels
+     */
+    public void MarkDirty(int x, int y, int w, int h) {
+        if (this.composite == null) return; // everything gets composited on first use anyway
+
+        int x1 = Math.max(x, 0);
+        int y1 = Math.max(y, 0);
+        int x2 = Math.min(x + w, this.composite.getWidth()) - 1;
+        int y2 = Math.min(y + h, this.composite.getHeight()) - 1;
+        if (x2 < x1 || y2 < y1) return;
+
+        for (int ty = y1 / TILE_SIZE; ty <= y2 / TILE_SIZE; ty++) {
+            for (int tx = x1 / TILE_SIZE; tx <= x2 / TILE_SIZE; tx++) {
+                this.dirtyTiles[ty * this.tilesX + tx] = true;
+            }
+        }
+        this.anyDirty = true;
+    }
+
+    // For changes that affect every pixel e.g. layer opacity, visibility, order, filters
+    public void MarkAllDirty() {
+        if (this.composite == null) return;
+
+        Arrays.fill(this.dirtyTiles, true);
+        this.anyDirty = true;
+        this.allDirty = true;
+    }
+
+    /**
+     * Returns the composite of all layers, recompositing any dirty tiles first.
+     * The returned buffer is reused, so callers that keep it should clone it.
+     */
+    public PixelBuffer GetComposite() {
+        return GetComposite(0, 0, this.layerManager.GetWidth(), this.layerManager.GetHeight());
+    }
+
+    /**
+     * Same as above but only brings the tiles overlapping the given rectangle up to date,
+     * dirty tiles outside it stay dirty. Used by the canvas so only what is on screen gets composited.
+     * @param x - left column
+     * @param y - top row
+     * @param w - width in pixels
+     * @param h - height in pixels
+     */
+    public PixelBuffer GetComposite(int x, int y, int w, int h) {
+        int width = this.layerManager.GetWidth();
+        int height = this.layerManager.GetHeight();
+        if (this.composite == null || this.composite.getWidth() != width || this.composite.getHeight() != height) {
+            // first use or the canvas was cropped/resized/rotated
+            this.composite = new PixelBuffer(width, height);
+            this.image = new BufferedImage(Math.max(width, 1), Math.max(height, 1), BufferedImage.TYPE_INT_ARGB);
+            this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+            this.dirtyTiles = new boolean[this.tilesX * this.tilesY];
+            MarkAllDirty();
+        }
+
+        int x1 = Math.max(x, 0);
+        int y1 = Math.max(y, 0);
+        int x2 = Math.min(x + w, width) - 1;
+        int y2 = Math.min(y + h, height) - 1;
+        if (!this.anyDirty || x2 < x1 || y2 < y1) return this.composite;
+
+        int tx1 = x1 / TILE_SIZE;
+        int ty1 = y1 / TILE_SIZE;
+        int tx2 = x2 / TILE_SIZE;
+        int ty2 = y2 / TILE_SIZE;
+        if (this.allDirty) {
+            // none of it is up to date, so the tiles asked for are done in one go
+            int rx = tx1 * TILE_SIZE;
+            int ry = ty1 * TILE_SIZE;
+            int rw = Math.min((tx2 + 1) * TILE_SIZE, width) - rx;
+            int rh = Math.min((ty2 + 1) * TILE_SIZE, height) - ry;
+            this.layerManager.CondenseLayersAC(this.composite, rx, ry, rw, rh);
+            CopyToImage(rx, ry, rw, rh);
+            for (int ty = ty1; ty <= ty2; ty++) {
+                Arrays.fill(this.dirtyTiles, ty * this.tilesX + tx1, ty * this.tilesX + tx2 + 1, false);
+            }
+        } else {
+            for (int ty = ty1; ty <= ty2; ty++) {
+                for (int tx = tx1; tx <= tx2; tx++) {
+                    if (!this.dirtyTiles[ty * this.tilesX + tx]) continue;
+
+                    int tileX = tx * TILE_SIZE;
+                    int tileY = ty * TILE_SIZE;
+                    int tileW = Math.min(TILE_SIZE, width - tileX);
+                    int tileH = Math.min(TILE_SIZE, height - tileY);
+                    this.layerManager.CondenseLayersAC(this.composite, tileX, tileY, tileW, tileH);
+                    CopyToImage(tileX, tileY, tileW, tileH);
+                    this.dirtyTiles[ty * this.tilesX + tx] = false;
+                }
+            }
+        }
+
+        this.allDirty = false;
+        this.anyDirty = false;
+        for (boolean dirty : this.dirtyTiles) {
+            if (dirty) {
+                this.anyDirty = true;
+                break;
+            }
+        }
+
+        return this.composite;
+    }
+
+    /**
+     * Same as GetComposite but as an image for drawing, also reused between calls
+     */
+    public BufferedImage GetCompositeImage() {
+        GetComposite();
+        return this.image;
+    }
+
+    // the image as of the last GetComposite, for drawing the part that call brought up to date
+    public BufferedImage GetImage() {
+        return this.image;
+    }
+
+    // Goes through the raster's setDataElements rather than writing into its int[] directly,
+    // grabbing the array would stop Java2D from keeping an accelerated copy of the image
+    private void CopyToImage(int x, int y, int w, int h) {
+        if (w == 0 || h == 0) return;
+
+        int[] pixels = new int[w * h];
+        for (int i = 0; i < h; i++) {
+            this.composite.getRow(y + i, x, w, pixels, i * w);
+        }
+        this.image.getRaster().setDataElements(x, y, w, h, pixels);
+    }
+}
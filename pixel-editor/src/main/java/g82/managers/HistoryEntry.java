@@ -0,0 +1,312 @@
+package g82.managers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import g82.models.IStateModel;
+
+// One state in StateManager's history. States far from the current position are "cold": they get serialized
+// and deflated on a background thread so the history holds a fraction of the memory, and are inflated again
+// when they come back near the current position, or straight away if undo/redo gets to one first.
+// States pushed out of StateManager's memory budget are "evicted": their compressed bytes are written to the
+// HistoryJournal and only the offset and length stay in memory until undo/redo pages them back in.
+// Serializing a state makes private copies of any PixelBuffer tiles it shared, so states that mostly share their
+// tiles with others (or the layers) are left uncompressed, it would only add the compressed bytes.
+class HistoryEntry {
+    private static final int MIN_COMPRESS_SIZE = 4096; // not worth it for small local states
+    private static final ExecutorService COMPRESSOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history-compressor");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private long size; // uncompressed bytes of the tiles only this state holds, what StateManager's budget counts
+    private long fullSize; // uncompressed, counting the tiles it shares
+    private long unreported; // change in size StateManager hasn't added to its total yet, from inflating or a failed spill
+    private final boolean sharesTiles;
+    private IStateModel state; // null while compressed or evicted
+    private byte[] compressed;
+    private HistoryJournal journal;
+    private boolean onDisk; // written to the journal at journalOffset
+    private long journalOffset;
+    private int journalLength;
+    private boolean cold;
+    private boolean evicted;
+    private boolean queued;
+    private boolean discarded; // dropped from the history, anything still queued for it does nothing
+
+    HistoryEntry(IStateModel state) {
+        this.state = state;
+        this.fullSize = state.GetRetainedSize();
+        this.size = this.fullSize;
+        this.sharesTiles = state.GetLocality() == IStateModel.Locality.LAYER || state.GetLocality() == IStateModel.Locality.GLOBAL;
+    }
+
+    synchronized long GetSize() {
+        return this.size;
+    }
+
+    // what it will count for once it's read back from the journal
+    synchronized long GetFullSize() {
+        return this.fullSize;
+    }
+
+    // layer and global states can hold PixelBuffer tiles, so adding or dropping one changes what the others share
+    boolean SharesTiles() {
+        return this.sharesTiles;
+    }
+
+    // the change in size since StateManager last asked, it adds it to its total
+    synchronized long TakeUnreported() {
+        long change = this.unreported;
+        this.unreported = 0;
+        return change;
+    }
+
+    /**
+     * Works out the size again leaving out tiles that have been counted already, compressed states keep their last size
+     * @param counted - tiles counted so far, this state's are added to it
+     */
+    synchronized long Recount(Set<Object> counted) {
+        if (this.state != null) {
+            this.size = this.state.GetRetainedSize(counted);
+        }
+        this.unreported = 0;
+        return this.size;
+    }
+
+    // less than half of it is only held by this state
+    private boolean IsMostlyShared() {
+        return this.size * 2 < this.fullSize;
+    }
+
+    // what the entry actually holds in memory right now
+    synchronized long GetHeapSize() {
+        if (this.state != null) return this.size;
+        return this.compressed != null ? this.compressed.length + 48 : 48;
+    }
+
+    synchronized boolean IsCompressed() {
+        return this.state == null;
+    }
+
+    synchronized boolean IsEvicted() {
+        return this.evicted;
+    }
+
+    // the state, inflating it or reading it back from the journal first if needed
+    synchronized IStateModel Get() {
+        if (this.state == null) {
+            byte[] bytes = this.compressed;
+            if (bytes == null) {
+                try {
+                    bytes = this.journal.Read(this.journalOffset, this.journalLength);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not read state back from the history journal", e);
+                }
+            }
+            this.state = Inflate(bytes);
+            this.compressed = null;
+            long inflated = this.state.GetRetainedSize(); // its tiles aren't shared with anything any more
+            if (!this.evicted) this.unreported += inflated - this.size;
+            this.size = inflated;
+            this.fullSize = inflated;
+        }
+        return this.state;
+    }
+
+    // Cold entries get compressed and hot ones inflated, in the background
+    void SetCold(boolean cold) {
+        synchronized (this) {
+            this.cold = cold;
+            if (this.evicted) return;
+            boolean needsWork = cold ? this.state != null && this.size >= MIN_COMPRESS_SIZE && !IsMostlyShared()
+                                     : this.state == null;
+            if (!needsWork || this.queued) return;
+            this.queued = true;
+        }
+        COMPRESSOR.execute(this::Update);
+    }
+
+    // Writes the entry to the journal in the background and drops it from memory,
+    // if it's been written before it's just dropped. Returns what it counted for in StateManager's total
+    long Evict(HistoryJournal journal) {
+        long released;
+        synchronized (this) {
+            released = this.size - this.unreported;
+            this.unreported = 0;
+            this.evicted = true;
+            if (this.onDisk) {
+                // already in a journal, which may not be the current one until it's been compacted
+                this.state = null;
+                this.compressed = null;
+                return released;
+            }
+            this.journal = journal;
+            if (this.queued) return released;
+            this.queued = true;
+        }
+        COMPRESSOR.execute(this::Update);
+        return released;
+    }
+
+    // counts as in memory again, Get or SetCold(false) reads it back. Returns what it adds to StateManager's total
+    synchronized long Restore() {
+        if (!this.evicted) return 0;
+        this.evicted = false;
+        if (this.state == null) this.size = this.fullSize; // read back with its own copies of the tiles
+        return this.size;
+    }
+
+    // a spill that failed, it's in memory again and StateManager adds it back from TakeUnreported
+    private void Unevict() {
+        this.unreported += Restore();
+    }
+
+    // Dropped from the history, its space in the journal is given back. Returns what it counted for in StateManager's total
+    synchronized long Discard() {
+        long released = this.evicted ? 0 : this.size - this.unreported;
+        this.unreported = 0;
+        this.discarded = true;
+        this.state = null;
+        this.compressed = null;
+        if (this.onDisk) {
+            this.journal.Release(this.journalLength);
+            this.onDisk = false;
+        }
+        return released;
+    }
+
+    // Copies its bytes from one journal to the other if they're in it, for compacting, must run on the background
+    // thread. If they can't be written they're kept in memory instead
+    synchronized void MoveTo(HistoryJournal from, HistoryJournal to) {
+        if (!this.onDisk || this.journal != from) return;
+
+        byte[] bytes;
+        try {
+            bytes = from.Read(this.journalOffset, this.journalLength);
+        } catch (IOException e) {
+            System.err.println("Could not read state back from the history journal: " + e.getMessage());
+            return; // Get will fail the same way, there's nothing else to keep
+        }
+
+        try {
+            this.journalOffset = to.Append(bytes);
+            this.journal = to;
+        } catch (IOException e) {
+            System.err.println("Could not copy state to the new history journal: " + e.getMessage());
+            this.onDisk = false;
+            if (this.state == null) this.compressed = bytes;
+            Unevict(); // counted in memory again
+        }
+    }
+
+    // runs after everything queued so far on the background thread
+    static void RunInBackground(Runnable task) {
+        COMPRESSOR.execute(task);
+    }
+
+    private void Update() {
+        IStateModel s;
+        byte[] bytes;
+        HistoryJournal target;
+        synchronized (this) {
+            this.queued = false;
+            if (this.discarded) return;
+            if (!this.evicted && !this.cold) {
+                Get();
+                return;
+            }
+            if (this.evicted && this.onDisk) {
+                this.state = null;
+                this.compressed = null;
+                return;
+            }
+            if (!this.evicted && this.state == null) return; // already compressed
+            s = this.state;
+            bytes = this.compressed;
+            target = this.evicted ? this.journal : null;
+        }
+
+        // done outside the lock so undo isn't held up by it, states don't change once saved
+        if (bytes == null) {
+            bytes = Deflate(s);
+            if (bytes == null) return;
+        }
+
+        long offset = -1;
+        if (target != null) {
+            try {
+                offset = target.Append(bytes);
+            } catch (IOException e) {
+                System.err.println("Could not spill undo state to the history journal: " + e.getMessage());
+            }
+        }
+
+        synchronized (this) {
+            if (this.discarded) {
+                if (offset >= 0) target.Release(bytes.length);
+                return;
+            }
+            if (target != null && offset < 0) {
+                Unevict(); // stays in memory, StateManager counts it again and stops spilling
+            }
+            if (offset >= 0 && target == this.journal) {
+                this.onDisk = true;
+                this.journalOffset = offset;
+                this.journalLength = bytes.length;
+            }
+            if (this.evicted && this.onDisk) {
+                this.state = null;
+                this.compressed = null;
+            } else if (this.cold && s != null && this.state == s) {
+                this.state = null;
+                this.compressed = bytes;
+            }
+        }
+    }
+
+    // blocks until everything queued so far has been compressed/inflated
+    static void AwaitBackgroundWork() {
+        try {
+            COMPRESSOR.submit(() -> {}).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new AssertionError(e); // the task does nothing
+        }
+    }
+
+    private static byte[] Deflate(IStateModel state) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (ObjectOutputStream out = new ObjectOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+            out.writeObject(state);
+        } catch (IOException e) {
+            System.err.println("Could not compress undo state: " + e.getMessage()); // just stays uncompressed
+            return null;
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static IStateModel Inflate(byte[] compressed) {
+        try (ObjectInputStream in = new ObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)))) {
+            return (IStateModel) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Could not restore compressed state", e); // only written by Deflate
+        }
+    }
+}
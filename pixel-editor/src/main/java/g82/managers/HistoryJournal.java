@@ -0,0 +1,110 @@
+package g82.managers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Append-only temp file that StateManager spills undo states to once they don't fit in its memory budget.
+// Each state is written once, as its compressed bytes, and read back with a positional read through the
+// FileChannel. Only the offset and length are kept in memory, by the HistoryEntry.
+// States dropped from the history are counted as garbage, the file is truncated once it's all garbage and
+// StateManager copies the rest to a new journal once it's mostly garbage.
+class HistoryJournal {
+    private Path path;
+    private FileChannel channel;
+    private long end;
+    private long garbage; // bytes of states that have been dropped
+    private boolean closed;
+    private IOException failure; // once a write has failed nothing more is written
+
+    /**
+     * Writes bytes to the end of the journal, creating the file on first use
+     * @return - the offset they were written at
+     */
+    synchronized long Append(byte[] bytes) throws IOException {
+        if (this.closed) {
+            throw new IOException("History journal is closed");
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+
+        if (this.channel == null) {
+            this.path = Files.createTempFile("g82-history", ".journal");
+            this.path.toFile().deleteOnExit();
+            this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        long offset = this.end;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            while (buffer.hasRemaining()) {
+                this.end += this.channel.write(buffer, this.end);
+            }
+        } catch (IOException e) {
+            this.failure = e;
+            throw e;
+        }
+        return offset;
+    }
+
+    // false once it's closed or a write has failed, e.g. the disk is full
+    synchronized boolean IsWritable() {
+        return !this.closed && this.failure == null;
+    }
+
+    // length bytes that were written are no longer needed
+    synchronized void Release(int length) {
+        this.garbage += length;
+        if (this.garbage < this.end || this.channel == null) return;
+
+        // nothing left that's needed
+        try {
+            this.channel.truncate(0);
+            this.end = 0;
+            this.garbage = 0;
+        } catch (IOException e) {
+            System.err.println("Could not truncate the history journal: " + e.getMessage());
+        }
+    }
+
+    synchronized long GetGarbage() {
+        return this.garbage;
+    }
+
+    synchronized byte[] Read(long offset, int length) throws IOException {
+        if (this.channel == null) {
+            throw new IOException("History journal is closed");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("History journal is shorter than expected");
+            }
+        }
+        return buffer.array();
+    }
+
+    // bytes written so far
+    synchronized long GetSize() {
+        return this.end;
+    }
+
+    // deletes the file, StateManager only closes it from the background thread once nothing's left to write to it
+    synchronized void Close() {
+        this.closed = true;
+        if (this.channel == null) return;
+
+        try {
+            this.channel.close();
+            Files.deleteIfExists(this.path);
+        } catch (IOException e) {
+            System.err.println("Could not delete the history journal: " + e.getMessage());
+        }
+        this.channel = null;
+    }
+}
@@ -1,30 +1,47 @@
 package g82.managers;
 
-import java.awt.Color;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
+import g82.controllers.BlendController;
 import g82.controllers.ImageController;
+import g82.controllers.ParallelController;
 import g82.models.LayerModel;
+import g82.models.PixelBuffer;
 
-public class LayerManager implements Cloneable { // all layers must be the same size
+public class LayerManager implements Cloneable, Serializable { // all layers must be the same size
+    private static final long serialVersionUID = 1L;
     private List<LayerModel> layers;
     private int height;
     private int width;
     private int nameCount;
+    // The layer being drawn on. Everything under it and over it is flattened into belowCache and
+    // aboveCache so a stroke only has to blend 3 pixels per pixel no matter how many layers there are.
+    // none of this is worth keeping when saved in the undo history, it's rebuilt on the next composite
+    private transient LayerModel activeLayer;
+    private transient int[] belowCache; // premultiplied BlendController accumulators, 4 planes of width x height
+    private transient int[] aboveCache;
+    private transient int cachedWidth;
+    private transient int cachedHeight;
+    private transient LayerModel cachedActive;   // active layer the caches were built around
+    private transient LayerModel[] cachedLayers; // layer order the caches were built from
+    private transient int[] cachedVersions;      // and the version of each layer at the time
 
     /**
      * Creates Layer Manager holding up to 10 LayerModel objects
-     * @param baseLayer - Color[][] pixel grid for base layer
+     * @param baseLayer - PixelBuffer pixel grid for base layer
      */
-    public LayerManager(Color[][] baseLayer) {
+    public LayerManager(PixelBuffer baseLayer) {
         this.layers = new LinkedList<>();
         try {
             LayerModel lm = new LayerModel(baseLayer, 1, "1");
             this.layers.add(lm);
-            this.height = baseLayer.length;
-            this.width = baseLayer[0].length;
+            this.height = baseLayer.getHeight();
+            this.width = baseLayer.getWidth();
             this.nameCount = 2;
         } catch (Exception e) {
             System.out.println(e);
@@ -32,11 +49,11 @@ public class LayerManager implements Cloneable { // all layers must be the same
         }
     }
 
-    public LayerModel AddLayer(Color[][] newLayer, float opacity) throws Exception {
+    public LayerModel AddLayer(PixelBuffer newLayer, float opacity) throws Exception {
         if (this.layers.size() >= 10) 
             throw new Exception("Layers overflow");
         
-        if (newLayer.length != this.height || newLayer[0].length != this.width) 
+        if (newLayer.getHeight() != this.height || newLayer.getWidth() != this.width) 
             throw new Exception("The size of the new layer does not match");
         
         LayerModel lm = new LayerModel(newLayer, opacity, (String.valueOf(nameCount)));
@@ -46,7 +63,7 @@ public class LayerManager implements Cloneable { // all layers must be the same
     }
 
     //Method overload for default parameter opacity (alpha) = 1
-    public LayerModel AddLayer(Color[][] newLayer) throws Exception{
+    public LayerModel AddLayer(PixelBuffer newLayer) throws Exception{
         return AddLayer(newLayer,1);
     }
 
@@ -88,50 +105,136 @@ public class LayerManager implements Cloneable { // all layers must be the same
         return this.layers.toArray(layerArray);
     }
 
+    // Sets the layer that is being edited so CondenseLayersAC can use cached composites for the others
+    public void SetActiveLayer(LayerModel layer) {
+        this.activeLayer = layer;
+    }
+
     // Alpha compositing method - https://ciechanow.ski/alpha-compositing/
     // assumes a background colour of white
     // Destination - Background; Source - Foreground; Result - Output of layering src on dest.
-    // RRGB = SRGB × SA + DRGB × (1 − SA)
-    public Color[][] CondenseLayersAC() { //untested
-        Color[][] newGrid = new Color[height][width];
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                double r = 0; 
-                double g = 0;
-                double b = 0;
-                double a = 0.0;
-                for (int k = 0; k < this.layers.size(); k++) {
-                    LayerModel layer = this.layers.get(k);
-                    if (!layer.isVisible()) continue;
-                    Color px = layer.getPixelGrid()[i][j];
-                    double srcA = (px.getAlpha() / 255.0) * layer.getOpacity();
-                    double srcR = px.getRed();
-                    double srcG = px.getGreen();
-                    double srcB = px.getBlue();
-                    
-                    double rA = srcA + a * (1.0 - srcA);
-                    if (rA > 0) {
-                        r = (srcR * srcA + r * a * (1.0 - srcA)) / rA;
-                        g = (srcG * srcA + g * a * (1.0 - srcA)) / rA;
-                        b = (srcB * srcA + b * a * (1.0 - srcA)) / rA;
-                    }
-
-                    a = rA;
+    // RRGB = SRGB * SA + DRGB * (1 - SA)
+    // The blending itself is done in fixed point premultiplied alpha by BlendController, one row at a time.
+    public PixelBuffer CondenseLayersAC() { //untested
+        PixelBuffer newGrid = new PixelBuffer(width, height);
+        CondenseLayersAC(newGrid, 0, 0, width, height);
+        return newGrid;
+    }
+
+    // Same as above but only composites the w x h region at (x, y) into dst,
+    // used by CompositeManager so only the parts of the canvas that changed are recomputed
+    public void CondenseLayersAC(PixelBuffer dst, int x, int y, int w, int h) {
+        int activePos = this.activeLayer == null ? -1 : this.layers.indexOf(this.activeLayer);
+        if (activePos == -1 || this.layers.size() < 3) { // not worth caching with fewer than 2 other layers
+            int[] opacities = GetOpacities();
+            ParallelController.ForRows(h, w, (from, to) -> {
+                int[] acc = new int[w * 4];
+                int[] row = new int[w];
+                for (int i = y + from; i < y + to; i++) {
+                    CondenseRowAC(acc, w, 0, row, i, x, w, 0, this.layers.size(), opacities);
+                    BlendController.ResolveRow(acc, w, 0, row, 0, w);
+                    dst.setRow(i, x, w, row, 0);
                 }
-                
-                a = a * 255;
-                newGrid[i][j] = new Color((int)r, (int)g, (int)b, (int)a);
+            });
+            return;
+        }
+
+        if (!IsLayerCacheValid()) {
+            RebuildLayerCache(activePos);
+        }
+
+        // below, then the active layer, then above
+        boolean activeVisible = this.activeLayer.isVisible();
+        PixelBuffer activeGrid = activeVisible ? this.activeLayer.getPixelGrid() : null; // hidden ones make a blank grid
+        int activeOpacity = BlendController.OpacityToFixed(this.activeLayer.getOpacity());
+        int cacheStride = this.width * this.height;
+        int[] below = this.belowCache;
+        int[] above = this.aboveCache;
+        ParallelController.ForRows(h, w, (from, to) -> {
+            int[] acc = new int[w * 4];
+            int[] row = new int[w];
+            for (int i = y + from; i < y + to; i++) {
+                int cacheOff = i * this.width + x;
+                BlendController.CopyRow(below, cacheStride, cacheOff, acc, w, 0, w);
+                if (activeVisible) {
+                    activeGrid.getRow(i, x, w, row, 0);
+                    BlendController.BlendRowOver(acc, w, 0, row, 0, w, activeOpacity);
+                }
+                BlendController.BlendPremultipliedRowOver(acc, w, 0, above, cacheStride, cacheOff, w);
+                BlendController.ResolveRow(acc, w, 0, row, 0, w);
+                dst.setRow(i, x, w, row, 0);
             }
+        });
+    }
+
+    // Blends w pixels of row i, starting at column x, of layers [from, to) into acc starting at pixel accOff
+    private void CondenseRowAC(int[] acc, int stride, int accOff, int[] row, int i, int x, int w, int from, int to, int[] opacities) {
+        BlendController.ClearRow(acc, stride, accOff, w);
+        for (int k = from; k < to; k++) {
+            LayerModel layer = this.layers.get(k);
+            if (!layer.isVisible()) continue;
+            layer.getPixelGrid().getRow(i, x, w, row, 0);
+            BlendController.BlendRowOver(acc, stride, accOff, row, 0, w, opacities[k]);
         }
+    }
 
-        return newGrid;
+    private int[] GetOpacities() {
+        int[] opacities = new int[this.layers.size()];
+        for (int k = 0; k < opacities.length; k++) {
+            opacities[k] = BlendController.OpacityToFixed(this.layers.get(k).getOpacity());
+        }
+        return opacities;
+    }
+
+    // The caches are only out of date if a layer other than the active one was added, removed,
+    // moved or changed (pixels, opacity or visibility), or the canvas changed size
+    private boolean IsLayerCacheValid() {
+        if (this.cachedLayers == null || this.cachedLayers.length != this.layers.size()
+            || this.cachedWidth != this.width || this.cachedHeight != this.height) 
+            return false;
+
+        for (int k = 0; k < this.cachedLayers.length; k++) {
+            LayerModel layer = this.layers.get(k);
+            if (layer != this.cachedLayers[k]) 
+                return false;
+            if (layer != this.activeLayer && layer.getVersion() != this.cachedVersions[k]) 
+                return false;
+        }
+
+        return this.cachedActive == this.activeLayer;
+    }
+
+    private void RebuildLayerCache(int activePos) {
+        if (this.belowCache == null || this.cachedWidth != this.width || this.cachedHeight != this.height) {
+            this.belowCache = new int[this.width * this.height * 4];
+            this.aboveCache = new int[this.width * this.height * 4];
+            this.cachedWidth = this.width;
+            this.cachedHeight = this.height;
+        }
+
+        // kept premultiplied so layering them back in later doesn't lose precision
+        int[] opacities = GetOpacities();
+        int stride = this.width * this.height;
+        ParallelController.ForRows(this.height, this.width, (from, to) -> {
+            int[] row = new int[this.width];
+            for (int i = from; i < to; i++) {
+                CondenseRowAC(this.belowCache, stride, i * this.width, row, i, 0, this.width, 0, activePos, opacities);
+                CondenseRowAC(this.aboveCache, stride, i * this.width, row, i, 0, this.width, activePos + 1, this.layers.size(), opacities);
+            }
+        });
+        this.cachedActive = this.activeLayer;
+        this.cachedLayers = GetLayerArray();
+        this.cachedVersions = new int[this.cachedLayers.length];
+        for (int k = 0; k < this.cachedLayers.length; k++) {
+            this.cachedVersions[k] = this.cachedLayers[k].getVersion();
+        }
     }
 
     // Weighted average method - ignore the fact that there are 2 methods at the moment
     // I will test both and see which is better
     // also need to find a way to deal with transparent pixels if we plan on doing that
-    public Color[][] CondenseLayersWA() { // untested
-        Color[][] newGrid = new Color[this.height][this.width];
+    public PixelBuffer CondenseLayersWA() { // untested
+        PixelBuffer newGrid = new PixelBuffer(this.width, this.height);
         for (int i = 0; i < height; i++) {
             for (int j = 0; j < width; j++) {
                 float r = 0;
@@ -143,20 +246,35 @@ public class LayerManager implements Cloneable { // all layers must be the same
                 
                 for (int k = 0; k < this.layers.size(); k++) {
                     LayerModel layer = this.layers.get(k);
-                    Color px = layer.getPixelGrid()[i][j];
+                    int px = layer.getPixelGrid().getPixel(i, j);
                     
-                    r += px.getRed() * (layer.getOpacity()/opacityTotal);
-                    g += px.getGreen() * (layer.getOpacity()/opacityTotal);
-                    b += px.getBlue() * (layer.getOpacity()/opacityTotal);
+                    r += ((px >> 16) & 0xFF) * (layer.getOpacity()/opacityTotal);
+                    g += ((px >> 8) & 0xFF) * (layer.getOpacity()/opacityTotal);
+                    b += (px & 0xFF) * (layer.getOpacity()/opacityTotal);
                 }
 
-                newGrid[i][j] = new Color((int)r, (int)g, (int)b);
+                newGrid.setPixel(i, j, ImageController.PackARGB(255, (int)r, (int)g, (int)b));
             }
         }
 
         return newGrid;
     }   
 
+    // bytes held by the layers' pixels and the composite caches, used for the undo history's memory budget
+    public long GetRetainedSize() {
+        return GetRetainedSize(new HashSet<>());
+    }
+
+    // leaving out tiles already in counted, see PixelBuffer.getRetainedSize
+    public long GetRetainedSize(Set<Object> counted) {
+        long size = 64;
+        for (LayerModel layer : this.layers) {
+            size += layer.getRetainedSize(counted);
+        }
+        if (this.belowCache != null) size += 4L * (this.belowCache.length + this.aboveCache.length);
+        return size;
+    }
+
     public void SetHeight(int height) {
         this.height = height;
     }
@@ -174,19 +292,44 @@ public class LayerManager implements Cloneable { // all layers must be the same
     }
 
     public void CropLayers(LayerModel currentLayer) {
+        CropLayers(currentLayer, CropManager.getFirstX(), CropManager.getFirstY(), CropManager.getLastX(), CropManager.getLastY());
+    }
+
+    public void CropLayers(LayerModel currentLayer, int x1, int y1, int x2, int y2) {
         for (LayerModel lm : layers) {
-            Color[][] pg = lm.getPixelGrid();
-            pg = ImageController.CropGrid(pg, CropManager.getFirstX(), 
-                CropManager.getFirstY(), CropManager.getLastX(), CropManager.getLastY());
+            PixelBuffer pg = lm.getPixelGrid();
+            pg = ImageController.CropGrid(pg, x1, y1, x2, y2);
             lm.setPixelGrid(pg);
             if (lm.equals(currentLayer)) 
                 currentLayer.setPixelGrid(pg);
         }
     }
 
+    // The pixels each layer would lose to a crop, null for hidden layers since cropping skips them.
+    // x1 <= x2 and y1 <= y2
+    public int[][] GetCropMargins(int x1, int y1, int x2, int y2) {
+        int[][] margins = new int[this.layers.size()][];
+        for (int k = 0; k < margins.length; k++) {
+            LayerModel lm = this.layers.get(k);
+            if (lm.isVisible()) {
+                margins[k] = ImageController.CropMargins(lm.getPixelGrid(), x1, y1, x2, y2);
+            }
+        }
+        return margins;
+    }
+
+    // Undoes a crop, margins are from GetCropMargins before it
+    public void UncropLayers(LayerModel currentLayer, int x1, int y1, int oldWidth, int oldHeight, int[][] margins) {
+        for (int k = 0; k < this.layers.size(); k++) {
+            if (margins[k] == null) continue;
+            LayerModel lm = this.layers.get(k);
+            lm.setPixelGrid(ImageController.Uncrop(lm.getPixelGrid(), margins[k], x1, y1, oldWidth, oldHeight));
+        }
+    }
+
     public void NNIResizeLayers(LayerModel currentLayer, int newWidth, int newHeight) throws Exception {
         for (LayerModel lm : layers) {
-            Color[][] pg = lm.getPixelGrid();
+            PixelBuffer pg = lm.getPixelGrid();
             pg = ImageController.NNIResize(pg, newWidth, newHeight);
             lm.setPixelGrid(pg);
             if (lm.equals(currentLayer)) 
@@ -194,10 +337,39 @@ public class LayerManager implements Cloneable { // all layers must be the same
         }
     }
 
+    // Undoes a resize that IsNNIResizeLossless says lost nothing
+    public void NNIUnresizeLayers(LayerModel currentLayer, int oldWidth, int oldHeight) {
+        for (LayerModel lm : layers) {
+            lm.setPixelGrid(ImageController.NNIUnresize(lm.getPixelGrid(), oldWidth, oldHeight));
+        }
+    }
+
+    // Each layer's pixel grid, null for hidden ones. Not copies, only for keeping grids that are about to be replaced
+    public PixelBuffer[] GetLayerGrids() {
+        PixelBuffer[] grids = new PixelBuffer[this.layers.size()];
+        for (int k = 0; k < grids.length; k++) {
+            LayerModel lm = this.layers.get(k);
+            if (lm.isVisible()) {
+                grids[k] = lm.getPixelGrid();
+            }
+        }
+        return grids;
+    }
+
+    public void SetLayerGrids(PixelBuffer[] grids) {
+        for (int k = 0; k < this.layers.size(); k++) {
+            if (grids[k] != null) {
+                this.layers.get(k).setPixelGrid(grids[k]);
+            }
+        }
+    }
+
+    // Rotations and flips only change the orientation each layer's pixels are read in, O(1) however big they are,
+    // see PixelBuffer.materialise
     public void RotateLayersLeft(LayerModel currentLayer) {
         for (LayerModel lm : layers) {
-            Color[][] pg = lm.getPixelGrid();
-            pg = ImageController.RotateImageLeft(pg);
+            PixelBuffer pg = lm.getPixelGrid();
+            pg = pg.rotatedLeft();
             lm.setPixelGrid(pg);
             if (lm.equals(currentLayer)) 
                 currentLayer.setPixelGrid(pg);
@@ -206,8 +378,8 @@ public class LayerManager implements Cloneable { // all layers must be the same
 
     public void RotateLayersRight(LayerModel currentLayer) {
         for (LayerModel lm : layers) {
-            Color[][] pg = lm.getPixelGrid();
-            pg = ImageController.RotateImageRight(pg);
+            PixelBuffer pg = lm.getPixelGrid();
+            pg = pg.rotatedRight();
             lm.setPixelGrid(pg);
             if (lm.equals(currentLayer)) 
                 currentLayer.setPixelGrid(pg);
@@ -216,8 +388,8 @@ public class LayerManager implements Cloneable { // all layers must be the same
 
     public void FlipLayersH(LayerModel currentLayer) {
         for (LayerModel lm : layers) {
-            Color[][] pg = lm.getPixelGrid();
-            pg = ImageController.FlipImageHorizontal(pg);
+            PixelBuffer pg = lm.getPixelGrid();
+            pg = pg.flippedHorizontal();
             lm.setPixelGrid(pg);
             if (lm.equals(currentLayer)) 
                 currentLayer.setPixelGrid(pg);
@@ -226,8 +398,8 @@ public class LayerManager implements Cloneable { // all layers must be the same
 
     public void FlipLayersV(LayerModel currentLayer) {
         for (LayerModel lm : layers) {
-            Color[][] pg = lm.getPixelGrid();
-            pg = ImageController.FlipImageVertical(pg);
+            PixelBuffer pg = lm.getPixelGrid();
+            pg = pg.flippedVertical();
             lm.setPixelGrid(pg);
             if (lm.equals(currentLayer)) 
                 currentLayer.setPixelGrid(pg);
@@ -246,6 +418,13 @@ public class LayerManager implements Cloneable { // all layers must be the same
             copy.height = this.height;
             copy.width = this.width;
             copy.nameCount = this.nameCount;
+            // the copy has its own LayerModel objects so none of the caches apply to it
+            copy.activeLayer = null;
+            copy.belowCache = null;
+            copy.aboveCache = null;
+            copy.cachedActive = null;
+            copy.cachedLayers = null;
+            copy.cachedVersions = null;
             return copy;
         } catch (CloneNotSupportedException e) {
             throw new AssertionError(); 
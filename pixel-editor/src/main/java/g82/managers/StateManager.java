@@ -2,125 +2,298 @@ package g82.managers;
 
 // some parts will probably need to be extracted into other classes in line with class diagram
 
-import java.awt.Color;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import g82.CanvasPanel;
-import g82.controllers.ImageController;
 import g82.models.GlobalStateModel;
 import g82.models.IStateModel;
 import g82.models.LayerModel;
 import g82.models.LayerStateModel;
 import g82.models.LocalStateModel;
+import g82.models.PixelBuffer;
+import g82.models.PropertyStateModel;
 import g82.models.StateResult;
 
-// uses an array to manage the undo/redo of different buffered images that are chosen to be saved as states
+// keeps a list of states to manage the undo/redo of different actions that are chosen to be saved
 // saving state should be after each action is performed i.e. filling, drawing a line, rotating image etc.
-// 3 types of states for different actions: Global, Single Layer (Local) and LayerManager modifictions.
+// 4 types of states for different actions: Global, Single Layer (Local), LayerManager modifictions and
+// changes to a layer's properties (opacity, visibility, order) which don't need any pixels saved.
+// Instead of a fixed number of states the history is limited by how much memory the states hold (memoryBudget),
+// once it's over the budget the states furthest from the current position are spilled to a HistoryJournal on disk,
+// so big images don't run out of memory and the history is still never cut short. Undoing back to a spilled state
+// reads it back in. The current state is always kept in memory even if it is over the budget on its own.
+// States share PixelBuffer tiles with each other (a layer state's before and after managers, a resize's old grids...)
+// so each tile is only counted once, by the state nearest the current position that holds it. Tiles the history
+// shares with the layers on the canvas are still counted, the history can't see those.
+// Working out what's shared means going through every tile, so it's only done when a state that can hold tiles is
+// saved or dropped, otherwise the total is kept up to date with each state's own size as it changes.
 public class StateManager {
-    private int curIndex;
-    private int redoLim;
-    private int undoLim;
-    private IStateModel[] states;
-    private static final int MAX_STATES = 10;
+    // 64MB unless set with -Dg82.undoBudgetMB
+    public static final long DEFAULT_MEMORY_BUDGET = Long.getLong("g82.undoBudgetMB", 64) * 1024 * 1024;
+    private static final int HOT_STATES = 3; // states this close to the current position are kept uncompressed
+    private List<HistoryEntry> states; // oldest first
+    private int curIndex; // the last state that has been applied, the ones after it can be redone
+    private long memoryBudget;
+    private long retainedSize; // bytes held by the states that haven't been spilled, shared tiles counted once
+    private HistoryJournal journal;
 
-    public StateManager(LayerModel lm) {
-        this.curIndex = 0;
-        this.redoLim = 0; 
-        this.undoLim = 0; 
-        this.states = new IStateModel[MAX_STATES];
-        for (int i = 0; i < MAX_STATES; i++) {
-            this.states[i] = new LocalStateModel(lm, ImageController.ClonePixelGrid(lm.getPixelGrid()), ImageController.ClonePixelGrid(lm.getPixelGrid()));
+    // Nothing is allocated up front, the list grows as states are saved and the journal file
+    // is only made once something is spilled to it, so making one (or resetting it) is free
+    public StateManager() {
+        this(DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * @param memoryBudget - bytes the history can hold in memory before the states furthest back are spilled
+     */
+    public StateManager(long memoryBudget) {
+        this.states = new ArrayList<>();
+        this.curIndex = -1;
+        this.memoryBudget = memoryBudget;
+        this.journal = new HistoryJournal();
+    }
+
+    public void SetMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        TrimToBudget();
+        UpdateColdStates();
+    }
+
+    public long GetMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    // bytes currently held in memory by the history
+    public long GetRetainedSize() {
+        return this.retainedSize;
+    }
+
+    public int GetStateCount() {
+        return this.states.size();
+    }
+
+    // states that haven't been spilled to the journal
+    public int GetInMemoryStateCount() {
+        int count = 0;
+        for (HistoryEntry entry : this.states) {
+            if (!entry.IsEvicted()) count++;
         }
+        return count;
     }
 
-    public void SaveLocalState(LayerModel lm, Color[][] oldPixelGrid, Color[][] newPixelGrid) {
-        curIndex = (curIndex + 1) % MAX_STATES;
-        redoLim = curIndex;
+    // a new state replaces anything that could have been redone
+    private void AddState(IStateModel sm) {
+        boolean sharingChanged = false;
+        while (this.states.size() > this.curIndex + 1) {
+            HistoryEntry dropped = this.states.remove(this.states.size() - 1);
+            this.retainedSize -= dropped.Discard();
+            sharingChanged |= dropped.SharesTiles();
+        }
+        CompactJournal();
 
-        if (undoLim == -1) { 
-            undoLim = 0;
-        } else if (curIndex == undoLim) {
-            undoLim = (undoLim + 1) % MAX_STATES;
+        HistoryEntry entry = new HistoryEntry(sm);
+        this.states.add(entry);
+        this.curIndex = this.states.size() - 1;
+        if (sharingChanged || entry.SharesTiles()) {
+            Recount();
+        } else {
+            this.retainedSize += entry.GetSize();
         }
+        TrimToBudget();
+        UpdateColdStates();
+    }
 
-        LocalStateModel sm = new LocalStateModel(lm, oldPixelGrid, newPixelGrid);
-        states[curIndex] = sm;
+    // Works out retainedSize from the states in memory, nearest the current position first so a tile shared between
+    // states is counted by the one that will be kept longest
+    private void Recount() {
+        Set<Object> counted = new HashSet<>();
+        long size = 0;
+        for (int d = 0; d <= this.states.size(); d++) {
+            size += CountState(this.curIndex - d, counted);
+            if (d > 0) size += CountState(this.curIndex + d, counted);
+        }
+        this.retainedSize = size;
     }
 
-    public void SaveGlobalState(GlobalStateModel.Op op, int newWidth, int newHeight, int oldWidth, int oldHeight) {
-        curIndex = (curIndex + 1) % MAX_STATES;
-        redoLim = curIndex;
+    private long CountState(int index, Set<Object> counted) {
+        if (index < 0 || index >= this.states.size() || this.states.get(index).IsEvicted()) {
+            return 0;
+        }
+        return this.states.get(index).Recount(counted);
+    }
 
-        if (undoLim == -1) {
-            undoLim = 0;
-        } else if (curIndex == undoLim) {
-            undoLim = (undoLim + 1) % MAX_STATES;
+    // States further back (or forward) than HOT_STATES are compressed in the background, and ones that come
+    // back within range are inflated (or read back from the journal if they fit) ahead of undo/redo getting to them,
+    // so recent undos never wait
+    private void UpdateColdStates() {
+        for (int i = 0; i < this.states.size(); i++) {
+            HistoryEntry entry = this.states.get(i);
+            this.retainedSize += entry.TakeUnreported(); // inflated in the background since, or failed to spill
+            boolean cold = Math.abs(i - this.curIndex) > HOT_STATES;
+            if (!cold && entry.IsEvicted() && this.retainedSize + entry.GetFullSize() <= this.memoryBudget) {
+                this.retainedSize += entry.Restore();
+            }
+        }
+        // states inflated in the background get their own copies of the tiles, so they can count for more than
+        // when they were compressed
+        TrimToBudget();
+        for (int i = 0; i < this.states.size(); i++) {
+            this.states.get(i).SetCold(Math.abs(i - this.curIndex) > HOT_STATES);
         }
-        
-        GlobalStateModel sm = new GlobalStateModel(op, newWidth, newHeight, oldWidth, oldHeight);
-        states[curIndex] = sm;
     }
 
-    public void SaveGlobalState(LayerStateModel lsm, GlobalStateModel.Op op, int newWidth, int newHeight, int oldWidth, int oldHeight) {
-        curIndex = (curIndex + 1) % MAX_STATES;
-        redoLim = curIndex;
+    // bytes the history actually holds at the moment, less than GetRetainedSize once old states are compressed
+    public long GetHeapSize() {
+        long size = 0;
+        for (HistoryEntry entry : this.states) {
+            size += entry.GetHeapSize();
+        }
+        return size;
+    }
 
-        if (undoLim == -1) {
-            undoLim = 0;
-        } else if (curIndex == undoLim) {
-            undoLim = (undoLim + 1) % MAX_STATES;
+    // waits for the background compression to catch up, for tests
+    public void AwaitCompression() {
+        HistoryEntry.AwaitBackgroundWork();
+    }
+
+    // Spills the states furthest from the current position until the rest fit in the budget. Tiles are counted
+    // by the nearest state that holds them so the furthest one only counts its own, the others stay the same
+    private void TrimToBudget() {
+        while (this.retainedSize > this.memoryBudget) {
+            int furthest = -1;
+            for (int i = 0; i < this.states.size(); i++) {
+                if (i != this.curIndex && !this.states.get(i).IsEvicted()
+                        && (furthest < 0 || Math.abs(i - this.curIndex) > Math.abs(furthest - this.curIndex))) {
+                    furthest = i;
+                }
+            }
+            if (furthest < 0 || !this.journal.IsWritable()) break; // if the disk's full they just stay in memory
+
+            this.retainedSize -= this.states.get(furthest).Evict(this.journal);
         }
-        
-        GlobalStateModel sm = new GlobalStateModel(lsm, op, newWidth, newHeight, oldWidth, oldHeight);
-        states[curIndex] = sm;
+    }
+
+    // the state at index, read back from the journal first if it was spilled
+    private IStateModel PageIn(int index) {
+        HistoryEntry entry = this.states.get(index);
+        if (entry.IsEvicted()) {
+            this.retainedSize += entry.Restore(); // read back with its own copies of the tiles, so counted in full
+            entry.Get();
+            TrimToBudget();
+        }
+        return entry.Get();
+    }
+
+    public void SaveLocalState(int layerNum, PixelBuffer oldPixelGrid, PixelBuffer newPixelGrid) {
+        AddState(new LocalStateModel(layerNum, oldPixelGrid, newPixelGrid));
+    }
+
+    public void SaveLocalState(LocalStateModel lsm) {
+        AddState(lsm);
+    }
+
+    public void SaveGlobalState(GlobalStateModel.Op op, int newWidth, int newHeight, int oldWidth, int oldHeight) {
+        AddState(new GlobalStateModel(op, newWidth, newHeight, oldWidth, oldHeight));
+    }
+
+    public void SaveCropState(int x1, int y1, int x2, int y2, int[][] cropMargins, int newWidth, int newHeight, int oldWidth, int oldHeight) {
+        AddState(new GlobalStateModel(x1, y1, x2, y2, cropMargins, newWidth, newHeight, oldWidth, oldHeight));
+    }
+
+    // the grids are cloned (the tiles are shared until written) so edits to them after this don't change the history
+    public void SaveResizeState(PixelBuffer[] oldGrids, int newWidth, int newHeight, int oldWidth, int oldHeight) {
+        AddState(new GlobalStateModel(CloneGrids(oldGrids), newWidth, newHeight, oldWidth, oldHeight));
     }
     
-    public void SaveLayerState(LayerManager prevLayerManager, LayerManager newLayerManager, int oldLayerNum, int newLayerNum) {
-        curIndex = (curIndex + 1) % MAX_STATES;
-        redoLim = curIndex;
-        
-        if (undoLim == -1) {
-            undoLim = 0;
-        } else if (curIndex == undoLim) {
-            undoLim = (undoLim + 1) % MAX_STATES;
+    private static PixelBuffer[] CloneGrids(PixelBuffer[] grids) {
+        if (grids == null) {
+            return null;
+        }
+
+        PixelBuffer[] copies = new PixelBuffer[grids.length];
+        for (int k = 0; k < grids.length; k++) {
+            copies[k] = grids[k] == null ? null : grids[k].clone();
         }
-        
-        LayerStateModel sm = new LayerStateModel(prevLayerManager, newLayerManager, oldLayerNum, newLayerNum);
-        states[curIndex] = sm;
+        return copies;
+    }
+
+    public void SaveLayerState(LayerManager prevLayerManager, LayerManager newLayerManager, int oldLayerNum, int newLayerNum) {
+        AddState(new LayerStateModel(prevLayerManager, newLayerManager, oldLayerNum, newLayerNum));
+    }
+
+    public void SaveOpacityState(int layerNum, float oldOpacity, float newOpacity) {
+        AddState(new PropertyStateModel(layerNum, oldOpacity, newOpacity));
+    }
+
+    public void SaveVisibilityState(int layerNum) {
+        AddState(new PropertyStateModel(layerNum));
+    }
+
+    public void SaveLayerPosState(int oldLayerNum, int newLayerNum) {
+        AddState(new PropertyStateModel(oldLayerNum, newLayerNum));
     }
 
     public IStateModel GetCurState() {
-        return states[Math.max(0,curIndex)]; //If states have just been reset (curIndex=-1) and this is called, returns state 0 avoiding errors
+        return curIndex >= 0 ? states.get(curIndex).Get() : null; // null if nothing has been saved or it's all been undone
     }
 
     public StateResult UndoState(LayerManager layerManager, LayerModel curLayer) throws Exception {
-        if (undoLim == curIndex || curIndex == -1) {
+        if (!canUndo()) {
             throw new Exception("Undo limit hit");
         }
 
-        IStateModel sm = states[curIndex];
+        IStateModel sm = PageIn(curIndex);
         if (sm.GetLocality().equals(IStateModel.Locality.LOCAL)) {
             LocalStateModel lsm = (LocalStateModel)sm;
-            curLayer.setPixelGrid(ImageController.ClonePixelGrid(lsm.GetOldPixelGrid()));
-            curIndex = (curIndex - 1 + MAX_STATES) % MAX_STATES;
+            // the layer it was made on, which may not be the one selected now
+            LayerModel layer = layerManager.FindLayer(lsm.GetLayerNum());
+            lsm.ApplyOld(layer.getStoredPixelGrid());
+            layer.markChanged();
+            curIndex--;
+            UpdateColdStates();
             return new StateResult(layerManager, curLayer);
         } else if (sm.GetLocality().equals(IStateModel.Locality.LAYER)) {
             LayerStateModel lsm = (LayerStateModel)sm;
             layerManager = lsm.GetOldLayerManager().clone();
             curLayer = layerManager.FindLayer(lsm.GetOldLayerNum()); // Prevents a non existent layer from being selected
-            curIndex = (curIndex - 1 + MAX_STATES) % MAX_STATES;
+            curIndex--;
+            UpdateColdStates();
+            return new StateResult(layerManager, curLayer);
+        } else if (sm.GetLocality().equals(IStateModel.Locality.PROPERTY)) {
+            PropertyStateModel psm = (PropertyStateModel)sm;
+            // changed in place, the layers are the same objects so nothing needs cloning
+            switch (psm.GetProperty()) {
+                case OPACITY:
+                layerManager.FindLayer(psm.GetOldLayerNum()).setOpacity(psm.GetOldOpacity());
+                break;
+                case VISIBILITY:
+                layerManager.FindLayer(psm.GetOldLayerNum()).toggleVisibility();
+                break;
+                case POSITION:
+                layerManager.ChangeLayerPos(psm.GetNewLayerNum(), psm.GetOldLayerNum());
+                break;
+            }
+            curLayer = layerManager.FindLayer(psm.GetOldLayerNum());
+            curIndex--;
+            UpdateColdStates();
             return new StateResult(layerManager, curLayer);
         } else{
             GlobalStateModel gsm = (GlobalStateModel)sm;
             // Replay the opposite global state change.
             switch (gsm.GetOp()) {
                 case RESIZE:
-                layerManager = gsm.GetOldLayerManager().clone();
-                curLayer = layerManager.FindLayer(gsm.GetOldLayerNum());
+                if (gsm.GetOldGrids() != null) {
+                    // cloned again so in place edits of the layers, e.g. undoing strokes, don't reach the saved grids
+                    layerManager.SetLayerGrids(CloneGrids(gsm.GetOldGrids()));
+                } else {
+                    layerManager.NNIUnresizeLayers(curLayer, gsm.GetOldWidth(), gsm.GetOldHeight());
+                }
                 break;
                 case CROP:
-                layerManager = gsm.GetOldLayerManager().clone();
-                curLayer = layerManager.FindLayer(gsm.GetOldLayerNum());
+                layerManager.UncropLayers(curLayer, gsm.GetCropX1(), gsm.GetCropY1(), gsm.GetOldWidth(), gsm.GetOldHeight(), gsm.GetCropMargins());
                 break;
                 case ROTATE_LEFT:
                 layerManager.RotateLayersRight(curLayer);
@@ -140,38 +313,55 @@ public class StateManager {
             layerManager.SetWidth(gsm.GetOldWidth());
             CanvasPanel.setCols(gsm.GetOldWidth());
             CanvasPanel.setRows(gsm.GetOldHeight());
-            curIndex = (curIndex - 1 + MAX_STATES) % MAX_STATES;
+            curIndex--;
+            UpdateColdStates();
             return new StateResult(layerManager, curLayer);
         }
     }
 
     public StateResult RedoState(LayerManager layerManager, LayerModel curLayer) throws Exception {
-        if (redoLim == curIndex) {
+        if (!canRedo()) {
             throw new Exception("Redo limit hit");
         }
 
-        curIndex = (curIndex + 1) % MAX_STATES;
-        IStateModel sm = states[curIndex];
+        curIndex++;
+        IStateModel sm = PageIn(curIndex);
+        UpdateColdStates();
         if (sm.GetLocality().equals(IStateModel.Locality.LOCAL)) {
             LocalStateModel lsm = (LocalStateModel)sm;
-            curLayer.setPixelGrid(ImageController.ClonePixelGrid(lsm.GetNewPixelGrid()));
+            LayerModel layer = layerManager.FindLayer(lsm.GetLayerNum());
+            lsm.ApplyNew(layer.getStoredPixelGrid());
+            layer.markChanged();
             return new StateResult(layerManager, curLayer);
         } else if (sm.GetLocality().equals(IStateModel.Locality.LAYER)) {
             LayerStateModel lsm = (LayerStateModel)sm;
             layerManager = lsm.GetNewLayerManager().clone();
             curLayer = layerManager.FindLayer(lsm.GetNewLayerNum());  // Prevents a non existent layer from being selected
             return new StateResult(layerManager, curLayer);
+        } else if (sm.GetLocality().equals(IStateModel.Locality.PROPERTY)) {
+            PropertyStateModel psm = (PropertyStateModel)sm;
+            switch (psm.GetProperty()) {
+                case OPACITY:
+                layerManager.FindLayer(psm.GetNewLayerNum()).setOpacity(psm.GetNewOpacity());
+                break;
+                case VISIBILITY:
+                layerManager.FindLayer(psm.GetNewLayerNum()).toggleVisibility();
+                break;
+                case POSITION:
+                layerManager.ChangeLayerPos(psm.GetOldLayerNum(), psm.GetNewLayerNum());
+                break;
+            }
+            curLayer = layerManager.FindLayer(psm.GetNewLayerNum());
+            return new StateResult(layerManager, curLayer);
         } else{
             GlobalStateModel gsm = (GlobalStateModel)sm;
             // Replay the global state change.
             switch (gsm.GetOp()) {
                 case RESIZE:
-                layerManager = gsm.GetNewLayerManager().clone();
-                curLayer = layerManager.FindLayer(gsm.GetNewLayerNum());
+                layerManager.NNIResizeLayers(curLayer, gsm.GetNewWidth(), gsm.GetNewHeight());
                 break;
                 case CROP:
-                layerManager = gsm.GetNewLayerManager().clone();
-                curLayer = layerManager.FindLayer(gsm.GetNewLayerNum());
+                layerManager.CropLayers(curLayer, gsm.GetCropX1(), gsm.GetCropY1(), gsm.GetCropX2(), gsm.GetCropY2());
                 break;
                 case ROTATE_LEFT:
                 layerManager.RotateLayersLeft(curLayer);
@@ -195,29 +385,59 @@ public class StateManager {
         }
     }
 
+    // empties the history, e.g. when a new image is opened
     public void ResetStates() {
-        states = new IStateModel[MAX_STATES];
+        for (HistoryEntry entry : states) {
+            entry.Discard(); // anything still queued for them is skipped
+        }
+        states.clear();
         curIndex = -1;
-        redoLim = -1;
-        undoLim = -1;
+        retainedSize = 0;
+        HistoryJournal old = journal;
+        journal = new HistoryJournal();
+        HistoryEntry.RunInBackground(old::Close); // after anything already writing to it
+    }
+
+    // Once most of the journal is states that have been dropped, the ones still in the history are copied to a new
+    // journal in the background and the old file is deleted
+    private void CompactJournal() {
+        if (this.journal.GetGarbage() * 2 <= this.journal.GetSize()) {
+            return;
+        }
+
+        HistoryJournal old = this.journal;
+        HistoryJournal compacted = new HistoryJournal();
+        List<HistoryEntry> entries = new ArrayList<>(this.states);
+        this.journal = compacted;
+        HistoryEntry.RunInBackground(() -> {
+            for (HistoryEntry entry : entries) {
+                entry.MoveTo(old, compacted);
+            }
+            old.Close();
+        });
+    }
+
+    // bytes written to the journal file, for tests
+    public long GetJournalSize() {
+        return this.journal.GetSize();
     }
 
     public boolean canRedo() {
-        return redoLim != curIndex;
+        return curIndex < states.size() - 1;
     }
 
     public boolean canUndo() {
-        return undoLim != curIndex && curIndex != -1;
+        return curIndex >= 0;
     }
 
     public void PrintStates() { // function for debug
-        for (int i = 0; i < redoLim; i++) {
-            IStateModel sm = states[i];
+        System.out.println(states.size() + " states, " + retainedSize + " bytes");
+        for (int i = 0; i < states.size(); i++) {
+            IStateModel sm = states.get(i).Get();
             if (sm.GetLocality().equals(IStateModel.Locality.LOCAL)) {
                 LocalStateModel lsm = (LocalStateModel)sm;
                 System.out.println("----------");
-                ImageController.printGrid(lsm.GetOldPixelGrid());
-                ImageController.printGrid(lsm.GetNewPixelGrid());
+                System.out.println(lsm.GetChangedPixels() + " pixels changed");
                 System.out.println("----------");
             }
         }
@@ -0,0 +1,150 @@
+package g82.managers;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import g82.models.LocalStateModel;
+import g82.models.PixelBuffer;
+
+// Records a brush/erase stroke as it's drawn so it can be saved for undo without copying the canvas.
+// The first time a pixel is written its original value is kept, in 64x64 tiles that are only made
+// for the parts of the canvas the stroke goes over, so starting and finishing a stroke costs the
+// same however big the canvas is.
+public class StrokeManager {
+    private static final int TILE_SHIFT = 6;
+    private static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private PixelBuffer grid; // null when there's no stroke
+    private int tilesAcross;
+    private Map<Integer, Tile> tiles = new HashMap<>();
+
+    private static class Tile {
+        final int[] original = new int[TILE_SIZE * TILE_SIZE];
+        final long[] touched = new long[TILE_SIZE]; // a bit for each pixel, one long per row
+    }
+
+    /**
+     * Starts recording a stroke
+     * @param grid - pixel grid the stroke is drawn on
+     */
+    public void Begin(PixelBuffer grid) {
+        this.grid = grid;
+        this.tilesAcross = (grid.getWidth() + TILE_SIZE - 1) >> TILE_SHIFT;
+        this.tiles.clear();
+    }
+
+    public boolean IsRecording() {
+        return this.grid != null;
+    }
+
+    // Sets a pixel of the grid the stroke is on, remembering what it was the first time it's touched
+    public void SetPixel(int row, int col, int argb) {
+        if (this.grid == null) {
+            return;
+        }
+
+        int key = (row >> TILE_SHIFT) * this.tilesAcross + (col >> TILE_SHIFT);
+        Tile tile = this.tiles.get(key);
+        if (tile == null) {
+            tile = new Tile();
+            this.tiles.put(key, tile);
+        }
+
+        int r = row & (TILE_SIZE - 1);
+        int c = col & (TILE_SIZE - 1);
+        if ((tile.touched[r] & (1L << c)) == 0) {
+            tile.touched[r] |= 1L << c;
+            tile.original[r * TILE_SIZE + c] = this.grid.getPixel(row, col);
+        }
+        this.grid.setPixel(row, col, argb);
+    }
+
+    // whether any pixel ended up different from how it was when the stroke started
+    public boolean HasChanges() {
+        if (this.grid == null) {
+            return false;
+        }
+
+        for (Map.Entry<Integer, Tile> entry : this.tiles.entrySet()) {
+            int tileRow = (entry.getKey() / this.tilesAcross) << TILE_SHIFT;
+            int tileCol = (entry.getKey() % this.tilesAcross) << TILE_SHIFT;
+            Tile tile = entry.getValue();
+            for (int r = 0; r < TILE_SIZE; r++) {
+                for (long bits = tile.touched[r]; bits != 0; bits &= bits - 1) {
+                    int c = Long.numberOfTrailingZeros(bits);
+                    if (tile.original[r * TILE_SIZE + c] != this.grid.getPixel(tileRow + r, tileCol + c)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finishes the stroke
+     * @param layerNum - position of the layer the stroke was drawn on
+     * @return - the changes to save for undo, null if nothing changed
+     */
+    public LocalStateModel End(int layerNum) {
+        if (this.grid == null) {
+            return null;
+        }
+
+        int[] runs = new int[3 * 8];
+        int runCount = 0;
+        int[] oldPixels = new int[64];
+        int[] newPixels = new int[64];
+        int changed = 0;
+        for (Map.Entry<Integer, Tile> entry : this.tiles.entrySet()) {
+            int tileRow = (entry.getKey() / this.tilesAcross) << TILE_SHIFT;
+            int tileCol = (entry.getKey() % this.tilesAcross) << TILE_SHIFT;
+            Tile tile = entry.getValue();
+            for (int r = 0; r < TILE_SIZE; r++) {
+                int runStart = -1;
+                // one past the tile so the last run gets closed
+                for (int c = 0; c <= TILE_SIZE; c++) {
+                    boolean isChanged = false;
+                    int oldPixel = 0;
+                    int newPixel = 0;
+                    if (c < TILE_SIZE && (tile.touched[r] & (1L << c)) != 0) {
+                        oldPixel = tile.original[r * TILE_SIZE + c];
+                        newPixel = this.grid.getPixel(tileRow + r, tileCol + c);
+                        isChanged = oldPixel != newPixel;
+                    }
+
+                    if (isChanged) {
+                        if (runStart < 0) {
+                            runStart = c;
+                        }
+                        if (changed == oldPixels.length) {
+                            oldPixels = Arrays.copyOf(oldPixels, changed * 2);
+                            newPixels = Arrays.copyOf(newPixels, changed * 2);
+                        }
+                        oldPixels[changed] = oldPixel;
+                        newPixels[changed] = newPixel;
+                        changed++;
+                    } else if (runStart >= 0) {
+                        if ((runCount + 1) * 3 > runs.length) {
+                            runs = Arrays.copyOf(runs, runs.length * 2);
+                        }
+                        runs[runCount * 3] = tileRow + r;
+                        runs[runCount * 3 + 1] = tileCol + runStart;
+                        runs[runCount * 3 + 2] = c - runStart;
+                        runCount++;
+                        runStart = -1;
+                    }
+                }
+            }
+        }
+
+        PixelBuffer grid = this.grid;
+        this.grid = null;
+        this.tiles.clear();
+        if (changed == 0) {
+            return null;
+        }
+        return new LocalStateModel(layerNum, grid.getWidth(), grid.getHeight(), Arrays.copyOf(runs, runCount * 3),
+                                   Arrays.copyOf(oldPixels, changed), Arrays.copyOf(newPixels, changed));
+    }
+}
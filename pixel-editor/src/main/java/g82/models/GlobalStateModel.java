@@ -1,28 +1,36 @@
 package g82.models;
 
-import g82.managers.LayerManager;
+import java.util.Set;
 
 // class for global state changes such as rotating, flipping, cropping and resizing
+// Each op is redone by running it again and undone by its inverse, only what the op loses is kept:
+// rotating and flipping lose nothing, a crop keeps the margins it cut off and a resize keeps
+// the old pixel grids only if it dropped rows or columns (see ImageController.IsNNIResizeLossless)
 public class GlobalStateModel implements IStateModel {
+    private static final long serialVersionUID = 1L;
     private Op op;
     private int newWidth;
     private int newHeight;
     private int oldWidth;
     private int oldHeight;
-    private LayerStateModel lsm;
-    
-    // Resize, Crop
-    public GlobalStateModel(LayerStateModel lsm, Op op, int newWidth, int newHeight, int oldWidth, int oldHeight) {
-        try {
-            this.lsm = lsm;
-            this.op = op;
-            this.newHeight = newHeight;
-            this.newWidth = newWidth;
-            this.oldHeight = oldHeight;
-            this.oldWidth = oldWidth;
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    private int cropX1, cropY1, cropX2, cropY2; // CROP, x1 <= x2 and y1 <= y2
+    private int[][] cropMargins;   // CROP, each layer's pixels outside the crop
+    private PixelBuffer[] oldGrids; // RESIZE, null unless the resize was lossy
+
+    // Crop
+    public GlobalStateModel(int x1, int y1, int x2, int y2, int[][] cropMargins, int newWidth, int newHeight, int oldWidth, int oldHeight) {
+        this(Op.CROP, newWidth, newHeight, oldWidth, oldHeight);
+        this.cropX1 = x1;
+        this.cropY1 = y1;
+        this.cropX2 = x2;
+        this.cropY2 = y2;
+        this.cropMargins = cropMargins;
+    }
+
+    // Resize, oldGrids should be null if it didn't lose anything
+    public GlobalStateModel(PixelBuffer[] oldGrids, int newWidth, int newHeight, int oldWidth, int oldHeight) {
+        this(Op.RESIZE, newWidth, newHeight, oldWidth, oldHeight);
+        this.oldGrids = oldGrids;
     }
 
     // ROTATE_RIGHT, ROTATE_LEFT,FLIPH,FLIPV
@@ -32,7 +40,6 @@ public class GlobalStateModel implements IStateModel {
         this.newWidth = newWidth;
         this.oldHeight = oldHeight;
         this.oldWidth = oldWidth;
-        this.lsm = null;
     }
 
     @Override
@@ -40,6 +47,22 @@ public class GlobalStateModel implements IStateModel {
         return Locality.GLOBAL;
     }
 
+    @Override
+    public long GetRetainedSize(Set<Object> counted) {
+        long size = 64;
+        if (this.cropMargins != null) {
+            for (int[] margins : this.cropMargins) {
+                if (margins != null) size += 4L * margins.length + 16;
+            }
+        }
+        if (this.oldGrids != null) {
+            for (PixelBuffer grid : this.oldGrids) {
+                if (grid != null) size += grid.getRetainedSize(counted);
+            }
+        }
+        return size;
+    }
+
     public static enum Op {
         RESIZE,
         ROTATE_RIGHT,
@@ -69,18 +92,28 @@ public class GlobalStateModel implements IStateModel {
         return this.oldHeight;
     }
 
-    public LayerManager GetNewLayerManager() {
-        return this.lsm.GetNewLayerManager();
+    public int GetCropX1() {
+        return this.cropX1;
+    }
+
+    public int GetCropY1() {
+        return this.cropY1;
     }
 
-    public LayerManager GetOldLayerManager() {
-        return this.lsm.GetOldLayerManager();
+    public int GetCropX2() {
+        return this.cropX2;
     }
 
-    public int GetOldLayerNum() {
-        return this.lsm.GetNewLayerNum();
+    public int GetCropY2() {
+        return this.cropY2;
     }
-    public int GetNewLayerNum() {
-        return this.lsm.GetOldLayerNum();
+
+    public int[][] GetCropMargins() {
+        return this.cropMargins;
+    }
+
+    // null if the resize can be undone with NNIUnresize
+    public PixelBuffer[] GetOldGrids() {
+        return this.oldGrids;
     }
 }
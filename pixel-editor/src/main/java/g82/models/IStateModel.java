@@ -1,13 +1,31 @@
 package g82.models;
 
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
 // Interface that handles saving states for undo/redo
-public interface IStateModel {
+// Serializable so StateManager can compress states that are far back in the history
+public interface IStateModel extends Serializable {
     public static enum Locality {
         GLOBAL,
         LOCAL,
-        LAYER
+        LAYER,
+        PROPERTY
     }
 
     public Locality GetLocality();
 
+    // rough number of bytes this state keeps alive, StateManager spills the states furthest back to stay in its budget
+    public default long GetRetainedSize() {
+        return GetRetainedSize(new HashSet<>());
+    }
+
+    /**
+     * Same as GetRetainedSize but PixelBuffer tiles already in counted are left out, they're shared with
+     * something that's been counted already (a clone in another state, or another layer manager in this one)
+     * @param counted - tiles counted so far, this state's are added to it
+     */
+    public long GetRetainedSize(Set<Object> counted);
+
 }
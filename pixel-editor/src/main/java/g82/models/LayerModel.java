@@ -1,14 +1,17 @@
 package g82.models;
-import java.awt.Color;
+import java.io.Serializable;
+import java.util.Set;
 
 import g82.controllers.ImageController;
-public class LayerModel implements Cloneable {
+public class LayerModel implements Cloneable, Serializable {
+    private static final long serialVersionUID = 1L;
     private float opacity; // between 0 and 1 and technically the alpha value, but coverage is assumed as 100%
-    private Color[][] pixelGrid;
+    private PixelBuffer pixelGrid;
     private String name;
     private boolean isVisible;
+    private int version; // bumped whenever something that changes how the layer composites changes
 
-    public LayerModel(Color[][] pixelGrid, float opacity, String name) throws Exception {
+    public LayerModel(PixelBuffer pixelGrid, float opacity, String name) throws Exception {
         if (opacity > 1 || opacity < 0) {
             throw new Exception("Invalid opactity value");
         }
@@ -18,20 +21,19 @@ public class LayerModel implements Cloneable {
         this.name = name;
         this.isVisible = true;
     }
-    public Color[][] getPixelGrid() {
+    public PixelBuffer getPixelGrid() {
         if (this.isVisible) {
             return this.pixelGrid;
         } else {
-            Color[][] emptyGrid = new Color[pixelGrid.length][pixelGrid[0].length];
-            for (int i = 0; i < pixelGrid.length; i++){
-                for (int j = 0; j < pixelGrid[0].length; j++){
-                    emptyGrid[i][j] = new Color(255,255,255,0);
-                }
-            }
-            return emptyGrid;
+            return new PixelBuffer(pixelGrid.getWidth(), pixelGrid.getHeight(), PixelBuffer.TRANSPARENT);
         }
     }
 
+    // the layer's own grid even while it's hidden, for undo/redo to patch in place
+    public PixelBuffer getStoredPixelGrid() {
+        return this.pixelGrid;
+    }
+
     public float getOpacity() {
         return this.opacity;
     }
@@ -41,12 +43,16 @@ public class LayerModel implements Cloneable {
             throw new Exception("Invalid opacity value (0 - 1)");
         }
 
-        this.opacity = opacity;
+        if (this.opacity != opacity) {
+            this.opacity = opacity;
+            this.version++;
+        }
     }
 
-    public void setPixelGrid(Color[][] pixelGrid) {
-        if (this.isVisible) {
+    public void setPixelGrid(PixelBuffer pixelGrid) {
+        if (this.isVisible && this.pixelGrid != pixelGrid) {
             this.pixelGrid = pixelGrid;
+            this.version++;
         }
     }
 
@@ -60,6 +66,27 @@ public class LayerModel implements Cloneable {
 
     public void toggleVisibility(){
         this.isVisible = !this.isVisible;
+        this.version++;
+    }
+
+    // to be called after editing the pixels of the grid in place
+    public void markChanged() {
+        this.version++;
+    }
+
+    // used by LayerManager to tell if cached composites involving this layer are out of date
+    public int getVersion() {
+        return this.version;
+    }
+
+    // the pixel grid is kept even while hidden
+    public long getRetainedSize() {
+        return this.pixelGrid.getRetainedSize() + 48;
+    }
+
+    // leaving out tiles already in counted, see PixelBuffer.getRetainedSize
+    public long getRetainedSize(Set<Object> counted) {
+        return this.pixelGrid.getRetainedSize(counted) + 48;
     }
 
     public boolean isVisible(){
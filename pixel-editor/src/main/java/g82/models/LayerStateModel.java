@@ -1,9 +1,12 @@
 package g82.models;
 
+import java.util.Set;
+
 import g82.managers.LayerManager;
 
 // Class for saving edits relating to layers e.g. add layer, remove layer, reorder layer, etc...
 public class LayerStateModel implements IStateModel {
+    private static final long serialVersionUID = 1L;
     private LayerManager prevLayerManager;
     private LayerManager newLayerManager;
     private int oldLayerNum;
@@ -23,6 +26,15 @@ public class LayerStateModel implements IStateModel {
         return Locality.LAYER;
     }
 
+    @Override
+    public long GetRetainedSize(Set<Object> counted) {
+        // the two managers share the tiles of every layer that wasn't changed
+        long size = 48;
+        if (this.prevLayerManager != null) size += this.prevLayerManager.GetRetainedSize(counted);
+        if (this.newLayerManager != null) size += this.newLayerManager.GetRetainedSize(counted);
+        return size;
+    }
+
     public LayerManager GetNewLayerManager() {
         return this.newLayerManager;
     }
@@ -1,36 +1,146 @@
 package g82.models;
 
-import java.awt.Color;
+import java.util.Arrays;
+import java.util.Set;
 
-import g82.controllers.ImageController;
-
-// Saves the state for just one layer, this makes it more efficient than using LayerStateModel
+// Saves the state for just one layer, this makes it more efficient than using LayerStateModel.
+// Only the pixels that changed are kept: runs of changed pixels along each row, with their old and new values,
+// so a stroke that touched a few pixels costs a few ints instead of two copies of the whole layer.
+// Undo/redo patch the layer's grid in place.
 public class LocalStateModel implements IStateModel {
-    private LayerModel lm;
-    private Color[][] oldPixelGrid;
-    private Color[][] newPixelGrid;
-    public LocalStateModel(LayerModel lm, Color[][] oldPixelGrid, Color[][] newPixelGrid) {
-        try {
-            this.lm = lm.clone();
-            this.newPixelGrid = ImageController.ClonePixelGrid(newPixelGrid);
-            this.oldPixelGrid = ImageController.ClonePixelGrid(oldPixelGrid);
-        } catch (Exception e) {
-            System.out.println(e);
+    private static final long serialVersionUID = 1L;
+    private int layerNum; // position of the layer it was made on, undo/redo patch that layer whichever is selected
+    private int width;
+    private int height;
+    private int[] runs;      // row, col, length for each run of changed pixels
+    private int runCount;
+    private int[] oldPixels; // the run's pixels before the change, one after another
+    private int[] newPixels; // and after
+    private int changed;
+
+    public LocalStateModel(int layerNum, PixelBuffer oldPixelGrid, PixelBuffer newPixelGrid) {
+        if (!oldPixelGrid.sameSize(newPixelGrid)) {
+            throw new IllegalArgumentException("Old and new pixel grids must be the same size");
+        }
+
+        this.layerNum = layerNum;
+        this.width = newPixelGrid.getWidth();
+        this.height = newPixelGrid.getHeight();
+        this.runs = new int[3 * 8];
+        this.oldPixels = new int[64];
+        this.newPixels = new int[64];
+
+        int[] oldRow = new int[this.width];
+        int[] newRow = new int[this.width];
+        for (int i = 0; i < this.height; i++) {
+            oldPixelGrid.getRow(i, oldRow, 0);
+            newPixelGrid.getRow(i, newRow, 0);
+            int j = 0;
+            while (j < this.width) {
+                if (oldRow[j] == newRow[j]) {
+                    j++;
+                    continue;
+                }
+
+                int start = j;
+                while (j < this.width && oldRow[j] != newRow[j]) {
+                    j++;
+                }
+                AddRun(i, start, j - start, oldRow, newRow);
+            }
         }
+
+        // trim the spare capacity, states can be kept around for a long time
+        this.runs = Arrays.copyOf(this.runs, this.runCount * 3);
+        this.oldPixels = Arrays.copyOf(this.oldPixels, this.changed);
+        this.newPixels = Arrays.copyOf(this.newPixels, this.changed);
     }
+
+    /**
+     * For changes that were recorded as they were made, e.g. by StrokeManager
+     * @param runs - row, col, length for each run of changed pixels
+     * @param oldPixels - each run's pixels before the change, one after another
+     * @param newPixels - and after
+     */
+    public LocalStateModel(int layerNum, int width, int height, int[] runs, int[] oldPixels, int[] newPixels) {
+        if (runs.length % 3 != 0 || oldPixels.length != newPixels.length) {
+            throw new IllegalArgumentException("Runs don't match the changed pixels");
+        }
+
+        this.layerNum = layerNum;
+        this.width = width;
+        this.height = height;
+        this.runs = runs;
+        this.runCount = runs.length / 3;
+        this.oldPixels = oldPixels;
+        this.newPixels = newPixels;
+        this.changed = oldPixels.length;
+    }
+
+    private void AddRun(int row, int col, int len, int[] oldRow, int[] newRow) {
+        if ((this.runCount + 1) * 3 > this.runs.length) {
+            this.runs = Arrays.copyOf(this.runs, this.runs.length * 2);
+        }
+        if (this.changed + len > this.oldPixels.length) {
+            int size = Math.max(this.oldPixels.length * 2, this.changed + len);
+            this.oldPixels = Arrays.copyOf(this.oldPixels, size);
+            this.newPixels = Arrays.copyOf(this.newPixels, size);
+        }
+
+        this.runs[this.runCount * 3] = row;
+        this.runs[this.runCount * 3 + 1] = col;
+        this.runs[this.runCount * 3 + 2] = len;
+        System.arraycopy(oldRow, col, this.oldPixels, this.changed, len);
+        System.arraycopy(newRow, col, this.newPixels, this.changed, len);
+        this.runCount++;
+        this.changed += len;
+    }
+
     @Override
     public Locality GetLocality() {
         return Locality.LOCAL;
     }
 
-    public LayerModel GetLayer() {
-        return this.lm;
+    public int GetLayerNum() {
+        return this.layerNum;
+    }
+
+    @Override
+    public long GetRetainedSize(Set<Object> counted) {
+        return 4L * (this.runs.length + this.oldPixels.length + this.newPixels.length) + 96;
+    }
+
+    // number of pixels that were changed
+    public int GetChangedPixels() {
+        return this.changed;
     }
-    
-    public Color[][] GetNewPixelGrid() {
-        return this.newPixelGrid;
+
+    /**
+     * Puts the changed pixels back to how they were before, used for undo
+     * @param grid - grid the change was made to, patched in place
+     */
+    public void ApplyOld(PixelBuffer grid) throws Exception {
+        Apply(grid, this.oldPixels);
+    }
+
+    /**
+     * Makes the change again, used for redo
+     * @param grid - grid the change was undone on, patched in place
+     */
+    public void ApplyNew(PixelBuffer grid) throws Exception {
+        Apply(grid, this.newPixels);
     }
-    public Color[][] GetOldPixelGrid() {
-        return this.oldPixelGrid;
+
+    private void Apply(PixelBuffer grid, int[] pixels) throws Exception {
+        if (grid.getWidth() != this.width || grid.getHeight() != this.height) {
+            throw new Exception("Pixel grid does not match the size of the saved state");
+        }
+
+        int offset = 0;
+        for (int r = 0; r < this.runCount; r++) {
+            int len = this.runs[r * 3 + 2];
+            grid.setRow(this.runs[r * 3], this.runs[r * 3 + 1], len, pixels, offset);
+            offset += len;
+        }
     }
 }
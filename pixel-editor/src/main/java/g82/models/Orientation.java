@@ -0,0 +1,59 @@
+package g82.models;
+
+// The 8 ways a grid can be turned and mirrored (the dihedral group of a square). A PixelBuffer keeps its pixels
+// where they are and maps coordinates through its orientation instead, so rotating or flipping a layer is O(1).
+// Each one is a transpose (swap rows and columns) followed by reversing the rows and/or the columns.
+public enum Orientation {
+    IDENTITY(false, false, false),
+    ROTATE_RIGHT(true, true, false),
+    ROTATE_180(false, true, true),
+    ROTATE_LEFT(true, false, true),
+    FLIP_H(false, false, true),
+    FLIP_V(false, true, false),
+    TRANSPOSE(true, false, false),
+    ANTI_TRANSPOSE(true, true, true);
+
+    final boolean transposed;
+    final boolean flipRows;
+    final boolean flipCols;
+
+    Orientation(boolean transposed, boolean flipRows, boolean flipCols) {
+        this.transposed = transposed;
+        this.flipRows = flipRows;
+        this.flipCols = flipCols;
+    }
+
+    // true if the width and height are swapped
+    public boolean isTransposed() {
+        return this.transposed;
+    }
+
+    // this followed by a quarter turn clockwise, the same as ImageController.RotateImageRight
+    public Orientation rotateRight() {
+        return this.transposed ? Of(false, this.flipRows, !this.flipCols) : Of(true, !this.flipRows, this.flipCols);
+    }
+
+    // this followed by a quarter turn anticlockwise, the same as ImageController.RotateImageLeft
+    public Orientation rotateLeft() {
+        return this.transposed ? Of(false, !this.flipRows, this.flipCols) : Of(true, this.flipRows, !this.flipCols);
+    }
+
+    // this followed by mirroring left to right, the same as ImageController.FlipImageHorizontal
+    public Orientation flipH() {
+        return this.transposed ? Of(true, !this.flipRows, this.flipCols) : Of(false, this.flipRows, !this.flipCols);
+    }
+
+    // this followed by mirroring top to bottom, the same as ImageController.FlipImageVertical
+    public Orientation flipV() {
+        return this.transposed ? Of(true, this.flipRows, !this.flipCols) : Of(false, !this.flipRows, this.flipCols);
+    }
+
+    private static Orientation Of(boolean transposed, boolean flipRows, boolean flipCols) {
+        for (Orientation o : values()) {
+            if (o.transposed == transposed && o.flipRows == flipRows && o.flipCols == flipCols) {
+                return o;
+            }
+        }
+        throw new AssertionError(); // all 8 combinations are listed
+    }
+}
@@ -0,0 +1,363 @@
+package g82.models;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Set;
+
+// Pixel storage for a layer or image: packed ARGB values (0xAARRGGBB), the same as BufferedImage.TYPE_INT_ARGB.
+// Replaces Color[][] so a pixel is 4 bytes instead of a heap object; java.awt.Color should only be created at the UI edge.
+// The pixels are kept in 32x32 tiles, each a row-major int[], that are shared between clones until one of them
+// writes to it (copy-on-write). Cloning a layer for undo or a background task only copies the tile references,
+// and an edit afterwards only copies the tiles it touches.
+// Writing from several threads is fine as long as no two threads write to the same tile of a buffer that's been
+// cloned, ParallelController's bands are whole rows of tiles for this reason.
+// A buffer can also be a rotated or flipped view of its tiles (see Orientation), reads map each coordinate through
+// it and the first write lays the pixels out the right way round again (materialise), so an oriented buffer
+// shouldn't be written from several threads before it's materialised.
+public class PixelBuffer implements Cloneable, Serializable {
+    private static final long serialVersionUID = 2L;
+    // transparent white, what an empty layer is filled with
+    public static final int TRANSPARENT = 0x00FFFFFF;
+    public static final int TILE_SHIFT = 5;
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+
+    private int width;  // of the tiles, before the orientation
+    private int height;
+    private int tilesAcross;
+    private Orientation orientation = Orientation.IDENTITY;
+    private int[][] tiles; // row-major, the edge tiles are full size but only partly used
+    // false for tiles that might be shared with a clone and have to be copied before writing.
+    // Clones don't know when the other one is gone so a tile may get copied once more than needed
+    private transient boolean[] owned;
+
+    /**
+     * Creates a buffer with every pixel set to 0 (transparent black)
+     * @param width - width in pixels
+     * @param height - height in pixels
+     */
+    public PixelBuffer(int width, int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Invalid buffer size " + width + "x" + height);
+        }
+
+        this.width = width;
+        this.height = height;
+        this.tilesAcross = (width + TILE_MASK) >> TILE_SHIFT;
+        this.tiles = new int[this.tilesAcross * ((height + TILE_MASK) >> TILE_SHIFT)][];
+        for (int t = 0; t < this.tiles.length; t++) {
+            this.tiles[t] = new int[TILE_SIZE * TILE_SIZE];
+        }
+        this.owned = new boolean[this.tiles.length];
+        Arrays.fill(this.owned, true);
+    }
+
+    /**
+     * Creates a buffer with every pixel set to argb
+     */
+    public PixelBuffer(int width, int height, int argb) {
+        this(width, height);
+        fill(argb);
+    }
+
+    public int getWidth() {
+        return this.orientation.transposed ? this.height : this.width;
+    }
+
+    public int getHeight() {
+        return this.orientation.transposed ? this.width : this.height;
+    }
+
+    public Orientation getOrientation() {
+        return this.orientation;
+    }
+
+    // bytes used by the pixels plus a rough allowance for the object headers,
+    // tiles shared with a clone are counted in both
+    public long getRetainedSize() {
+        return (4L * TILE_SIZE * TILE_SIZE + 24) * this.tiles.length + 48;
+    }
+
+    /**
+     * Same as above counting each tile once however many clones share it
+     * @param counted - tiles counted so far, this buffer's are added to it. Tiles are int[]s so a HashSet
+     *                  (or WeakHashMap) goes by identity
+     */
+    public long getRetainedSize(Set<Object> counted) {
+        long size = 48;
+        for (int[] tile : this.tiles) {
+            if (counted.add(tile)) size += 4L * TILE_SIZE * TILE_SIZE + 24;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return this.width == 0 || this.height == 0;
+    }
+
+    public int getPixel(int row, int col) {
+        CheckPixel(row, col);
+        if (this.orientation != Orientation.IDENTITY) {
+            return TilePixel(PhysicalRow(row, col), PhysicalCol(row, col));
+        }
+        return TilePixel(row, col);
+    }
+
+    public void setPixel(int row, int col, int argb) {
+        CheckPixel(row, col);
+        materialise();
+        WritableTile((row >> TILE_SHIFT) * this.tilesAcross + (col >> TILE_SHIFT))[((row & TILE_MASK) << TILE_SHIFT) | (col & TILE_MASK)] = argb;
+    }
+
+    // copies a whole row into dst starting at dstOff
+    public void getRow(int row, int[] dst, int dstOff) {
+        getRow(row, 0, getWidth(), dst, dstOff);
+    }
+
+    // copies len pixels of a row, starting at col, into dst starting at dstOff
+    public void getRow(int row, int col, int len, int[] dst, int dstOff) {
+        CheckRow(row, col, len);
+        if (this.orientation != Orientation.IDENTITY) {
+            for (int k = 0; k < len; k++) {
+                dst[dstOff + k] = TilePixel(PhysicalRow(row, col + k), PhysicalCol(row, col + k));
+            }
+            return;
+        }
+
+        int tileRow = (row >> TILE_SHIFT) * this.tilesAcross;
+        int rowOff = (row & TILE_MASK) << TILE_SHIFT;
+        while (len > 0) {
+            int n = Math.min(len, TILE_SIZE - (col & TILE_MASK));
+            System.arraycopy(this.tiles[tileRow + (col >> TILE_SHIFT)], rowOff | (col & TILE_MASK), dst, dstOff, n);
+            col += n;
+            dstOff += n;
+            len -= n;
+        }
+    }
+
+    // overwrites a whole row with pixels from src starting at srcOff
+    public void setRow(int row, int[] src, int srcOff) {
+        setRow(row, 0, getWidth(), src, srcOff);
+    }
+
+    // overwrites len pixels of a row, starting at col, with pixels from src starting at srcOff
+    public void setRow(int row, int col, int len, int[] src, int srcOff) {
+        CheckRow(row, col, len);
+        materialise();
+        int tileRow = (row >> TILE_SHIFT) * this.tilesAcross;
+        int rowOff = (row & TILE_MASK) << TILE_SHIFT;
+        while (len > 0) {
+            int n = Math.min(len, TILE_SIZE - (col & TILE_MASK));
+            System.arraycopy(src, srcOff, WritableTile(tileRow + (col >> TILE_SHIFT)), rowOff | (col & TILE_MASK), n);
+            col += n;
+            srcOff += n;
+            len -= n;
+        }
+    }
+
+    // A view of the same pixels turned a quarter clockwise, shares the tiles like clone so it's O(1)
+    public PixelBuffer rotatedRight() {
+        return Reoriented(this.orientation.rotateRight());
+    }
+
+    public PixelBuffer rotatedLeft() {
+        return Reoriented(this.orientation.rotateLeft());
+    }
+
+    public PixelBuffer flippedHorizontal() {
+        return Reoriented(this.orientation.flipH());
+    }
+
+    public PixelBuffer flippedVertical() {
+        return Reoriented(this.orientation.flipV());
+    }
+
+    private PixelBuffer Reoriented(Orientation orientation) {
+        PixelBuffer copy = clone();
+        copy.orientation = orientation;
+        return copy;
+    }
+
+    // Lays the pixels out in new tiles the way they're seen so the orientation is back to IDENTITY,
+    // done by the first write. Tiles shared with clones aren't touched.
+    // Going pixel by pixel through getPixel for a rotation reads down a column of tiles for every new row, which
+    // misses the cache on every pixel for big images. Instead each new tile is filled from the (at most 4) old tiles
+    // under it, reading them a row at a time and writing across the new one with a stride, so a rotation or transpose
+    // is a blocked copy that stays in L1 (one tile is 4KB).
+    public void materialise() {
+        if (this.orientation == Orientation.IDENTITY) {
+            return;
+        }
+
+        Orientation o = this.orientation;
+        int newWidth = getWidth();
+        int newHeight = getHeight();
+        int across = (newWidth + TILE_MASK) >> TILE_SHIFT;
+        // how far along the new tile a step down or across the old pixels goes
+        int rowStep = (o.flipRows ? -1 : 1) * (o.transposed ? 1 : TILE_SIZE);
+        int colStep = (o.flipCols ? -1 : 1) * (o.transposed ? TILE_SIZE : 1);
+        int[][] newTiles = new int[across * ((newHeight + TILE_MASK) >> TILE_SHIFT)][];
+        for (int t = 0; t < newTiles.length; t++) {
+            int[] out = new int[TILE_SIZE * TILE_SIZE];
+            newTiles[t] = out;
+            int row = (t / across) << TILE_SHIFT;
+            int col = (t % across) << TILE_SHIFT;
+            int rows = Math.min(TILE_SIZE, newHeight - row);
+            int cols = Math.min(TILE_SIZE, newWidth - col);
+
+            // the old rectangle the new tile comes from
+            int aFrom = o.transposed ? col : row;
+            int aTo = aFrom + (o.transposed ? cols : rows);
+            int bFrom = o.transposed ? row : col;
+            int bTo = bFrom + (o.transposed ? rows : cols);
+            int rowFrom = o.flipRows ? this.height - aTo : aFrom;
+            int rowTo = o.flipRows ? this.height - aFrom : aTo;
+            int colFrom = o.flipCols ? this.width - bTo : bFrom;
+            int colTo = o.flipCols ? this.width - bFrom : bTo;
+
+            // where the old rectangle's first pixel goes in the new tile
+            int a = (o.flipRows ? this.height - 1 - rowFrom : rowFrom) - aFrom;
+            int b = (o.flipCols ? this.width - 1 - colFrom : colFrom) - bFrom;
+            int start = o.transposed ? (b << TILE_SHIFT) + a : (a << TILE_SHIFT) + b;
+            for (int pr = rowFrom; pr < rowTo; pr++) {
+                int d = start + (pr - rowFrom) * rowStep;
+                int tileRow = (pr >> TILE_SHIFT) * this.tilesAcross;
+                int rowOff = (pr & TILE_MASK) << TILE_SHIFT;
+                for (int pc = colFrom; pc < colTo; ) {
+                    int[] in = this.tiles[tileRow + (pc >> TILE_SHIFT)];
+                    int off = rowOff | (pc & TILE_MASK);
+                    int n = Math.min(colTo - pc, TILE_SIZE - (pc & TILE_MASK));
+                    for (int k = 0; k < n; k++, d += colStep) {
+                        out[d] = in[off + k];
+                    }
+                    pc += n;
+                }
+            }
+        }
+
+        this.width = newWidth;
+        this.height = newHeight;
+        this.tilesAcross = across;
+        this.tiles = newTiles;
+        this.owned = new boolean[newTiles.length];
+        Arrays.fill(this.owned, true);
+        this.orientation = Orientation.IDENTITY;
+    }
+
+    // where a pixel seen at (row, col) is in the tiles
+    private int PhysicalRow(int row, int col) {
+        int r = this.orientation.transposed ? col : row;
+        return this.orientation.flipRows ? this.height - 1 - r : r;
+    }
+
+    private int PhysicalCol(int row, int col) {
+        int c = this.orientation.transposed ? row : col;
+        return this.orientation.flipCols ? this.width - 1 - c : c;
+    }
+
+    private int TilePixel(int row, int col) {
+        return this.tiles[(row >> TILE_SHIFT) * this.tilesAcross + (col >> TILE_SHIFT)][((row & TILE_MASK) << TILE_SHIFT) | (col & TILE_MASK)];
+    }
+
+    // the edge tiles have room past the edges so this can't be left to the array
+    private void CheckPixel(int row, int col) {
+        if (row < 0 || row >= getHeight() || col < 0 || col >= getWidth()) {
+            throw new ArrayIndexOutOfBoundsException("Pixel (" + row + ", " + col + ") out of bounds for "
+                                                     + getWidth() + "x" + getHeight());
+        }
+    }
+
+    private void CheckRow(int row, int col, int len) {
+        if (row < 0 || row >= getHeight() || col < 0 || len < 0 || col + len > getWidth()) {
+            throw new ArrayIndexOutOfBoundsException("Row " + row + " [" + col + ", " + (col + len) + ") out of bounds for "
+                                                     + getWidth() + "x" + getHeight());
+        }
+    }
+
+    // the tile, copied first if a clone might still be using it
+    private int[] WritableTile(int t) {
+        if (!this.owned[t]) {
+            this.tiles[t] = this.tiles[t].clone();
+            this.owned[t] = true;
+        }
+        return this.tiles[t];
+    }
+
+    // every pixel's the same so the orientation doesn't matter
+    public void fill(int argb) {
+        for (int t = 0; t < this.tiles.length; t++) {
+            if (!this.owned[t]) { // no point copying pixels that are about to be overwritten
+                this.tiles[t] = new int[TILE_SIZE * TILE_SIZE];
+                this.owned[t] = true;
+            }
+            Arrays.fill(this.tiles[t], argb);
+        }
+    }
+
+    public boolean sameSize(PixelBuffer other) {
+        return other != null && other.getWidth() == getWidth() && other.getHeight() == getHeight();
+    }
+
+    // true when both buffers are the same size and hold the same pixels, tiles still shared with a clone aren't compared
+    public boolean contentEquals(PixelBuffer other) {
+        if (!sameSize(other)) {
+            return false;
+        }
+
+        if (other.orientation != this.orientation) {
+            int[] a = new int[getWidth()];
+            int[] b = new int[getWidth()];
+            for (int i = 0; i < getHeight(); i++) {
+                getRow(i, a, 0);
+                other.getRow(i, b, 0);
+                if (!Arrays.equals(a, b)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        for (int t = 0; t < this.tiles.length; t++) {
+            int[] a = this.tiles[t];
+            int[] b = other.tiles[t];
+            if (a == b) continue;
+
+            // only the part of edge tiles that's inside the buffer
+            int cols = Math.min(TILE_SIZE, this.width - (t % this.tilesAcross) * TILE_SIZE);
+            int rows = Math.min(TILE_SIZE, this.height - (t / this.tilesAcross) * TILE_SIZE);
+            for (int r = 0; r < rows; r++) {
+                int off = r << TILE_SHIFT;
+                if (!Arrays.equals(a, off, off + cols, b, off, off + cols)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // the tiles are shared, both this and the copy copy them on their next write
+    @Override
+    public PixelBuffer clone() {
+        try {
+            PixelBuffer copy = (PixelBuffer) super.clone();
+            copy.tiles = this.tiles.clone();
+            copy.owned = new boolean[this.tiles.length];
+            Arrays.fill(this.owned, false);
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(); // shouldn't happen if Cloneable is implemented
+        }
+    }
+
+    // a deserialized buffer has its own copy of every tile
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (this.orientation == null) {
+            this.orientation = Orientation.IDENTITY; // saved before buffers had one
+        }
+        this.owned = new boolean[this.tiles.length];
+        Arrays.fill(this.owned, true);
+    }
+}
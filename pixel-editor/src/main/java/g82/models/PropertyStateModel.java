@@ -0,0 +1,74 @@
+package g82.models;
+
+import java.util.Set;
+
+// Class for saving changes to a layer's properties (opacity, visibility or position in the layer order).
+// Only the layer's position and the values before and after are kept, so unlike LayerStateModel
+// it doesn't copy any pixels and costs the same no matter how big the canvas is.
+public class PropertyStateModel implements IStateModel {
+    private static final long serialVersionUID = 1L;
+    private Property property;
+    private int oldLayerNum; // the layer that was changed, or where it was moved from
+    private int newLayerNum; // same as oldLayerNum unless it was moved
+    private float oldOpacity;
+    private float newOpacity;
+
+    public static enum Property {
+        OPACITY,
+        VISIBILITY,
+        POSITION
+    }
+
+    // OPACITY
+    public PropertyStateModel(int layerNum, float oldOpacity, float newOpacity) {
+        this.property = Property.OPACITY;
+        this.oldLayerNum = layerNum;
+        this.newLayerNum = layerNum;
+        this.oldOpacity = oldOpacity;
+        this.newOpacity = newOpacity;
+    }
+
+    // VISIBILITY, undoing and redoing are both just toggling it
+    public PropertyStateModel(int layerNum) {
+        this.property = Property.VISIBILITY;
+        this.oldLayerNum = layerNum;
+        this.newLayerNum = layerNum;
+    }
+
+    // POSITION, the layers at the two positions were swapped
+    public PropertyStateModel(int oldLayerNum, int newLayerNum) {
+        this.property = Property.POSITION;
+        this.oldLayerNum = oldLayerNum;
+        this.newLayerNum = newLayerNum;
+    }
+
+    @Override
+    public Locality GetLocality() {
+        return Locality.PROPERTY;
+    }
+
+    @Override
+    public long GetRetainedSize(Set<Object> counted) {
+        return 40;
+    }
+
+    public Property GetProperty() {
+        return this.property;
+    }
+
+    public int GetOldLayerNum() {
+        return this.oldLayerNum;
+    }
+
+    public int GetNewLayerNum() {
+        return this.newLayerNum;
+    }
+
+    public float GetOldOpacity() {
+        return this.oldOpacity;
+    }
+
+    public float GetNewOpacity() {
+        return this.newOpacity;
+    }
+}
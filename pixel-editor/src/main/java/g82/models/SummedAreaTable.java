@@ -0,0 +1,80 @@
+package g82.models;
+
+// Summed-area table (integral image) of a PixelBuffer: for every channel, the sum of all the pixels above and to
+// the left of each position. Built once in one pass, after which the sum or mean of any rectangle is four lookups,
+// however big it is. Used for box blurs and the crop selection's average colour.
+// It's a snapshot, later changes to the buffer aren't seen.
+public class SummedAreaTable {
+    private static final int[] SHIFTS = {24, 16, 8, 0}; // a, r, g, b
+    public static final int ALPHA = 0;
+    public static final int RED = 1;
+    public static final int GREEN = 2;
+    public static final int BLUE = 3;
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    // [channel][(row + 1) * stride + col + 1], row 0 and col 0 are all zeros so lookups never need a bounds check
+    private final long[][] sums;
+
+    public SummedAreaTable(PixelBuffer grid) {
+        this.width = grid.getWidth();
+        this.height = grid.getHeight();
+        this.stride = this.width + 1;
+        this.sums = new long[4][(this.height + 1) * this.stride];
+
+        int[] row = new int[this.width];
+        long[] rowSums = new long[4];
+        for (int i = 0; i < this.height; i++) {
+            grid.getRow(i, row, 0);
+            int above = i * this.stride + 1;
+            int here = above + this.stride;
+            rowSums[0] = rowSums[1] = rowSums[2] = rowSums[3] = 0;
+            for (int j = 0; j < this.width; j++) {
+                int px = row[j];
+                for (int c = 0; c < 4; c++) {
+                    rowSums[c] += (px >>> SHIFTS[c]) & 0xFF;
+                    this.sums[c][here + j] = rowSums[c] + this.sums[c][above + j];
+                }
+            }
+        }
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Sum of one channel over a rectangle, corners included
+     * @param channel - ALPHA, RED, GREEN or BLUE
+     * @param row1, col1 - top left corner, in bounds
+     * @param row2, col2 - bottom right corner, in bounds
+     */
+    public long getSum(int channel, int row1, int col1, int row2, int col2) {
+        CheckRect(row1, col1, row2, col2);
+        long[] s = this.sums[channel];
+        return s[(row2 + 1) * this.stride + col2 + 1] - s[row1 * this.stride + col2 + 1]
+               - s[(row2 + 1) * this.stride + col1] + s[row1 * this.stride + col1];
+    }
+
+    // mean of every channel over a rectangle, corners included, packed as ARGB and rounded to the nearest value
+    public int getMean(int row1, int col1, int row2, int col2) {
+        long count = (long) (row2 - row1 + 1) * (col2 - col1 + 1);
+        int px = 0;
+        for (int c = 0; c < 4; c++) {
+            px |= (int) ((getSum(c, row1, col1, row2, col2) + count / 2) / count) << SHIFTS[c];
+        }
+        return px;
+    }
+
+    private void CheckRect(int row1, int col1, int row2, int col2) {
+        if (row1 < 0 || col1 < 0 || row2 >= this.height || col2 >= this.width || row1 > row2 || col1 > col2) {
+            throw new ArrayIndexOutOfBoundsException("Rectangle (" + row1 + ", " + col1 + ") to (" + row2 + ", " + col2
+                                                     + ") out of bounds for " + this.width + "x" + this.height);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package g82;
+
+import g82.managers.CompositeManager;
+import g82.managers.LayerManager;
+import g82.models.LayerModel;
+import g82.models.PixelBuffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+
+/**
+ * Unit tests for CompositeManager class.
+ * CompositeManager caches the condensed layers and only recomposites areas marked dirty.
+ */
+public class CompositeManagerTest {
+    private LayerManager layers;
+    private CompositeManager compositeMan;
+    private int h;
+    private int w;
+
+    @Before
+    public void setUp() throws Exception {
+        h = 70;
+        w = 50;
+        layers = new LayerManager(new PixelBuffer(w, h, new Color(44,209,55).getRGB()));
+        layers.AddLayer(new PixelBuffer(w, h, PixelBuffer.TRANSPARENT), (float)0.5);
+        compositeMan = new CompositeManager(layers);
+    }
+
+    /**
+     * First composite should match condensing all layers
+     */
+    @Test
+    public void initialCompositeTest(){
+        assertTrue(layers.CondenseLayersAC().contentEquals(compositeMan.GetComposite()));
+    }
+
+    /**
+     * Edits inside a dirty rectangle should show up, the rest of the composite should be untouched
+     */
+    @Test
+    public void markDirtyTest(){
+        compositeMan.GetComposite();
+        LayerModel top = layers.FindLayer(1);
+        int red = new Color(255,0,0).getRGB();
+        for (int i = 40; i < 45; i++){
+            for (int j = 35; j < 40; j++){
+                top.getPixelGrid().setPixel(i, j, red);
+            }
+        }
+
+        compositeMan.MarkDirty(35, 40, 5, 5);
+        if (!layers.CondenseLayersAC().contentEquals(compositeMan.GetComposite())){
+            fail("CompositeManager Test failed due to: dirty area was not recomposited");
+        }
+    }
+
+    /**
+     * Changes that were not marked dirty should not be recomposited
+     */
+    @Test
+    public void cleanTilesNotRecompositedTest(){
+        PixelBuffer before = compositeMan.GetComposite().clone();
+        layers.FindLayer(1).getPixelGrid().setPixel(0, 0, new Color(255,0,0).getRGB());
+
+        assertTrue(before.contentEquals(compositeMan.GetComposite()));
+        compositeMan.MarkAllDirty();
+        assertFalse(before.contentEquals(compositeMan.GetComposite()));
+    }
+
+    /**
+     * Composite should follow the layer manager when the canvas changes size
+     */
+    @Test
+    public void resizeTest(){
+        compositeMan.GetComposite();
+        try {
+            layers.NNIResizeLayers(layers.FindLayer(0), 20, 10);
+        } catch (Exception e) {
+            fail("CompositeManager Test failed due to failed resize: " + e);
+        }
+        layers.SetWidth(20);
+        layers.SetHeight(10);
+
+        PixelBuffer composite = compositeMan.GetComposite();
+        assertTrue(composite.getWidth() == 20 && composite.getHeight() == 10);
+        assertTrue(layers.CondenseLayersAC().contentEquals(composite));
+    }
+
+    /**
+     * The image the canvas draws should hold the same pixels as the composite, including after partial updates
+     */
+    @Test
+    public void compositeImageTest(){
+        compositeMan.GetComposite();
+        layers.FindLayer(1).getPixelGrid().setPixel(3, 4, new Color(255,0,0).getRGB());
+        compositeMan.MarkDirty(4, 3, 1, 1);
+
+        PixelBuffer composite = compositeMan.GetComposite();
+        BufferedImage image = compositeMan.GetCompositeImage();
+        assertTrue(image.getType() == BufferedImage.TYPE_INT_ARGB);
+        for (int i = 0; i < h; i++){
+            for (int j = 0; j < w; j++){
+                if (image.getRGB(j, i) != composite.getPixel(i, j)){
+                    fail("CompositeManager Test failed due to: image differs from composite at " + i + ", " + j);
+                }
+            }
+        }
+    }
+
+    /**
+     * Asking for part of the composite should only recomposite the tiles it overlaps
+     */
+    @Test
+    public void regionCompositeTest(){
+        compositeMan.GetComposite();
+        int red = new Color(255,0,0).getRGB();
+        layers.FindLayer(0).getPixelGrid().setPixel(2, 2, red);
+        layers.FindLayer(0).getPixelGrid().setPixel(65, 45, red);
+        compositeMan.MarkAllDirty();
+
+        PixelBuffer composite = compositeMan.GetComposite(0, 0, 10, 10);
+        PixelBuffer expected = layers.CondenseLayersAC();
+        assertTrue(composite.getPixel(2, 2) == expected.getPixel(2, 2));
+        assertFalse(composite.getPixel(65, 45) == expected.getPixel(65, 45));
+
+        // the rest is still marked dirty
+        assertTrue(expected.contentEquals(compositeMan.GetComposite()));
+    }
+}
@@ -0,0 +1,214 @@
+package g82;
+
+import g82.controllers.ConvolutionController;
+import g82.controllers.FFTController;
+import g82.controllers.ImageController;
+import g82.models.PixelBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Unit tests for ConvolutionController class.
+ * Separable kernels run as two 1-D passes, boxes through a summed-area table and big kernels through the FFT,
+ * all should match convolving with the whole kernel.
+ */
+public class ConvolutionControllerTest {
+    private Random random;
+
+    @Before
+    public void setUp() {
+        random = new Random(82);
+    }
+
+    private PixelBuffer randomGrid(int w, int h) {
+        PixelBuffer grid = new PixelBuffer(w, h);
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                grid.setPixel(i, j, ImageController.PackARGB(random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            }
+        }
+        return grid;
+    }
+
+    // every tap of every pixel, leaving out the ones outside the grid and scaling the rest up to make up for them,
+    // unless the kernel adds up to 0 (edge detection), then there's nothing to scale up to
+    private int[] directChannels(PixelBuffer grid, double[][] kernel, int i, int j) {
+        int r = kernel.length / 2;
+        double[] sums = new double[4];
+        double total = 0;
+        double inBounds = 0;
+        for (int k = -r; k <= r; k++) {
+            for (int l = -r; l <= r; l++) {
+                double w = kernel[k + r][l + r];
+                total += w;
+                if (i + k < 0 || i + k >= grid.getHeight() || j + l < 0 || j + l >= grid.getWidth()) continue;
+                int px = grid.getPixel(i + k, j + l);
+                inBounds += w;
+                for (int c = 0; c < 4; c++) {
+                    sums[c] += ((px >>> (24 - 8 * c)) & 0xFF) * w;
+                }
+            }
+        }
+
+        double scale = Math.abs(total) > 1e-9 ? total / inBounds : 1;
+        int[] channels = new int[4];
+        for (int c = 0; c < 4; c++) {
+            channels[c] = (int) Math.round(Math.max(0, Math.min(255, sums[c] * scale)));
+        }
+        return channels;
+    }
+
+    @Test
+    public void separateTest() {
+        double[][] parts = ConvolutionController.Separate(ImageController.gConvolution);
+        assertNotNull(parts);
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                assertEquals(ImageController.gConvolution[i][j], parts[0][i] * parts[1][j], 1e-12);
+            }
+        }
+        assertNull(ConvolutionController.Separate(ImageController.sConvolution));
+    }
+
+    /**
+     * A 5x5 Gaussian through the two passes should be within rounding of the 2-D convolution, edges included
+     */
+    @Test
+    public void separableMatchesDirectTest() {
+        PixelBuffer grid = randomGrid(47, 29);
+        double[] g = ConvolutionController.GaussianKernel(2);
+        double[][] kernel = new double[5][5];
+        for (int k = 0; k < 5; k++) {
+            for (int l = 0; l < 5; l++) {
+                kernel[k][l] = g[k] * g[l];
+            }
+        }
+
+        assertMatchesDirect(grid, kernel, ConvolutionController.Convolve(grid, kernel));
+    }
+
+    // random weights, nothing like a product of a row and a column, adding up to about 1
+    private double[][] randomKernel(int size) {
+        double[][] kernel = new double[size][size];
+        for (int k = 0; k < size; k++) {
+            for (int l = 0; l < size; l++) {
+                kernel[k][l] = random.nextDouble() * 2 / (size * size);
+            }
+        }
+        return kernel;
+    }
+
+    private void assertMatchesDirect(PixelBuffer grid, double[][] kernel, PixelBuffer result) {
+        for (int i = 0; i < grid.getHeight(); i++) {
+            for (int j = 0; j < grid.getWidth(); j++) {
+                int[] expected = directChannels(grid, kernel, i, j);
+                int px = result.getPixel(i, j);
+                for (int c = 0; c < 4; c++) {
+                    assertEquals(expected[c], (px >>> (24 - 8 * c)) & 0xFF, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * A big kernel that can't be separated goes through the FFT, which should match convolving directly within rounding
+     */
+    @Test
+    public void fftMatchesDirectTest() {
+        PixelBuffer grid = randomGrid(45, 31);
+        double[][] kernel = randomKernel(15);
+        assertNull(ConvolutionController.Separate(kernel));
+        assertMatchesDirect(grid, kernel, ConvolutionController.Convolve(grid, kernel));
+
+        // kernel bigger than the grid
+        PixelBuffer small = randomGrid(5, 3);
+        assertMatchesDirect(small, kernel, FFTController.Convolve(small, kernel));
+
+        // adding up to 0, the edges aren't scaled
+        double mean = 0;
+        for (double[] row : kernel) {
+            for (double w : row) mean += w / (15 * 15);
+        }
+        for (double[] row : kernel) {
+            for (int l = 0; l < row.length; l++) row[l] -= mean;
+        }
+        assertMatchesDirect(grid, kernel, FFTController.Convolve(grid, kernel));
+    }
+
+    /**
+     * Box kernels are averaged out of a summed-area table, the edges are scaled up the same way
+     */
+    @Test
+    public void boxMatchesDirectTest() {
+        PixelBuffer grid = randomGrid(40, 27);
+        double[][] kernel = new double[9][9];
+        for (double[] row : kernel) {
+            Arrays.fill(row, 1.0 / 81);
+        }
+        assertMatchesDirect(grid, kernel, ConvolutionController.Convolve(grid, kernel));
+        assertTrue(ImageController.BoxBlur(grid, 4).contentEquals(ConvolutionController.Convolve(grid, kernel)));
+    }
+
+    /**
+     * Columns past the height used to be treated as out of bounds, and tall grids read past the width
+     */
+    @Test
+    public void nonSquareGridTest() {
+        int colour = ImageController.PackARGB(255, 200, 100, 50);
+        PixelBuffer tall = new PixelBuffer(10, 40, colour);
+        PixelBuffer wide = new PixelBuffer(40, 10, colour);
+        // a flat colour stays the same all the way to the edges
+        assertTrue(tall.contentEquals(ImageController.Blur(tall)));
+        assertTrue(tall.contentEquals(ImageController.Sharpen(tall)));
+        assertTrue(wide.contentEquals(ImageController.Blur(wide)));
+        assertTrue(wide.contentEquals(ImageController.Sharpen(wide)));
+    }
+
+    /**
+     * A kernel adding up to 0 used to be scaled by 0 at the edges, blanking the border
+     */
+    @Test
+    public void zeroSumKernelEdgeTest() {
+        double[][] edges = {
+            { -1, -1, -1 },
+            { -1,  8, -1 },
+            { -1, -1, -1 }
+        };
+        assertNull(ConvolutionController.Separate(edges));
+
+        PixelBuffer grid = randomGrid(23, 17);
+        assertMatchesDirect(grid, edges, ConvolutionController.Convolve(grid, edges));
+
+        // the in-bounds taps of a corner add up to 5 times the colour, which should saturate rather than go to 0
+        PixelBuffer flat = new PixelBuffer(23, 17, ImageController.PackARGB(255, 100, 100, 100));
+        assertEquals(ImageController.PackARGB(255, 255, 255, 255), ConvolutionController.Convolve(flat, edges).getPixel(0, 0));
+        assertEquals(0, ConvolutionController.Convolve(flat, edges).getPixel(8, 11));
+    }
+
+    @Test
+    public void blurRadiusTest() {
+        double[] g = ConvolutionController.GaussianKernel(3);
+        assertEquals(7, g.length);
+        assertEquals(20.0 / 64, g[3], 1e-12);
+
+        int colour = ImageController.PackARGB(255, 10, 20, 30);
+        PixelBuffer flat = new PixelBuffer(33, 21, colour);
+        assertTrue(flat.contentEquals(ImageController.Blur(flat, 3)));
+
+        // a single bright pixel spreads out over the radius and no further
+        PixelBuffer dot = new PixelBuffer(33, 21, ImageController.PackARGB(255, 0, 0, 0));
+        dot.setPixel(10, 16, ImageController.PackARGB(255, 255, 255, 255));
+        PixelBuffer blurred = ImageController.Blur(dot, 3);
+        assertTrue((blurred.getPixel(10, 19) & 0xFF) > 0);
+        assertEquals(0, blurred.getPixel(10, 20) & 0xFF);
+        assertEquals(0, blurred.getPixel(14, 16) & 0xFF);
+    }
+}
@@ -1,6 +1,7 @@
 package g82;
 
 import g82.controllers.ImageController;
+import g82.models.PixelBuffer;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -10,7 +11,7 @@ import java.awt.Color;
 
 /**
  * Unit tests for ImageController class.
- * ImageController class represents pixel grid containing Color objects.
+ * ImageController class represents pixel grid as a PixelBuffer of packed ARGB values.
  * Testing import, export, resize, rotate and flip.
  */
 public class ImageControllerTest {
@@ -20,13 +21,8 @@ public class ImageControllerTest {
      * @param width - width of pixelGrid in pixels
      * @return All white (255,255,255) pixel grid of given dimension
      */
-    public Color[][] createPixelGrid(int height, int width){
-        Color[][] pixelGrid = new Color[height][width];
-        for (int i = 0; i < height; i++){
-            for (int j = 0; j < width; j++){
-                pixelGrid[i][j] = new Color(255,255,255);
-            }
-        }
+    public PixelBuffer createPixelGrid(int height, int width){
+        PixelBuffer pixelGrid = new PixelBuffer(width, height, new Color(255,255,255).getRGB());
         return(pixelGrid);
     }
 
@@ -37,17 +33,17 @@ public class ImageControllerTest {
      */
     @Test
     public void ImportImageTest(){
-        Color [][] correctGrid = createPixelGrid(2, 3);
-        correctGrid[0][0] = new Color(0,0,0);
-        correctGrid[1][2] = new Color(0,0,0);
-        correctGrid[1][0] = new Color(191,38,38);
-        correctGrid[1][1] = new Color(38,90,191);
+        PixelBuffer correctGrid = createPixelGrid(2, 3);
+        correctGrid.setPixel(0, 0, new Color(0,0,0).getRGB());
+        correctGrid.setPixel(1, 2, new Color(0,0,0).getRGB());
+        correctGrid.setPixel(1, 0, new Color(191,38,38).getRGB());
+        correctGrid.setPixel(1, 1, new Color(38,90,191).getRGB());
         try{
-            Color[][] importedGrid = ImageController.ImportImage("./src/test/java/g82/testImages/testImg.png");
+            PixelBuffer importedGrid = ImageController.ImportImage("./src/test/java/g82/testImages/testImg.png");
             checkSame:
-            for (int i = 0; i > correctGrid.length; i++){
-                for (int j = 0; j > correctGrid[0].length; j++){
-                    if (correctGrid[i][j].getRGB() != importedGrid[i][j].getRGB()){
+            for (int i = 0; i > correctGrid.getHeight(); i++){
+                for (int j = 0; j > correctGrid.getWidth(); j++){
+                    if (correctGrid.getPixel(i, j) != importedGrid.getPixel(i, j)){
                         fail("One or more pixels do not match, index[" +  i + "][" + j + "]");
                         break checkSame;
                     }
@@ -66,7 +62,7 @@ public class ImageControllerTest {
      */
     @Test
     public void ExportImage2PNGTest(){
-        Color [][] pixelGrid = createPixelGrid(10, 20);
+        PixelBuffer pixelGrid = createPixelGrid(10, 20);
 
         try{
             ImageController.ExportImage2PNG(pixelGrid,"./src/test/java/g82/testImages/exportTest.png");
@@ -81,11 +77,11 @@ public class ImageControllerTest {
      */
     @Test
     public void IncreaseImageSizeTest(){
-        Color [][] pixelGrid = createPixelGrid(20, 10);
+        PixelBuffer pixelGrid = createPixelGrid(20, 10);
         try{
-            Color [][] newPixelGrid = ImageController.IncreaseImageSize(pixelGrid,2);
-            int height = newPixelGrid.length;
-            int width = newPixelGrid[0].length;
+            PixelBuffer newPixelGrid = ImageController.IncreaseImageSize(pixelGrid,2);
+            int height = newPixelGrid.getHeight();
+            int width = newPixelGrid.getWidth();
             assertTrue((height==40)&&(width==20));
         } catch (Exception e){
             fail("Cannot increase image size due to exception: " + e);
@@ -98,11 +94,11 @@ public class ImageControllerTest {
      */
     @Test
     public void DecreaseImageSizeTest(){
-        Color [][] pixelGrid = createPixelGrid(40, 20);
+        PixelBuffer pixelGrid = createPixelGrid(40, 20);
         try{
-            Color [][] newPixelGrid = ImageController.DecreaseImageSize(pixelGrid, 4);
-            int height = newPixelGrid.length;
-            int width = newPixelGrid[0].length;
+            PixelBuffer newPixelGrid = ImageController.DecreaseImageSize(pixelGrid, 4);
+            int height = newPixelGrid.getHeight();
+            int width = newPixelGrid.getWidth();
             assertTrue((height==10)&&(width==5));
         } catch (Exception e){
             fail("Cannot decrease image size due to exception: " + e);
@@ -116,19 +112,19 @@ public class ImageControllerTest {
      */
     @Test
     public void RotateImageRightTest(){
-        Color [][] pixelGrid = createPixelGrid(2, 3);
-        Color [][] correctGrid = createPixelGrid(3, 2);
-        pixelGrid[0][1] = new Color(0,0,0);
-        correctGrid[1][1] = new Color(0,0,0);
+        PixelBuffer pixelGrid = createPixelGrid(2, 3);
+        PixelBuffer correctGrid = createPixelGrid(3, 2);
+        pixelGrid.setPixel(0, 1, new Color(0,0,0).getRGB());
+        correctGrid.setPixel(1, 1, new Color(0,0,0).getRGB());
 
-        Color [][] rotatedGrid = ImageController.RotateImageRight(pixelGrid);
-        assertEquals(correctGrid.length,rotatedGrid.length);
-        assertEquals(correctGrid[0].length,rotatedGrid[0].length);
+        PixelBuffer rotatedGrid = ImageController.RotateImageRight(pixelGrid);
+        assertEquals(correctGrid.getHeight(),rotatedGrid.getHeight());
+        assertEquals(correctGrid.getWidth(),rotatedGrid.getWidth());
 
         checkSame:
-        for (int i = 0; i < correctGrid.length; i++){
-            for (int j = 0; j < correctGrid[0].length; j++){
-                if (correctGrid[i][j].getRGB() != rotatedGrid[i][j].getRGB()){
+        for (int i = 0; i < correctGrid.getHeight(); i++){
+            for (int j = 0; j < correctGrid.getWidth(); j++){
+                if (correctGrid.getPixel(i, j) != rotatedGrid.getPixel(i, j)){
                     fail("One or more pixels do not match, index[" +  i + "][" + j + "]");
                     break checkSame;
                 }
@@ -143,19 +139,19 @@ public class ImageControllerTest {
      */
     @Test
     public void RotateImageLeftTest(){
-        Color [][] pixelGrid = createPixelGrid(2, 3);
-        Color [][] correctGrid = createPixelGrid(3, 2);
-        pixelGrid[0][1] = new Color(0,0,0);
-        correctGrid[1][0] = new Color(0,0,0);
+        PixelBuffer pixelGrid = createPixelGrid(2, 3);
+        PixelBuffer correctGrid = createPixelGrid(3, 2);
+        pixelGrid.setPixel(0, 1, new Color(0,0,0).getRGB());
+        correctGrid.setPixel(1, 0, new Color(0,0,0).getRGB());
 
-        Color [][] rotatedGrid = ImageController.RotateImageLeft(pixelGrid);
-        assertEquals(correctGrid.length,rotatedGrid.length);
-        assertEquals(correctGrid[0].length,rotatedGrid[0].length);
+        PixelBuffer rotatedGrid = ImageController.RotateImageLeft(pixelGrid);
+        assertEquals(correctGrid.getHeight(),rotatedGrid.getHeight());
+        assertEquals(correctGrid.getWidth(),rotatedGrid.getWidth());
 
         checkSame:
-        for (int i = 0; i < correctGrid.length; i++){
-            for (int j = 0; j < correctGrid[0].length; j++){
-                if (correctGrid[i][j].getRGB() != rotatedGrid[i][j].getRGB()){
+        for (int i = 0; i < correctGrid.getHeight(); i++){
+            for (int j = 0; j < correctGrid.getWidth(); j++){
+                if (correctGrid.getPixel(i, j) != rotatedGrid.getPixel(i, j)){
                     fail("One or more pixels do not match, index[" +  i + "][" + j + "]");
                     break checkSame;
                 }
@@ -163,25 +159,54 @@ public class ImageControllerTest {
         }
     }
 
+    /**
+     * Rotates and transposes a grid bigger than one block and not a whole number of them,
+     * checks every pixel ended up where it should
+     */
+    @Test
+    public void RotateBlockedTest(){
+        int h = 45;
+        int w = 70;
+        PixelBuffer pixelGrid = new PixelBuffer(w, h);
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                pixelGrid.setPixel(i, j, i * w + j);
+            }
+        }
+
+        PixelBuffer right = ImageController.RotateImageRight(pixelGrid);
+        PixelBuffer left = ImageController.RotateImageLeft(pixelGrid);
+        PixelBuffer transposed = ImageController.Transpose(pixelGrid);
+        assertEquals(h, right.getWidth());
+        assertEquals(w, right.getHeight());
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                assertEquals(i * w + j, right.getPixel(j, h - 1 - i));
+                assertEquals(i * w + j, left.getPixel(w - 1 - j, i));
+                assertEquals(i * w + j, transposed.getPixel(j, i));
+            }
+        }
+    }
+
     /**
      * Attempts to flip image horizontally, compares flipped pixel grid to expected pixel grid
      * Fails if flipped and expected pixels do not match
      */
     @Test
     public void FlipImageHorizontalTest(){
-        Color [][] pixelGrid = createPixelGrid(2, 3);
-        pixelGrid[0][0] = new Color(0,0,0);
-        pixelGrid[1][2] = new Color(42,42,42);
-        Color [][] correctGrid = createPixelGrid(2, 3);
-        correctGrid[0][2] = new Color(0,0,0);
-        correctGrid[1][0] = new Color(42,42,42);
+        PixelBuffer pixelGrid = createPixelGrid(2, 3);
+        pixelGrid.setPixel(0, 0, new Color(0,0,0).getRGB());
+        pixelGrid.setPixel(1, 2, new Color(42,42,42).getRGB());
+        PixelBuffer correctGrid = createPixelGrid(2, 3);
+        correctGrid.setPixel(0, 2, new Color(0,0,0).getRGB());
+        correctGrid.setPixel(1, 0, new Color(42,42,42).getRGB());
 
-        Color [][] flippedGrid = ImageController.FlipImageHorizontal(pixelGrid);
+        PixelBuffer flippedGrid = ImageController.FlipImageHorizontal(pixelGrid);
 
         checkSame:
-        for(int i = 0; i < correctGrid.length; i++){
-            for(int j = 0; j < correctGrid[0].length; j++){
-                if(correctGrid[i][j].getRGB() != flippedGrid[i][j].getRGB()){
+        for(int i = 0; i < correctGrid.getHeight(); i++){
+            for(int j = 0; j < correctGrid.getWidth(); j++){
+                if(correctGrid.getPixel(i, j) != flippedGrid.getPixel(i, j)){
                     fail("One or more pixels do not match, index[" + i + "][" + j + "]");
                     break checkSame;
                 }
@@ -195,19 +220,19 @@ public class ImageControllerTest {
      */
     @Test
     public void FlipImageVerticalTest(){
-        Color [][] pixelGrid = createPixelGrid(2, 3);
-        pixelGrid[0][0] = new Color(0,0,0);
-        pixelGrid[1][2] = new Color(42,42,42);
-        Color [][] correctGrid = createPixelGrid(2, 3);
-        correctGrid[1][0] = new Color(0,0,0);
-        correctGrid[0][2] = new Color(42,42,42);
+        PixelBuffer pixelGrid = createPixelGrid(2, 3);
+        pixelGrid.setPixel(0, 0, new Color(0,0,0).getRGB());
+        pixelGrid.setPixel(1, 2, new Color(42,42,42).getRGB());
+        PixelBuffer correctGrid = createPixelGrid(2, 3);
+        correctGrid.setPixel(1, 0, new Color(0,0,0).getRGB());
+        correctGrid.setPixel(0, 2, new Color(42,42,42).getRGB());
 
-        Color [][] flippedGrid = ImageController.FlipImageVertical(pixelGrid);
+        PixelBuffer flippedGrid = ImageController.FlipImageVertical(pixelGrid);
 
         checkSame:
-        for(int i = 0; i < correctGrid.length; i++){
-            for(int j = 0; j < correctGrid[0].length; j++){
-                if(correctGrid[i][j].getRGB() != flippedGrid[i][j].getRGB()){
+        for(int i = 0; i < correctGrid.getHeight(); i++){
+            for(int j = 0; j < correctGrid.getWidth(); j++){
+                if(correctGrid.getPixel(i, j) != flippedGrid.getPixel(i, j)){
                     fail("One or more pixels do not match, index[" + i + "][" + j + "]");
                     break checkSame;
                 }
@@ -2,10 +2,12 @@ package g82;
 
 import g82.managers.LayerManager;
 import g82.models.LayerModel;
+import g82.models.PixelBuffer;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 
@@ -16,7 +18,7 @@ import java.awt.Color;
 /**
  * Unit tests for LayerManager class.
  * LayerManager class manages a linked list of LayerModel objects
- * LayerModel object contains pixel grid of Color[][]
+ * LayerModel object contains pixel grid of PixelBuffer
  */
 public class LayerManagerTest {
     private LayerManager layers;
@@ -31,13 +33,8 @@ public class LayerManagerTest {
      * 
      * @return pixelGrid - Pixel grid of specified dimensions, every pixel of rgb colour
     */
-    public Color[][] createPixelGrid(int h, int w, int[] rgb){
-        Color[][] pixelGrid = new Color[h][w];
-        for (int i = 0; i < h; i++) {
-            for (int j = 0; j < w; j++) {
-                pixelGrid[i][j] = new Color((int)rgb[0], (int)rgb[1], (int)rgb[2]);
-            }
-        }
+    public PixelBuffer createPixelGrid(int h, int w, int[] rgb){
+        PixelBuffer pixelGrid = new PixelBuffer(w, h, new Color((int)rgb[0], (int)rgb[1], (int)rgb[2]).getRGB());
         return pixelGrid;
     }
 
@@ -46,7 +43,7 @@ public class LayerManagerTest {
         h = 20;
         w = 10;
         int[] rgb = {255,255,255};
-        Color[][] pixelGrid = createPixelGrid(h, w, rgb);
+        PixelBuffer pixelGrid = createPixelGrid(h, w, rgb);
         layers = new LayerManager(pixelGrid);
     }
 
@@ -57,7 +54,7 @@ public class LayerManagerTest {
 
     @Test
     public void addLayerTest(){
-        Color[][] newGrid = new Color[h][w];
+        PixelBuffer newGrid = new PixelBuffer(w, h);
 
         for (int i = 0; i < 9; i++){
             try {
@@ -79,7 +76,7 @@ public class LayerManagerTest {
 
     @Test
     public void removeLayerTest(){
-        Color[][] newGrid = new Color[h][w];
+        PixelBuffer newGrid = new PixelBuffer(w, h);
         for (int i = 0; i < 9; i++){
             try {
                 layers.AddLayer(newGrid);
@@ -101,7 +98,7 @@ public class LayerManagerTest {
 
     @Test
     public void findLayerTest(){
-        Color[][] newGrid = new Color[h][w];
+        PixelBuffer newGrid = new PixelBuffer(w, h);
         try {
             layers.AddLayer(newGrid);
         } catch (Exception e) {
@@ -113,8 +110,8 @@ public class LayerManagerTest {
 
     @Test
     public void getLayerPosTest(){
-        Color[][] newGrid = new Color[h][w];
-        Color[][] otherGrid = new Color[h][w];
+        PixelBuffer newGrid = new PixelBuffer(w, h);
+        PixelBuffer otherGrid = new PixelBuffer(w, h);
         try{
             layers.AddLayer(otherGrid);
             layers.AddLayer(newGrid);
@@ -130,8 +127,8 @@ public class LayerManagerTest {
 
     @Test
     public void changeLayerPosTest(){
-        Color[][] newGrid = new Color[h][w];
-        Color[][] otherGrid = new Color[h][w];
+        PixelBuffer newGrid = new PixelBuffer(w, h);
+        PixelBuffer otherGrid = new PixelBuffer(w, h);
         try{
             layers.AddLayer(newGrid);
             layers.AddLayer(otherGrid);
@@ -150,10 +147,11 @@ public class LayerManagerTest {
     @Test
     public void condenseLayersACTest1(){
         int[] rgb = {255,255,255};
-        Color[][] condensedGrid = layers.CondenseLayersAC();
+        PixelBuffer condensedGrid = layers.CondenseLayersAC();
         for (int i = 0; i < h; i++){
             for (int j = 0; j < w; j++){
-                if (condensedGrid[i][j].getRed()!=rgb[0] || condensedGrid[i][j].getGreen()!=rgb[1] || condensedGrid[i][j].getBlue()!=rgb[2]){
+                Color px = new Color(condensedGrid.getPixel(i, j), true);
+                if (px.getRed()!=rgb[0] || px.getGreen()!=rgb[1] || px.getBlue()!=rgb[2]){
                     String message = "CondenseLayersAC Test failed due to: Unexpected color after condensing";
                     fail(message);
                 }
@@ -167,8 +165,8 @@ public class LayerManagerTest {
         int[] rgb1 = {44,209,55};
         int[] rgb2 = {173,62,120};
         int[] trueRGB = {108,136,88};
-        Color[][] grid1 = createPixelGrid(h, w, rgb1);
-        Color[][] grid2 = createPixelGrid(h, w, rgb2);
+        PixelBuffer grid1 = createPixelGrid(h, w, rgb1);
+        PixelBuffer grid2 = createPixelGrid(h, w, rgb2);
         try {
             layers.AddLayer(grid1); //Full opacity bottom layer
             layers.AddLayer(grid2,(float)0.5); //0.5 opacity second layer (on top)
@@ -176,16 +174,141 @@ public class LayerManagerTest {
             String message = "CondenseLayersAC Test failed due to failed layer creation: " + e;
             fail(message);
         }
-        Color[][] condensedGrid = layers.CondenseLayersAC();
+        PixelBuffer condensedGrid = layers.CondenseLayersAC();
 
         //Allow 5 pt leeway for each RGB value due to different methods of calculating RGB values with opacity
         for (int i = 0; i < h; i++) {
             for (int j = 0; j < w; j++) {
-                if ((Math.abs(condensedGrid[i][j].getRed()-trueRGB[0])<5 && Math.abs(condensedGrid[i][j].getGreen()-trueRGB[1])<5 && Math.abs(condensedGrid[i][j].getBlue()-trueRGB[2])<5)!=true){
-                    String message = "CondenseLayersAC Test failed due to incorrect merging of layers: " + condensedGrid[i][j].getRed() + "," + condensedGrid[i][j].getGreen() + "," + condensedGrid[i][j].getBlue();
+                Color px = new Color(condensedGrid.getPixel(i, j), true);
+                if ((Math.abs(px.getRed()-trueRGB[0])<5 && Math.abs(px.getGreen()-trueRGB[1])<5 && Math.abs(px.getBlue()-trueRGB[2])<5)!=true){
+                    String message = "CondenseLayersAC Test failed due to incorrect merging of layers: " + px.getRed() + "," + px.getGreen() + "," + px.getBlue();
                     fail(message);
                 }
             }
         }
     }
+
+    //Checks every channel of two grids is within 1 of each other
+    public boolean areGridsClose(PixelBuffer A, PixelBuffer B){
+        for (int i = 0; i < A.getHeight(); i++) {
+            for (int j = 0; j < A.getWidth(); j++) {
+                int a = A.getPixel(i, j);
+                int b = B.getPixel(i, j);
+                for (int shift = 0; shift < 32; shift += 8) {
+                    if (Math.abs(((a >>> shift) & 0xFF) - ((b >>> shift) & 0xFF)) > 1) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    //Condensing with an active layer uses the below/above caches, should give the same result as without
+    @Test
+    public void condenseLayersActiveLayerTest(){
+        try {
+            layers.AddLayer(createPixelGrid(h, w, new int[]{44,209,55}), (float)0.7);
+            layers.AddLayer(createPixelGrid(h, w, new int[]{173,62,120}), (float)0.5);
+            layers.AddLayer(createPixelGrid(h, w, new int[]{10,20,30}), (float)0.25);
+        } catch (Exception e) {
+            fail("CondenseLayersAC Test failed due to failed layer creation: " + e);
+        }
+        PixelBuffer expected = layers.CondenseLayersAC();
+
+        LayerModel active = layers.FindLayer(2);
+        layers.SetActiveLayer(active);
+        assertTrue(areGridsClose(expected, layers.CondenseLayersAC()));
+
+        //Drawing on the active layer should show up without the caches being rebuilt
+        active.getPixelGrid().setPixel(3, 4, new Color(255,0,0).getRGB());
+        layers.SetActiveLayer(null);
+        expected = layers.CondenseLayersAC();
+        layers.SetActiveLayer(active);
+        assertTrue(areGridsClose(expected, layers.CondenseLayersAC()));
+    }
+
+    //Changing a layer that isn't active has to invalidate the caches
+    @Test
+    public void condenseLayersCacheInvalidationTest(){
+        try {
+            layers.AddLayer(createPixelGrid(h, w, new int[]{44,209,55}), (float)0.7);
+            layers.AddLayer(createPixelGrid(h, w, new int[]{173,62,120}), (float)0.5);
+            layers.SetActiveLayer(layers.FindLayer(1));
+            layers.CondenseLayersAC();
+
+            layers.FindLayer(2).setOpacity((float)0.1);
+            PixelBuffer cached = layers.CondenseLayersAC();
+            layers.SetActiveLayer(null);
+            assertTrue(areGridsClose(layers.CondenseLayersAC(), cached));
+
+            layers.SetActiveLayer(layers.FindLayer(1));
+            layers.ChangeLayerPos(0, 2);
+            cached = layers.CondenseLayersAC();
+            layers.SetActiveLayer(null);
+            assertTrue(areGridsClose(layers.CondenseLayersAC(), cached));
+        } catch (Exception e) {
+            fail("CondenseLayersAC Test failed due to: " + e);
+        }
+    }
+
+    //Double precision version of the alpha compositing formula to compare the fixed point kernel against
+    public int referenceCondense(int[] pixels, float[] opacities){
+        double r = 0, g = 0, b = 0, a = 0;
+        for (int k = 0; k < pixels.length; k++) {
+            double srcA = ((pixels[k] >>> 24) / 255.0) * opacities[k];
+            double rA = srcA + a * (1.0 - srcA);
+            if (rA > 0) {
+                r = (((pixels[k] >> 16) & 0xFF) * srcA + r * a * (1.0 - srcA)) / rA;
+                g = (((pixels[k] >> 8) & 0xFF) * srcA + g * a * (1.0 - srcA)) / rA;
+                b = ((pixels[k] & 0xFF) * srcA + b * a * (1.0 - srcA)) / rA;
+            }
+            a = rA;
+        }
+        return new Color((int)r, (int)g, (int)b, (int)(a * 255)).getRGB();
+    }
+
+    //Random layer stacks should condense to within 1 of the double precision formula on every channel
+    @Test
+    public void condenseLayersACPrecisionTest(){
+        java.util.Random random = new java.util.Random(82);
+        for (int trial = 0; trial < 20; trial++) {
+            int layerCount = 1 + random.nextInt(6);
+            PixelBuffer[] grids = new PixelBuffer[layerCount];
+            float[] opacities = new float[layerCount];
+            for (int k = 0; k < layerCount; k++) {
+                grids[k] = new PixelBuffer(w, h);
+                for (int i = 0; i < h; i++) {
+                    for (int j = 0; j < w; j++) {
+                        // bias towards fully opaque and fully transparent pixels like real art
+                        int alpha = random.nextInt(3) == 0 ? 255 : (random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(255));
+                        grids[k].setPixel(i, j, (alpha << 24) | random.nextInt(0x1000000));
+                    }
+                }
+                opacities[k] = random.nextInt(4) == 0 ? 1 : random.nextFloat();
+            }
+
+            LayerManager stack = new LayerManager(grids[0]);
+            try {
+                stack.FindLayer(0).setOpacity(opacities[0]);
+                for (int k = 1; k < layerCount; k++) {
+                    stack.AddLayer(grids[k], opacities[k]);
+                }
+            } catch (Exception e) {
+                fail("CondenseLayersAC Test failed due to failed layer creation: " + e);
+            }
+
+            PixelBuffer expected = new PixelBuffer(w, h);
+            for (int i = 0; i < h; i++) {
+                for (int j = 0; j < w; j++) {
+                    int[] pixels = new int[layerCount];
+                    for (int k = 0; k < layerCount; k++) {
+                        pixels[k] = grids[k].getPixel(i, j);
+                    }
+                    expected.setPixel(i, j, referenceCondense(pixels, opacities));
+                }
+            }
+            assertTrue(areGridsClose(expected, stack.CondenseLayersAC()));
+        }
+    }
 }
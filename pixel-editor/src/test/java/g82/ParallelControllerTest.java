@@ -0,0 +1,105 @@
+package g82;
+
+import g82.controllers.ImageController;
+import g82.controllers.ParallelController;
+import g82.models.PixelBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import java.awt.Color;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Unit tests for ParallelController class.
+ */
+public class ParallelControllerTest {
+
+    /**
+     * Every row should be handed to exactly one band
+     */
+    @Test
+    public void forRowsCoversEveryRowOnceTest(){
+        int rows = 777;
+        AtomicIntegerArray visits = new AtomicIntegerArray(rows);
+        ParallelController.ForRows(rows, 800, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                visits.incrementAndGet(i);
+            }
+        });
+
+        for (int i = 0; i < rows; i++) {
+            assertEquals(1, visits.get(i));
+        }
+    }
+
+    /**
+     * Small images like 16x16 textures shouldn't be split at all
+     */
+    @Test
+    public void smallImagesStaySequentialTest(){
+        Thread caller = Thread.currentThread();
+        ParallelController.ForRows(16, 16, (from, to) -> {
+            assertEquals(0, from);
+            assertEquals(16, to);
+            assertTrue(Thread.currentThread() == caller);
+        });
+    }
+
+    /**
+     * Progress should get to every row, and once it throws the bands that haven't started are skipped
+     */
+    @Test
+    public void forRowsProgressTest(){
+        int rows = 500;
+        AtomicInteger last = new AtomicInteger();
+        AtomicIntegerArray visits = new AtomicIntegerArray(rows);
+        ParallelController.ForRows(rows, 40, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                visits.incrementAndGet(i);
+            }
+        }, (done, total) -> {
+            assertEquals(rows, total);
+            last.accumulateAndGet(done, Math::max);
+        });
+        assertEquals(rows, last.get());
+
+        AtomicInteger bands = new AtomicInteger();
+        try {
+            ParallelController.ForRows(rows, 40, (from, to) -> bands.incrementAndGet(), (done, total) -> {
+                if (done > 0) {
+                    throw new CancellationException();
+                }
+            });
+            fail("the cancellation should get through");
+        } catch (CancellationException e) {
+            assertTrue(bands.get() < rows / PixelBuffer.TILE_SIZE);
+        }
+    }
+
+    /**
+     * Operations split across threads should give the same image as one pass over it
+     */
+    @Test
+    public void parallelRotateTest(){
+        int w = 300;
+        int h = 200;
+        PixelBuffer grid = new PixelBuffer(w, h);
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                grid.setPixel(i, j, new Color((i * 7) % 256, (j * 3) % 256, (i + j) % 256).getRGB());
+            }
+        }
+
+        PixelBuffer rotated = ImageController.RotateImageRight(grid);
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                assertEquals(grid.getPixel(i, j), rotated.getPixel(j, h - 1 - i));
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package g82;
+
+import g82.controllers.ImageController;
+import g82.models.Orientation;
+import g82.models.PixelBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.awt.Color;
+
+/**
+ * Unit tests for PixelBuffer class.
+ */
+public class PixelBufferTest {
+    private PixelBuffer grid;
+    private int h;
+    private int w;
+
+    @Before
+    public void setUp() {
+        h = 45;
+        w = 70; // not a multiple of the tile size
+        grid = new PixelBuffer(w, h);
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                grid.setPixel(i, j, new Color(i, j, (i + j) % 256).getRGB());
+            }
+        }
+    }
+
+    /**
+     * Rows read and written across tile edges should match single pixel access
+     */
+    @Test
+    public void rowAccessTest(){
+        int[] row = new int[50];
+        grid.getRow(40, 10, 50, row, 0);
+        for (int j = 0; j < 50; j++) {
+            assertEquals(grid.getPixel(40, 10 + j), row[j]);
+        }
+
+        for (int j = 0; j < 50; j++) {
+            row[j] = j;
+        }
+        grid.setRow(3, 15, 50, row, 0);
+        for (int j = 0; j < 50; j++) {
+            assertEquals(j, grid.getPixel(3, 15 + j));
+        }
+        assertEquals(new Color(3, 14, 17).getRGB(), grid.getPixel(3, 14));
+        assertEquals(new Color(3, 65, 68).getRGB(), grid.getPixel(3, 65));
+    }
+
+    /**
+     * A clone shares its pixels until one of them is written to, then only that one changes
+     */
+    @Test
+    public void copyOnWriteTest(){
+        PixelBuffer copy = grid.clone();
+        assertTrue(copy.contentEquals(grid));
+
+        copy.setPixel(33, 40, Color.RED.getRGB());
+        assertFalse(copy.contentEquals(grid));
+        assertEquals(new Color(33, 40, 73).getRGB(), grid.getPixel(33, 40));
+
+        grid.fill(Color.BLUE.getRGB());
+        assertEquals(Color.RED.getRGB(), copy.getPixel(33, 40));
+        assertEquals(new Color(0, 0, 0).getRGB(), copy.getPixel(0, 0));
+    }
+
+    /**
+     * Every combination of rotations and flips read the same as ImageController doing them by copying pixels
+     */
+    @Test
+    public void orientationTest(){
+        PixelBuffer view = grid;
+        PixelBuffer copied = grid;
+        for (int step = 0; step < 12; step++) {
+            switch (step % 4) {
+                case 0:
+                view = view.rotatedRight();
+                copied = ImageController.RotateImageRight(copied);
+                break;
+                case 1:
+                view = view.flippedHorizontal();
+                copied = ImageController.FlipImageHorizontal(copied);
+                break;
+                case 2:
+                view = view.rotatedRight().rotatedRight().rotatedLeft();
+                copied = ImageController.RotateImageRight(copied);
+                break;
+                default:
+                view = view.flippedVertical();
+                copied = ImageController.FlipImageVertical(copied);
+            }
+            assertEquals(copied.getWidth(), view.getWidth());
+            assertEquals(copied.getHeight(), view.getHeight());
+            assertTrue(view.contentEquals(copied));
+            assertTrue(copied.contentEquals(view));
+        }
+
+        // four quarter turns are back where they started
+        assertEquals(Orientation.IDENTITY, grid.rotatedLeft().rotatedLeft().rotatedLeft().rotatedLeft().getOrientation());
+    }
+
+    /**
+     * Writing to a rotated buffer lays its pixels out again, the buffer it came from isn't changed
+     */
+    @Test
+    public void materialiseTest(){
+        PixelBuffer rotated = grid.rotatedLeft();
+        int original = grid.getPixel(3, 69);
+        assertEquals(original, rotated.getPixel(0, 3));
+
+        rotated.setPixel(0, 3, Color.RED.getRGB());
+        assertEquals(Orientation.IDENTITY, rotated.getOrientation());
+        assertEquals(h, rotated.getWidth());
+        assertEquals(w, rotated.getHeight());
+        assertEquals(Color.RED.getRGB(), rotated.getPixel(0, 3));
+        assertEquals(original, grid.getPixel(3, 69));
+        assertEquals(grid.getPixel(44, 0), rotated.getPixel(69, 44));
+    }
+
+    /**
+     * Laying out each of the 8 orientations tile by tile should give what reading the view pixel by pixel does,
+     * across the partly used edge tiles as well
+     */
+    @Test
+    public void materialiseEveryOrientationTest(){
+        PixelBuffer view = grid;
+        for (int k = 0; k < 8; k++) {
+            view = k == 4 ? view.flippedHorizontal() : view.rotatedRight();
+            PixelBuffer laidOut = view.clone();
+            laidOut.materialise();
+            assertEquals(Orientation.IDENTITY, laidOut.getOrientation());
+            assertEquals(view.getWidth(), laidOut.getWidth());
+            assertEquals(view.getHeight(), laidOut.getHeight());
+            for (int i = 0; i < view.getHeight(); i++) {
+                for (int j = 0; j < view.getWidth(); j++) {
+                    assertEquals(view.getPixel(i, j), laidOut.getPixel(i, j));
+                }
+            }
+        }
+    }
+
+    /**
+     * The spare room in the edge tiles isn't part of the buffer
+     */
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void outOfBoundsTest(){
+        grid.getPixel(h, 0);
+    }
+}
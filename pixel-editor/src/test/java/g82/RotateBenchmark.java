@@ -0,0 +1,80 @@
+package g82;
+
+import g82.models.PixelBuffer;
+
+import java.util.Random;
+
+/**
+ * Times what rotating a layer and then editing it costs, PixelBuffer.materialise laying out a rotatedRight view
+ * with its blocked copy, against the pixel by pixel loop it replaced.
+ * Not a test so surefire doesn't run it, after mvn test-compile run it with
+ * java -cp target/classes:target/test-classes g82.RotateBenchmark [sizes...]
+ */
+public class RotateBenchmark {
+    private static final int RUNS = 20;
+    private static final int WARM_UP = 100; // runs before timing so both loops are compiled
+
+    public static void main(String[] args) {
+        int[] sizes = {256, 512, 800, 1600, 3200};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int k = 0; k < args.length; k++) {
+                sizes[k] = Integer.parseInt(args[k]);
+            }
+        }
+
+        Random random = new Random(82);
+        System.out.println("size     pixel loop   blocked   speedup");
+        for (int size : sizes) {
+            PixelBuffer grid = new PixelBuffer(size, size);
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    grid.setPixel(i, j, random.nextInt());
+                }
+            }
+
+            if (!Materialise(grid).contentEquals(RotateByPixel(grid))) {
+                throw new AssertionError("blocked rotation doesn't match at " + size);
+            }
+
+            double naive = Best(() -> RotateByPixel(grid));
+            double blocked = Best(() -> Materialise(grid));
+            System.out.printf("%-8d %8.2fms %8.2fms %8.1fx%n", size, naive, blocked, naive / blocked);
+        }
+    }
+
+    // what the canvas does, the rotation is a view until the layer's next edit lays it out
+    private static PixelBuffer Materialise(PixelBuffer grid) {
+        PixelBuffer rotated = grid.rotatedRight();
+        rotated.materialise();
+        return rotated;
+    }
+
+    // the loop ImageController.RotateImageRight used before, writing down a column of the new grid for each old row
+    private static PixelBuffer RotateByPixel(PixelBuffer pixelGrid) {
+        int prevHeight = pixelGrid.getHeight();
+        int prevWidth = pixelGrid.getWidth();
+        PixelBuffer newGrid = new PixelBuffer(prevHeight, prevWidth);
+        for (int i = 0; i < prevHeight; i++) {
+            for (int j = 0; j < prevWidth; j++) {
+                newGrid.setPixel(j, prevHeight - 1 - i, pixelGrid.getPixel(i, j));
+            }
+        }
+        return newGrid;
+    }
+
+    // fastest of RUNS runs after warming up, in milliseconds
+    private static double Best(Runnable run) {
+        for (int k = 0; k < WARM_UP; k++) {
+            run.run();
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int k = 0; k < RUNS; k++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1e6;
+    }
+}
@@ -3,6 +3,7 @@ package g82;
 import g82.controllers.ImageController;
 import g82.managers.LayerManager;
 import g82.managers.StateManager;
+import g82.managers.StrokeManager;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertFalse;
@@ -18,6 +19,7 @@ import g82.models.GlobalStateModel;
 import g82.models.IStateModel;
 import g82.models.LayerModel;
 import g82.models.LocalStateModel;
+import g82.models.PixelBuffer;
 import g82.models.StateResult;
 
 /**
@@ -41,7 +43,7 @@ public class StateManagerTest {
         h = 10;
         w = 16;
         LayerModel lm = new LayerModel(this.createPixelGrid(h, w, rgb), 0, "1");
-        stateMan = new StateManager(lm);
+        stateMan = new StateManager();
     }
 
     /**
@@ -52,13 +54,8 @@ public class StateManagerTest {
      * 
      * @return pixelGrid - Pixel grid of specified dimensions, every pixel of rgb colour
     */
-    public Color[][] createPixelGrid(int h, int w, int[] rgb){
-        Color[][] pixelGrid = new Color[h][w];
-        for (int i = 0; i < h; i++) {
-            for (int j = 0; j < w; j++) {
-                pixelGrid[i][j] = new Color((int)rgb[0], (int)rgb[1], (int)rgb[2]);
-            }
-        }
+    public PixelBuffer createPixelGrid(int h, int w, int[] rgb){
+        PixelBuffer pixelGrid = new PixelBuffer(w, h, new Color((int)rgb[0], (int)rgb[1], (int)rgb[2]).getRGB());
         return pixelGrid;
     }
 
@@ -70,8 +67,8 @@ public class StateManagerTest {
      * @param n - Number of pixel grids in array
      * @return - Array of size n, h x w solid colour pixel grids 
      */
-    public Color[][][] createNGrids(int h, int w, int[] rgb, int n){
-        Color[][][] pixelGrids = new Color[n][h][w];        
+    public PixelBuffer[] createNGrids(int h, int w, int[] rgb, int n){
+        PixelBuffer[] pixelGrids = new PixelBuffer[n];        
         for (int i = 0; i < n; i++){
             pixelGrids[i] = createPixelGrid(h, w, rgb);
         }
@@ -79,18 +76,15 @@ public class StateManagerTest {
     }
 
     //Compares two pixel grids to check RGB values match at each pixel
-    public boolean arePixelGridsSame(Color[][] A, Color[][] B){
+    public boolean arePixelGridsSame(PixelBuffer A, PixelBuffer B){
         //If dimensions do not match, then not same and return false
-        if(A.length != B.length || A[0].length != B[0].length){
+        if(A == null || B == null || !A.sameSize(B)){
             return(false);
         }
 
-        for(int i = 0; i < A.length; i++){
-            for(int j = 0; j < A[0].length; j++){
-                if(A[i][j] == null || B[i][j] == null){
-                    return(false);
-                } else if(
-                    A[i][j].getRGB() != B[i][j].getRGB()){
+        for(int i = 0; i < A.getHeight(); i++){
+            for(int j = 0; j < A.getWidth(); j++){
+                if(A.getPixel(i, j) != B.getPixel(i, j)){
                     return(false);
                 }
             }
@@ -110,14 +104,14 @@ public class StateManagerTest {
 
     @Test
     public void SaveLocalStateTest(){
-        Color[][][] pixelGrids = createNGrids(h, w, rgb, MAX_STATES+1);
+        PixelBuffer[] pixelGrids = createNGrids(h, w, rgb, MAX_STATES+1);
 
         try {
             LayerModel layer = new LayerModel(pixelGrids[0], 1, "LocalSaveTest");
 
             try {
                 for (int i = 0; i < MAX_STATES-1; i++){
-                    stateMan.SaveLocalState(layer, pixelGrids[i], pixelGrids[i+1]);
+                    stateMan.SaveLocalState(0, pixelGrids[i], pixelGrids[i+1]);
                 }
             } catch (Exception a) {
                 fail("SaveLocalStateTest failed due to: " + a);
@@ -166,20 +160,24 @@ public class StateManagerTest {
     @Test
     public void GetCurStateTest(){
         int[] newRGB = {123,124,125};
-        Color [][] originalGrid = createPixelGrid(h, w, rgb);
-        Color [][] newGrid = createPixelGrid(h, w, newRGB);
+        PixelBuffer originalGrid = createPixelGrid(h, w, rgb);
+        PixelBuffer newGrid = createPixelGrid(h, w, newRGB);
 
         try{
             LayerModel layer = new LayerModel(originalGrid,1,"TargetLayer");
-            stateMan.SaveLocalState(layer, originalGrid, newGrid);
+            stateMan.SaveLocalState(0, originalGrid, newGrid);
             IStateModel currentState  = stateMan.GetCurState();
 
             try{
                 assertSame(IStateModel.Locality.LOCAL, currentState.GetLocality());
                 LocalStateModel localState = (LocalStateModel) currentState;
                 
-                assertTrue(arePixelGridsSame(originalGrid, localState.GetOldPixelGrid()));
-                assertTrue(arePixelGridsSame(newGrid,localState.GetNewPixelGrid()));
+                // only the changes are stored, so check applying them gets from one grid to the other
+                PixelBuffer patched = newGrid.clone();
+                localState.ApplyOld(patched);
+                assertTrue(arePixelGridsSame(originalGrid, patched));
+                localState.ApplyNew(patched);
+                assertTrue(arePixelGridsSame(newGrid, patched));
             } catch (Exception a) {
                 fail("GetCurStateTest failed as current state returned not same as expected: " + a);
             }
@@ -189,12 +187,411 @@ public class StateManagerTest {
         }
     }
 
+    /**
+     * Local states should only keep the pixels that changed and undo/redo them on the layer in place
+     */
+    @Test
+    public void UndoRedoLocalStateTest(){
+        PixelBuffer grid = createPixelGrid(h, w, rgb);
+        PixelBuffer before = grid.clone();
+        int colour = new Color(1,2,3).getRGB();
+        grid.setPixel(2, 3, colour);
+        grid.setPixel(2, 4, colour);
+        grid.setPixel(7, 0, colour);
+
+        try{
+            LayerModel layer = new LayerModel(grid, 1, "Layer");
+            stateMan.SaveLocalState(0, before, grid);
+            assertTrue(((LocalStateModel) stateMan.GetCurState()).GetChangedPixels() == 3);
+
+            PixelBuffer after = grid.clone();
+            StateResult undone = stateMan.UndoState(new LayerManager(grid), layer);
+            assertSame(grid, undone.curLayer.getPixelGrid());
+            assertTrue(arePixelGridsSame(before, grid));
+
+            stateMan.RedoState(undone.layerManager, layer);
+            assertTrue(arePixelGridsSame(after, grid));
+        } catch (Exception e) {
+            fail("UndoRedoLocalStateTest failed due to: " + e);
+        }
+    }
+
+    /**
+     * A local state should be undone on the layer it was made on, even if another layer is selected or it's hidden
+     */
+    @Test
+    public void UndoLocalStateOnOtherLayerTest(){
+        try{
+            LayerManager manager = new LayerManager(createPixelGrid(h, w, rgb));
+            manager.AddLayer(createPixelGrid(h, w, new int[] {10, 20, 30}));
+            LayerModel drawnOn = manager.FindLayer(0);
+            LayerModel selected = manager.FindLayer(1);
+            PixelBuffer otherBefore = selected.getPixelGrid().clone();
+
+            PixelBuffer grid = drawnOn.getPixelGrid();
+            PixelBuffer before = grid.clone();
+            grid.setPixel(4, 5, new Color(1,2,3).getRGB());
+            PixelBuffer after = grid.clone();
+            stateMan.SaveLocalState(0, before, grid);
+
+            StateResult sr = stateMan.UndoState(manager, selected);
+            assertTrue(arePixelGridsSame(before, grid));
+            assertTrue(arePixelGridsSame(otherBefore, selected.getPixelGrid()));
+
+            drawnOn.toggleVisibility();
+            stateMan.RedoState(sr.layerManager, selected);
+            assertTrue(arePixelGridsSame(after, grid));
+            assertTrue(arePixelGridsSame(otherBefore, selected.getPixelGrid()));
+        } catch (Exception e) {
+            fail("UndoLocalStateOnOtherLayerTest failed due to: " + e);
+        }
+    }
+
+    /**
+     * History should be limited by memory rather than a fixed number of states
+     */
+    @Test
+    public void MemoryBudgetTest(){
+        PixelBuffer grid = createPixelGrid(h, w, rgb);
+        try{
+            LayerModel layer = new LayerModel(grid, 1, "Layer");
+
+            // small edits on a small grid, far more than 10 should be kept
+            for (int i = 0; i < 50; i++){
+                PixelBuffer before = grid.clone();
+                grid.setPixel(i % h, i % w, new Color(i, i, i).getRGB());
+                stateMan.SaveLocalState(0, before, grid);
+            }
+            assertTrue(stateMan.GetStateCount() == 50);
+
+            // whole layer states are bigger, with a budget of about 3 of them the rest get spilled to disk
+            LayerManager manager = new LayerManager(grid);
+            long layerStateSize = 2 * manager.GetRetainedSize();
+            stateMan.SetMemoryBudget(3 * layerStateSize + layerStateSize / 2);
+            for (int i = 0; i < 10; i++){
+                // their own pixels each time, states that share them are only counted once
+                LayerManager before = new LayerManager(createPixelGrid(h, w, rgb));
+                LayerManager after = new LayerManager(createPixelGrid(h, w, rgb));
+                stateMan.SaveLayerState(before, after, 0, 0);
+                assertTrue(stateMan.GetRetainedSize() <= stateMan.GetMemoryBudget());
+            }
+            assertTrue(stateMan.GetInMemoryStateCount() <= 3);
+            assertTrue(stateMan.GetStateCount() == 60);
+
+            int undos = 0;
+            while (stateMan.canUndo()){
+                stateMan.UndoState(manager, layer);
+                undos++;
+            }
+            assertTrue(undos == stateMan.GetStateCount());
+        } catch (Exception e) {
+            fail("MemoryBudgetTest failed due to: " + e);
+        }
+    }
+
+    /**
+     * States sharing the same tiles should count them once, and aren't compressed since that would copy them
+     */
+    @Test
+    public void SharedTilesCountedOnceTest(){
+        try{
+            LayerManager manager = new LayerManager(createPixelGrid(64, 64, rgb));
+            long managerSize = manager.GetRetainedSize();
+            for (int i = 0; i < 10; i++){
+                stateMan.SaveLayerState(manager, manager, 0, 0);
+            }
+            assertTrue(stateMan.GetRetainedSize() < managerSize + 10 * 1024);
+            assertTrue(stateMan.GetInMemoryStateCount() == 10);
+
+            stateMan.AwaitCompression();
+            assertTrue(stateMan.GetHeapSize() == stateMan.GetRetainedSize()); // nothing compressed
+            for (int i = 0; i < 10; i++){
+                StateResult sr = stateMan.UndoState(manager, manager.FindLayer(0));
+                assertTrue(arePixelGridsSame(manager.FindLayer(0).getPixelGrid(), sr.curLayer.getPixelGrid()));
+            }
+        } catch (Exception e) {
+            fail("SharedTilesCountedOnceTest failed due to: " + e);
+        }
+    }
+
+    /**
+     * Old states should be compressed in the background and come back unchanged on undo
+     */
+    @Test
+    public void CompressedHistoryTest(){
+        int size = 64;
+        int n = 10;
+        LayerManager[] managers = new LayerManager[n + 1];
+        for (int i = 0; i <= n; i++){
+            int[] newRGB = {10 * i, 20 + i, 30};
+            managers[i] = new LayerManager(createPixelGrid(size, size, newRGB));
+        }
+
+        try{
+            for (int i = 0; i < n; i++){
+                stateMan.SaveLayerState(managers[i], managers[i + 1], 0, 0);
+            }
+            stateMan.AwaitCompression();
+            assertTrue(stateMan.GetHeapSize() < stateMan.GetRetainedSize() / 2);
+
+            LayerModel layer = managers[n].FindLayer(0);
+            for (int i = n - 1; i >= 0; i--){
+                StateResult sr = stateMan.UndoState(managers[n], layer);
+                assertTrue(arePixelGridsSame(managers[i].FindLayer(0).getPixelGrid(), sr.curLayer.getPixelGrid()));
+            }
+        } catch (Exception e) {
+            fail("CompressedHistoryTest failed due to: " + e);
+        }
+    }
+
+    /**
+     * States spilled to the journal should be read back unchanged when undo/redo gets to them
+     */
+    @Test
+    public void SpilledHistoryTest(){
+        int size = 64;
+        int n = 12;
+        LayerManager[] managers = new LayerManager[n + 1];
+        for (int i = 0; i <= n; i++){
+            int[] newRGB = {10 * i, 20 + i, 30};
+            managers[i] = new LayerManager(createPixelGrid(size, size, newRGB));
+        }
+
+        try{
+            stateMan.SetMemoryBudget(2 * 2 * managers[0].GetRetainedSize());
+            for (int i = 0; i < n; i++){
+                stateMan.SaveLayerState(managers[i], managers[i + 1], 0, 0);
+            }
+            stateMan.AwaitCompression();
+            assertTrue(stateMan.GetInMemoryStateCount() <= 2);
+
+            LayerModel layer = managers[n].FindLayer(0);
+            for (int i = n - 1; i >= 0; i--){
+                StateResult sr = stateMan.UndoState(managers[n], layer);
+                assertTrue(arePixelGridsSame(managers[i].FindLayer(0).getPixelGrid(), sr.curLayer.getPixelGrid()));
+                assertTrue(stateMan.GetRetainedSize() <= stateMan.GetMemoryBudget());
+            }
+            for (int i = 1; i <= n; i++){
+                StateResult sr = stateMan.RedoState(managers[0], layer);
+                assertTrue(arePixelGridsSame(managers[i].FindLayer(0).getPixelGrid(), sr.curLayer.getPixelGrid()));
+            }
+        } catch (Exception e) {
+            fail("SpilledHistoryTest failed due to: " + e);
+        }
+    }
+
+    /**
+     * States spilled and then dropped from the history should be cleared out of the journal
+     */
+    @Test
+    public void JournalCompactionTest(){
+        int size = 64;
+        int n = 12;
+        LayerManager[] managers = new LayerManager[n + 1];
+        for (int i = 0; i <= n; i++){
+            int[] newRGB = {10 * i, 20 + i, 30};
+            managers[i] = new LayerManager(createPixelGrid(size, size, newRGB));
+        }
+
+        try{
+            stateMan.SetMemoryBudget(2 * 2 * managers[0].GetRetainedSize());
+            for (int i = 0; i < n; i++){
+                stateMan.SaveLayerState(managers[i], managers[i + 1], 0, 0);
+            }
+            stateMan.AwaitCompression();
+            long spilled = stateMan.GetJournalSize();
+            assertTrue(spilled > 0);
+
+            // back to the first state, saving a new one drops everything after it
+            LayerModel layer = managers[n].FindLayer(0);
+            for (int i = 0; i < n - 1; i++){
+                stateMan.UndoState(managers[n], layer);
+            }
+            stateMan.SaveLayerState(managers[1], managers[n], 0, 0);
+            stateMan.AwaitCompression();
+            assertTrue(stateMan.GetJournalSize() < spilled / 2);
+
+            StateResult sr = stateMan.UndoState(managers[n], layer);
+            assertTrue(arePixelGridsSame(managers[1].FindLayer(0).getPixelGrid(), sr.curLayer.getPixelGrid()));
+            sr = stateMan.UndoState(managers[n], layer);
+            assertTrue(arePixelGridsSame(managers[0].FindLayer(0).getPixelGrid(), sr.curLayer.getPixelGrid()));
+
+            // spills still queued when the history is reset are dropped rather than written to the closed journal
+            for (int i = 0; i < n; i++){
+                stateMan.SaveLayerState(managers[i], managers[i + 1], 0, 0);
+            }
+            stateMan.ResetStates();
+            stateMan.AwaitCompression();
+            assertTrue(stateMan.GetJournalSize() == 0);
+        } catch (Exception e) {
+            fail("JournalCompactionTest failed due to: " + e);
+        }
+    }
+
+    /**
+     * Opacity, visibility and layer order changes should undo/redo in place without saving any pixels
+     */
+    @Test
+    public void PropertyStateTest(){
+        try{
+            LayerManager manager = new LayerManager(createPixelGrid(h, w, rgb));
+            LayerModel bottom = manager.FindLayer(0);
+            LayerModel top = manager.AddLayer(createPixelGrid(h, w, rgb));
+
+            top.setOpacity(0.5f);
+            stateMan.SaveOpacityState(1, 1f, 0.5f);
+            top.toggleVisibility();
+            stateMan.SaveVisibilityState(1);
+            manager.ChangeLayerPos(1, 0);
+            stateMan.SaveLayerPosState(1, 0);
+            assertTrue(stateMan.GetRetainedSize() < 256);
+
+            StateResult sr = stateMan.UndoState(manager, top);
+            assertSame(manager, sr.layerManager);
+            assertSame(top, sr.curLayer);
+            assertSame(bottom, manager.FindLayer(0));
+            sr = stateMan.UndoState(manager, top);
+            assertTrue(top.isVisible());
+            sr = stateMan.UndoState(manager, top);
+            assertTrue(top.getOpacity() == 1f);
+
+            stateMan.RedoState(manager, top);
+            stateMan.RedoState(manager, top);
+            sr = stateMan.RedoState(manager, top);
+            assertTrue(top.getOpacity() == 0.5f);
+            assertFalse(top.isVisible());
+            assertSame(top, manager.FindLayer(0));
+            assertSame(top, sr.curLayer);
+        } catch (Exception e) {
+            fail("PropertyStateTest failed due to: " + e);
+        }
+    }
+
+    // a grid where every pixel is different
+    private PixelBuffer createGradientGrid(int h, int w, int seed){
+        PixelBuffer grid = new PixelBuffer(w, h);
+        for (int i = 0; i < h; i++){
+            for (int j = 0; j < w; j++){
+                grid.setPixel(i, j, new Color((i * 13 + seed) % 256, (j * 7) % 256, (i + j + seed) % 256).getRGB());
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Crop should undo from just the margins it cut off, and redo to the same crop
+     */
+    @Test
+    public void CropUndoRedoTest(){
+        try{
+            PixelBuffer first = createGradientGrid(h, w, 0);
+            PixelBuffer second = createGradientGrid(h, w, 90);
+            LayerManager manager = new LayerManager(first);
+            LayerModel layer = manager.FindLayer(0);
+            manager.AddLayer(second);
+
+            int[][] margins = manager.GetCropMargins(3, 2, 9, 6);
+            manager.CropLayers(layer, 3, 2, 9, 6);
+            PixelBuffer cropped = layer.getPixelGrid();
+            stateMan.SaveCropState(3, 2, 9, 6, margins, 7, 5, w, h);
+            assertTrue(stateMan.GetRetainedSize() < 2 * 4 * (w * h - 7 * 5) + 256);
+
+            StateResult sr = stateMan.UndoState(manager, layer);
+            assertTrue(arePixelGridsSame(first, sr.layerManager.FindLayer(0).getPixelGrid()));
+            assertTrue(arePixelGridsSame(second, sr.layerManager.FindLayer(1).getPixelGrid()));
+            sr = stateMan.RedoState(sr.layerManager, sr.curLayer);
+            assertTrue(arePixelGridsSame(cropped, sr.curLayer.getPixelGrid()));
+        } catch (Exception e) {
+            fail("CropUndoRedoTest failed due to: " + e);
+        }
+    }
+
+    /**
+     * Resizing up loses nothing so nothing is kept, resizing down keeps the old grids
+     */
+    @Test
+    public void ResizeUndoRedoTest(){
+        int[][] sizes = {{2 * w, 3 * h}, {w / 3, h / 2}};
+        for (int[] size : sizes){
+            try{
+                PixelBuffer first = createGradientGrid(h, w, 0);
+                LayerManager manager = new LayerManager(first);
+                LayerModel layer = manager.FindLayer(0);
+                boolean lossless = ImageController.IsNNIResizeLossless(w, h, size[0], size[1]);
+                assertTrue(lossless == (size[0] > w));
+
+                StateManager history = new StateManager();
+                PixelBuffer[] oldGrids = lossless ? null : manager.GetLayerGrids();
+                manager.NNIResizeLayers(layer, size[0], size[1]);
+                PixelBuffer resized = layer.getPixelGrid();
+                history.SaveResizeState(oldGrids, size[0], size[1], w, h);
+                if (lossless){
+                    assertTrue(history.GetRetainedSize() < 256);
+                }
+
+                StateResult sr = history.UndoState(manager, layer);
+                assertTrue(arePixelGridsSame(first, sr.curLayer.getPixelGrid()));
+                sr = history.RedoState(sr.layerManager, sr.curLayer);
+                assertTrue(arePixelGridsSame(resized, sr.curLayer.getPixelGrid()));
+            } catch (Exception e) {
+                fail("ResizeUndoRedoTest failed due to: " + e);
+            }
+        }
+    }
+
+    /**
+     * The grids kept for undoing a resize are copies, strokes undone and redone in place around it,
+     * or edits to the layer after undoing it, shouldn't change what the resize undoes to
+     */
+    @Test
+    public void ResizeStrokeUndoRedoTest(){
+        try{
+            PixelBuffer first = createGradientGrid(h, w, 0);
+            PixelBuffer before = first.clone();
+            LayerManager manager = new LayerManager(first);
+            LayerModel layer = manager.FindLayer(0);
+            StateManager history = new StateManager();
+
+            // down, so the old grids are kept
+            manager.NNIResizeLayers(layer, w / 2, h / 2);
+            history.SaveResizeState(new PixelBuffer[] {first}, w / 2, h / 2, w, h);
+            PixelBuffer resized = layer.getPixelGrid().clone();
+
+            StrokeManager stroke = new StrokeManager();
+            stroke.Begin(layer.getPixelGrid());
+            stroke.SetPixel(1, 2, Color.RED.getRGB());
+            stroke.SetPixel(3, 4, Color.RED.getRGB());
+            history.SaveLocalState(stroke.End(0));
+            PixelBuffer stroked = layer.getPixelGrid().clone();
+
+            StateResult sr = history.UndoState(manager, layer);
+            assertTrue(arePixelGridsSame(resized, sr.curLayer.getPixelGrid()));
+            sr = history.UndoState(sr.layerManager, sr.curLayer);
+            assertTrue(arePixelGridsSame(before, sr.curLayer.getPixelGrid()));
+
+            sr = history.RedoState(sr.layerManager, sr.curLayer);
+            sr = history.RedoState(sr.layerManager, sr.curLayer);
+            assertTrue(arePixelGridsSame(stroked, sr.curLayer.getPixelGrid()));
+            sr = history.UndoState(sr.layerManager, sr.curLayer);
+            sr = history.UndoState(sr.layerManager, sr.curLayer);
+            assertTrue(arePixelGridsSame(before, sr.curLayer.getPixelGrid()));
+
+            // changed in place, the history's copy mustn't see it
+            sr.curLayer.getPixelGrid().setPixel(0, 0, Color.BLUE.getRGB());
+            sr = history.RedoState(sr.layerManager, sr.curLayer);
+            sr = history.UndoState(sr.layerManager, sr.curLayer);
+            assertTrue(arePixelGridsSame(before, sr.curLayer.getPixelGrid()));
+        } catch (Exception e) {
+            fail("ResizeStrokeUndoRedoTest failed due to: " + e);
+        }
+    }
+
     @Test
     public void UndoStateTest(){
         int[] interRGB = {123,234,159};
         int[] lastRGB = {4,5,7};
-        Color[][] interGrid = createPixelGrid(h, w, interRGB);
-        Color[][] lastGrid = createPixelGrid(h, w, lastRGB);
+        PixelBuffer interGrid = createPixelGrid(h, w, interRGB);
+        PixelBuffer lastGrid = createPixelGrid(h, w, lastRGB);
         LayerManager firstMan = new LayerManager(createPixelGrid(h, w, rgb));
         LayerManager interMan = new LayerManager(interGrid);
         LayerManager lastMan = new LayerManager(lastGrid);
@@ -220,8 +617,8 @@ public class StateManagerTest {
     public void RedoStateTest(){
         int[] interRGB = {123,234,159};
         int[] lastRGB = {4,5,7};
-        Color[][] lastGrid = createPixelGrid(h, w, lastRGB);
-        Color[][] interGrid = createPixelGrid(h, w, interRGB);
+        PixelBuffer lastGrid = createPixelGrid(h, w, lastRGB);
+        PixelBuffer interGrid = createPixelGrid(h, w, interRGB);
         LayerManager firstMan = new LayerManager(createPixelGrid(h, w, rgb));
         LayerManager interMan = new LayerManager(interGrid);
         LayerManager lastMan = new LayerManager(lastGrid);
@@ -250,8 +647,8 @@ public class StateManagerTest {
     public void canRedoTest(){
         assertFalse(stateMan.canRedo());
 
-        Color[][] oldPixelGrid = createPixelGrid(h, w, rgb);
-        Color[][] currentPixelGrid = createPixelGrid(h, w, rgb);
+        PixelBuffer oldPixelGrid = createPixelGrid(h, w, rgb);
+        PixelBuffer currentPixelGrid = createPixelGrid(h, w, rgb);
         LayerManager firstMan = new LayerManager(createPixelGrid(h, w, rgb));
         LayerManager nextMan = new LayerManager(currentPixelGrid);
         try{
@@ -280,8 +677,8 @@ public class StateManagerTest {
     public void canUndoTest(){
         assertFalse(stateMan.canUndo());
 
-        Color[][] oldPixelGrid = createPixelGrid(h, w, rgb);
-        Color[][] currentPixelGrid = createPixelGrid(h, w, rgb);
+        PixelBuffer oldPixelGrid = createPixelGrid(h, w, rgb);
+        PixelBuffer currentPixelGrid = createPixelGrid(h, w, rgb);
         LayerManager firstMan = new LayerManager(oldPixelGrid);
         LayerManager nextMan = new LayerManager(currentPixelGrid);
 
@@ -315,5 +712,11 @@ public class StateManagerTest {
 
         stateMan.ResetStates();
         assertTrue(stateMan.GetCurState()==null);
+        assertFalse(stateMan.canUndo());
+        assertTrue(stateMan.GetStateCount() == 0 && stateMan.GetRetainedSize() == 0);
+
+        // still usable afterwards, e.g. after opening another image
+        stateMan.SaveLayerState(nextMan, firstMan,0,0);
+        assertTrue(stateMan.canUndo());
     }
 }
\ No newline at end of file
@@ -0,0 +1,82 @@
+package g82;
+
+import g82.managers.StrokeManager;
+import g82.models.LocalStateModel;
+import g82.models.PixelBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.awt.Color;
+
+/**
+ * Unit tests for StrokeManager class.
+ */
+public class StrokeManagerTest {
+    private StrokeManager strokeMan;
+    private PixelBuffer grid;
+    private int h;
+    private int w;
+
+    @Before
+    public void setUp() throws Exception {
+        h = 150;
+        w = 100;
+        grid = new PixelBuffer(w, h);
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                grid.setPixel(i, j, new Color(i % 256, j % 256, 40).getRGB());
+            }
+        }
+        strokeMan = new StrokeManager();
+    }
+
+    /**
+     * A stroke across tile edges should undo back to the grid from before it and redo to the one after
+     */
+    @Test
+    public void strokeUndoRedoTest(){
+        PixelBuffer before = grid.clone();
+        int colour = Color.RED.getRGB();
+        strokeMan.Begin(grid);
+        for (int i = 50; i < 80; i++) {
+            for (int j = 60; j < 70; j++) {
+                strokeMan.SetPixel(i, j, colour);
+                strokeMan.SetPixel(i, j, colour); // drawn over twice, the original is kept
+            }
+        }
+        assertTrue(strokeMan.HasChanges());
+        PixelBuffer after = grid.clone();
+
+        LocalStateModel lsm = strokeMan.End(0);
+        assertFalse(strokeMan.IsRecording());
+        assertEquals(30 * 10, lsm.GetChangedPixels());
+        try {
+            lsm.ApplyOld(grid);
+            assertTrue(grid.contentEquals(before));
+            lsm.ApplyNew(grid);
+            assertTrue(grid.contentEquals(after));
+        } catch (Exception e) {
+            fail("strokeUndoRedoTest failed due to: " + e);
+        }
+    }
+
+    /**
+     * Painting pixels with the colour they already were, or painting them back, isn't a change
+     */
+    @Test
+    public void unchangedStrokeTest(){
+        int original = grid.getPixel(5, 5);
+        strokeMan.Begin(grid);
+        strokeMan.SetPixel(3, 4, grid.getPixel(3, 4));
+        strokeMan.SetPixel(5, 5, Color.BLUE.getRGB());
+        strokeMan.SetPixel(5, 5, original);
+        assertFalse(strokeMan.HasChanges());
+        assertNull(strokeMan.End(0));
+    }
+}
@@ -0,0 +1,69 @@
+package g82;
+
+import g82.controllers.ImageController;
+import g82.models.PixelBuffer;
+import g82.models.SummedAreaTable;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.Random;
+
+/**
+ * Unit tests for SummedAreaTable class.
+ */
+public class SummedAreaTableTest {
+    private PixelBuffer grid;
+    private SummedAreaTable table;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(82);
+        grid = new PixelBuffer(37, 23);
+        for (int i = 0; i < grid.getHeight(); i++) {
+            for (int j = 0; j < grid.getWidth(); j++) {
+                grid.setPixel(i, j, random.nextInt());
+            }
+        }
+        table = new SummedAreaTable(grid);
+    }
+
+    /**
+     * Rectangle sums should match adding the pixels up, including rectangles touching the edges
+     */
+    @Test
+    public void sumTest(){
+        int[][] rects = {{0, 0, 22, 36}, {5, 7, 5, 7}, {3, 0, 12, 30}, {10, 20, 22, 36}};
+        for (int[] r : rects) {
+            long red = 0;
+            long alpha = 0;
+            for (int i = r[0]; i <= r[2]; i++) {
+                for (int j = r[1]; j <= r[3]; j++) {
+                    red += (grid.getPixel(i, j) >> 16) & 0xFF;
+                    alpha += grid.getPixel(i, j) >>> 24;
+                }
+            }
+            assertEquals(red, table.getSum(SummedAreaTable.RED, r[0], r[1], r[2], r[3]));
+            assertEquals(alpha, table.getSum(SummedAreaTable.ALPHA, r[0], r[1], r[2], r[3]));
+        }
+    }
+
+    @Test
+    public void meanTest(){
+        PixelBuffer flat = new PixelBuffer(10, 10, ImageController.PackARGB(255, 10, 20, 30));
+        flat.setPixel(0, 0, ImageController.PackARGB(255, 20, 20, 30));
+        flat.setPixel(0, 1, ImageController.PackARGB(255, 21, 20, 30));
+        SummedAreaTable flatTable = new SummedAreaTable(flat);
+        // (20 + 21) / 2 rounds up
+        assertEquals(ImageController.PackARGB(255, 21, 20, 30), flatTable.getMean(0, 0, 0, 1));
+        assertEquals(ImageController.PackARGB(255, 10, 20, 30), flatTable.getMean(1, 0, 9, 9));
+        // corners can be given either way round
+        assertEquals(flatTable.getMean(0, 0, 0, 1), ImageController.AverageColour(flat, 1, 0, 0, 0));
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void outOfBoundsTest(){
+        table.getSum(SummedAreaTable.RED, 0, 0, 23, 5);
+    }
+}
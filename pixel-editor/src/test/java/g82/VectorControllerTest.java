@@ -0,0 +1,101 @@
+package g82;
+
+import g82.controllers.ConvolutionController;
+import g82.controllers.ImageController;
+import g82.controllers.VectorController;
+import g82.managers.LayerManager;
+import g82.models.PixelBuffer;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.Random;
+
+/**
+ * Unit tests for VectorController class.
+ * The SIMD kernels should give exactly the same pixels as the scalar code they replace,
+ * for convolution that's only true of kernels with whole number weights (the SIMD sums are float, not double).
+ * Skipped when the JVM wasn't started with the jdk.incubator.vector module.
+ */
+public class VectorControllerTest {
+    private boolean wasEnabled;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        assumeTrue(VectorController.IsAvailable());
+        wasEnabled = VectorController.IsEnabled();
+        random = new Random(82);
+    }
+
+    @After
+    public void tearDown() {
+        VectorController.SetEnabled(wasEnabled);
+    }
+
+    // odd sizes so the scalar remainder after the vector loops gets used too
+    private PixelBuffer randomGrid(int w, int h) {
+        PixelBuffer grid = new PixelBuffer(w, h);
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                int a = random.nextInt(4) == 0 ? random.nextInt(2) * 255 : random.nextInt(256);
+                grid.setPixel(i, j, ImageController.PackARGB(a, random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            }
+        }
+        return grid;
+    }
+
+    @Test
+    public void condenseLayersMatchesScalarTest() throws Exception {
+        LayerManager layers = new LayerManager(randomGrid(53, 37));
+        layers.AddLayer(randomGrid(53, 37), 0.7f);
+        layers.AddLayer(randomGrid(53, 37), 0.35f);
+        layers.AddLayer(randomGrid(53, 37), 1f);
+
+        VectorController.SetEnabled(false);
+        PixelBuffer scalar = layers.CondenseLayersAC();
+        VectorController.SetEnabled(true);
+        assertTrue(scalar.contentEquals(layers.CondenseLayersAC()));
+
+        // and through the below/above caches
+        layers.SetActiveLayer(layers.FindLayer(2));
+        VectorController.SetEnabled(false);
+        scalar = layers.CondenseLayersAC();
+        layers.FindLayer(0).markChanged();
+        VectorController.SetEnabled(true);
+        assertTrue(scalar.contentEquals(layers.CondenseLayersAC()));
+    }
+
+    /**
+     * Blur is separable so it doesn't go through the 3x3 SIMD kernel, an emboss kernel does.
+     * Its weights are whole numbers so the float sums are exact and match the scalar doubles
+     */
+    @Test
+    public void nonSeparableKernelMatchesScalarTest() {
+        double[][] emboss = {
+            { -2, -1, 0 },
+            { -1,  1, 1 },
+            {  0,  1, 2 }
+        };
+        assertNull(ConvolutionController.Separate(emboss));
+
+        PixelBuffer grid = randomGrid(61, 45);
+        VectorController.SetEnabled(false);
+        PixelBuffer scalar = ConvolutionController.Convolve(grid, emboss);
+        VectorController.SetEnabled(true);
+        assertTrue(scalar.contentEquals(ConvolutionController.Convolve(grid, emboss)));
+    }
+
+    @Test
+    public void sharpenMatchesScalarTest() {
+        PixelBuffer grid = randomGrid(70, 40);
+        VectorController.SetEnabled(false);
+        PixelBuffer scalar = ImageController.Sharpen(grid);
+        VectorController.SetEnabled(true);
+        assertTrue(scalar.contentEquals(ImageController.Sharpen(grid)));
+    }
+}